@@ -1,11 +1,21 @@
 package com.conveyal.analyst.server.controllers;
 
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
 import com.google.common.io.Files;
+import models.Bundle;
+import models.Query;
+import models.Shapefile;
 import models.User;
 import org.apache.commons.fileupload.disk.DiskFileItemFactory;
 import spark.Request;
+import spark.Response;
 
 import java.io.File;
+import java.util.Collection;
+
+import static spark.Spark.halt;
 
 /**
  * Convenience methods for controllers.
@@ -29,6 +39,9 @@ public class Controller {
     /** 302 Moved Temporarily */
     public static final int MOVED_TEMPORARILY = 302;
 
+    /** 304 Not Modified */
+    public static final int NOT_MODIFIED = 304;
+
     /** 400 Bad Request */
     public static final int BAD_REQUEST = 400;
 
@@ -53,6 +66,106 @@ public class Controller {
     // Machine-readable status messages
     public static final String INSUFFICIENT_QUOTA = "INSUFFICIENT_QUOTA";
 
+    /** how long responses computed only from completed queries may be cached, in seconds: they never change */
+    public static final int IMMUTABLE_MAX_AGE = 365 * 24 * 60 * 60;
+
+    /** request attributes holding the caching headers of a response until it has a body; see checkCache */
+    private static final String ETAG_ATTRIBUTE = "etag";
+    private static final String CACHE_CONTROL_ATTRIBUTE = "cacheControl";
+
+    /**
+     * Work out the caching headers of a response computed from the given queries, shapefiles and bundles, and halt
+     * with 304 Not Modified if the client already has it.
+     *
+     * The ETag is a hash of the key, which identifies the response given what it is computed from, and the version of
+     * each dependency: completed queries never change, and shapefiles and bundles change when they are saved.
+     * Responses computed only from completed queries are cached for a long time, others are revalidated on every use,
+     * and responses computed from running (or deleted) queries are not cached at all.
+     *
+     * The headers are only sent once the response has a body, by cacheable(). Until then the response is not stored,
+     * so that errors (including an empty body, which is answered with 404) are never cached.
+     *
+     * @param shared whether proxies may cache the response, because it is served without authentication
+     */
+    protected static void checkCache(Request req, Response res, String key, Collection<String> dependencies,
+            boolean shared) {
+        // set, rather than add, so it can be replaced once there is a body
+        res.raw().setHeader("Cache-Control", "no-store");
+
+        Hasher hasher = Hashing.md5().newHasher().putString(key, Charsets.UTF_8);
+        boolean immutable = !dependencies.isEmpty();
+
+        for (String id : dependencies) {
+            String version;
+
+            Query query = Query.getQuery(id);
+            Shapefile shapefile;
+            Bundle bundle;
+
+            if (query != null) {
+                if (!query.complete)
+                    return;
+
+                version = "complete";
+            }
+            else if ((shapefile = Shapefile.getShapefile(id)) != null) {
+                version = "" + shapefile.lastModified;
+                immutable = false;
+            }
+            else if ((bundle = Bundle.getBundle(id)) != null) {
+                version = "" + bundle.lastModified;
+                immutable = false;
+            }
+            else
+                return;
+
+            hasher.putString(id, Charsets.UTF_8).putString(version, Charsets.UTF_8);
+        }
+
+        String etag = "\"" + hasher.hash() + "\"";
+        String cacheControl = (shared ? "public" : "private") +
+                (immutable ? ", max-age=" + IMMUTABLE_MAX_AGE : ", no-cache");
+
+        String ifNoneMatch = req.headers("If-None-Match");
+
+        if (ifNoneMatch != null) {
+            for (String candidate : ifNoneMatch.split(",")) {
+                candidate = candidate.trim();
+
+                // proxies may weaken ETags, e.g. when they compress responses
+                if (candidate.startsWith("W/"))
+                    candidate = candidate.substring(2);
+
+                // not *, which would answer 304 even if there turns out to be no body
+                if (candidate.equals(etag)) {
+                    setCacheHeaders(res, etag, cacheControl);
+                    halt(NOT_MODIFIED);
+                }
+            }
+        }
+
+        req.attribute(ETAG_ATTRIBUTE, etag);
+        req.attribute(CACHE_CONTROL_ATTRIBUTE, cacheControl);
+    }
+
+    /**
+     * Send the caching headers worked out by checkCache with a response body. If there is no body the response stays
+     * not stored.
+     */
+    protected static <T> T cacheable(Request req, Response res, T body) {
+        String etag = (String) req.attribute(ETAG_ATTRIBUTE);
+
+        if (body != null && etag != null)
+            setCacheHeaders(res, etag, (String) req.attribute(CACHE_CONTROL_ATTRIBUTE));
+
+        return body;
+    }
+
+    private static void setCacheHeaders(Response res, String etag, String cacheControl) {
+        res.raw().setHeader("ETag", etag);
+        res.raw().setHeader("Cache-Control", cacheControl);
+    }
+
     /** Get the current user */
     protected static User currentUser(Request request) {
         // prefer username local to request from OAuth if present
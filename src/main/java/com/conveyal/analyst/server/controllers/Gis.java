@@ -113,40 +113,21 @@ public class Gis extends Controller {
 		// NB loop over attributes is outside loop. Must retain this pattern when creating field names.
 		for (Attribute a : destinationAttributes) {
 			for (ResultEnvelope.Which which : params) {
-				String queryKey = queryId + "_" + timeLimit + "_" + which + "_" + a.fieldName;
+				QueryResults qr = QueryResults.cache.get(query, timeLimit, which, a.fieldName);
 
-				synchronized (QueryResults.queryResultsCache) {
-					QueryResults qr;
-
-					if (!QueryResults.queryResultsCache.containsKey(queryKey)) {
-						qr = new QueryResults(query, timeLimit, which, a.fieldName);
-						QueryResults.queryResultsCache.put(queryKey, qr);
-					} else
-						qr = QueryResults.queryResultsCache.get(queryKey);
-
-					if (compareTo != null) {
-						String q2key = compareTo + "_" + timeLimit + "_" + which + "_" + a.fieldName;
-						QueryResults qr2;
-
-						if (!QueryResults.queryResultsCache.containsKey(q2key)) {
-							qr2 = new QueryResults(query2, timeLimit, which, a.fieldName);
-							QueryResults.queryResultsCache.put(q2key, qr2);
-						} else {
-							qr2 = QueryResults.queryResultsCache.get(q2key);
-						}
-
-						qr = qr.subtract(qr2);
-					}
-
-					if (weightByShapefile != null) {
-						if(groupBy == null)
-							halt(BAD_REQUEST, "Must specify a weight by clause when specifying a normalize by clause!");
+				if (compareTo != null) {
+					QueryResults qr2 = QueryResults.cache.get(query2, timeLimit, which, a.fieldName);
+					qr = qr.subtract(qr2);
+				}
 
-						qr = qr.aggregate(outputFeatures, shpNorm, weightByAttribute);
-					}
+				if (weightByShapefile != null) {
+					if(groupBy == null)
+						halt(BAD_REQUEST, "Must specify a weight by clause when specifying a normalize by clause!");
 
-					results.add(qr);
+					qr = qr.aggregate(outputFeatures, shpNorm, weightByAttribute);
 				}
+
+				results.add(qr);
 			}
 		}
 
@@ -206,9 +187,11 @@ public class Gis extends Controller {
 
 			// NB these come from a loop with attributes on the outside so they match field order
 			for (QueryResults qr : results) {
-				if (qr.items.containsKey(feature.id)) {
-					gf.fields.add(qr.items.get(feature.id).value);
-					gf.fields.add(qr.items.get(feature.id).value / qr.maxPossible);
+				int i = qr.indexOf(feature.id);
+
+				if (i != -1) {
+					gf.fields.add(qr.values[i]);
+					gf.fields.add(qr.values[i] / qr.maxPossible);
 				}
 				else {
 					// preserve positional information
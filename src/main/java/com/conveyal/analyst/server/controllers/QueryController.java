@@ -12,6 +12,7 @@ import spark.Request;
 import spark.Response;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.List;
 import java.util.Set;
@@ -190,39 +191,35 @@ public class QueryController extends Controller {
             }
         }
 
-        String queryKey = queryId + "_" + timeLimit + "_" + which + "_" + attributeName;
+        List<String> dependencies = new ArrayList<>();
+        dependencies.add(queryId);
 
-        QueryResults qr = null;
+        if (compareTo != null)
+            dependencies.add(compareTo);
 
-        synchronized (QueryResults.queryResultsCache) {
-            if (!QueryResults.queryResultsCache.containsKey(queryKey)) {
-                qr = new QueryResults(query, timeLimit, which, attributeName);
-                QueryResults.queryResultsCache.put(queryKey, qr);
-            } else
-                qr = QueryResults.queryResultsCache.get(queryKey);
-        }
+        if (weightByShapefile != null)
+            dependencies.add(weightByShapefile);
 
-        if (otherQuery != null) {
-            QueryResults otherQr = null;
-
-            queryKey = compareTo + "_" + timeLimit + "_" + which + "_" + attributeName;
-            if (!QueryResults.queryResultsCache.containsKey(queryKey)) {
-                otherQr = new QueryResults(otherQuery, timeLimit, which, attributeName);
-                QueryResults.queryResultsCache.put(queryKey, otherQr);
-            } else {
-                otherQr = QueryResults.queryResultsCache.get(queryKey);
-            }
+        if (groupBy != null)
+            dependencies.add(groupBy);
 
+        checkCache(req, res, "bins_" + queryId + "_" + compareTo + "_" + timeLimit + "_" + which + "_" +
+                weightByShapefile + "_" + groupBy + "_" + weightByAttribute + "_" + attributeName, dependencies, false);
+
+        QueryResults qr = QueryResults.cache.get(query, timeLimit, which, attributeName);
+
+        if (otherQuery != null) {
+            QueryResults otherQr = QueryResults.cache.get(otherQuery, timeLimit, which, attributeName);
             qr = qr.subtract(otherQr);
         }
 
         if (weightByShapefile == null) {
-            return qr.classifier.getBins();
+            return cacheable(req, res, qr.classifier.getBins());
         } else {
             Shapefile aggregateTo = Shapefile.getShapefile(groupBy);
 
             Shapefile weightBy = Shapefile.getShapefile(weightByShapefile);
-            return qr.aggregate(aggregateTo, weightBy, weightByAttribute).classifier.getBins();
+            return cacheable(req, res, qr.aggregate(aggregateTo, weightBy, weightByAttribute).classifier.getBins());
 
         }
     }
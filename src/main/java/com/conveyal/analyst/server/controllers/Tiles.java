@@ -1,6 +1,9 @@
 package com.conveyal.analyst.server.controllers;
 
 import com.conveyal.analyst.server.tiles.AnalystTileRequest;
+import com.conveyal.analyst.server.tiles.SurfaceComparisonTile;
+import com.conveyal.analyst.server.tiles.SurfaceTile;
+import com.conveyal.analyst.server.tiles.Tile;
 import com.conveyal.analyst.server.tiles.TileCache;
 import com.conveyal.analyst.server.tiles.UTFIntGridRequest;
 import com.fasterxml.jackson.core.JsonFactory;
@@ -21,13 +24,21 @@ import static spark.Spark.halt;
 public class Tiles extends Controller {
     private static final Logger LOG = LoggerFactory.getLogger(Tiles.class);
 
-    protected static TileCache tileCache = new TileCache();
+    protected static TileCache tileCache = TileCache.cache;
 
     public static Object tileBuilder(Request request, Response res,
             final AnalystTileRequest tileRequest) {
+        // tiles of queries and single points are served without authentication, so proxies can share them
+        boolean shared = tileRequest instanceof AnalystTileRequest.QueryTile || tileRequest instanceof SurfaceTile ||
+                tileRequest instanceof SurfaceComparisonTile;
+        checkCache(request, res, tileRequest.getId(), tileRequest.getDependencies(), shared);
+
         if (tileRequest.format.equals("png")) {
-            res.type("image/png");
-            return tileCache.get(tileRequest);
+            res.type(Tile.ENCODER.getContentType());
+            return cacheable(request, res, tileCache.get(tileRequest));
+        } else if (tileRequest.isVector()) {
+            res.type("application/x-protobuf");
+            return cacheable(request, res, tileCache.get(tileRequest));
         } else if (tileRequest.format.equals("json") && tileRequest instanceof UTFIntGridRequest) {
             res.type("application/json");
 
@@ -95,7 +106,7 @@ public class Tiles extends Controller {
 
                 jgen.close();
 
-                return bais.toString();
+                return cacheable(request, res, bais.toString());
 
             } catch (Exception e) {
                 LOG.error("error creating tile", e);
@@ -117,7 +128,7 @@ public class Tiles extends Controller {
         String selectedAttributes = req.queryParams("selectedAttributes");
 
         AnalystTileRequest tileRequest = new AnalystTileRequest.SpatialTile(shapefileId, x, y, z,
-                selectedAttributes);
+                selectedAttributes, getFormat(req));
         return tileBuilder(req, res, tileRequest);
     }
 
@@ -128,7 +139,8 @@ public class Tiles extends Controller {
         int z = Integer.parseInt(req.queryParams("z"));
         String attributeName = req.queryParams("attributeName");
 
-        AnalystTileRequest tileRequest = new AnalystTileRequest.ShapefileTile(shapefileId, x, y, z, attributeName);
+        AnalystTileRequest tileRequest = new AnalystTileRequest.ShapefileTile(shapefileId, x, y, z, attributeName,
+                getFormat(req));
         return tileBuilder(req, res, tileRequest);
     }
 
@@ -138,6 +150,7 @@ public class Tiles extends Controller {
         int x = Integer.parseInt(req.params("x"));
         String[] yformat = req.params("yformat").split("\\.");
         int y = Integer.parseInt(yformat[0]);
+        String format = yformat.length > 1 ? yformat[1] : "png";
         int z = Integer.parseInt(req.params("z"));
         String attributeName = req.queryParams("attributeName");
         String compareTo = req.params("compareTo");
@@ -149,10 +162,10 @@ public class Tiles extends Controller {
         AnalystTileRequest tileRequest;
         if (compareTo == null)
             tileRequest = new AnalystTileRequest.QueryTile(queryId, x, y, z, timeLimit, weightByShapefile,
-                    weightByAttribute, groupBy, which, attributeName);
+                    weightByAttribute, groupBy, which, attributeName, format);
         else
             tileRequest = new AnalystTileRequest.QueryComparisonTile(queryId, compareTo, x, y, z, timeLimit,
-                    weightByShapefile, weightByAttribute, groupBy, which, attributeName);
+                    weightByShapefile, weightByAttribute, groupBy, which, attributeName, format);
 
         return tileBuilder(req, res, tileRequest);
     }
@@ -171,7 +184,7 @@ public class Tiles extends Controller {
         int y = Integer.parseInt(req.queryParams("y"));
         int z = Integer.parseInt(req.queryParams("z"));
 
-        AnalystTileRequest tileRequest = new AnalystTileRequest.TransitTile(bundleId, x, y, z);
+        AnalystTileRequest tileRequest = new AnalystTileRequest.TransitTile(bundleId, x, y, z, getFormat(req));
         return tileBuilder(req, res, tileRequest);
 
     }
@@ -194,6 +207,12 @@ public class Tiles extends Controller {
         return tileBuilder(req, res, tileRequest);
     }
 
+    /** the format of a tile requested with query parameters: png unless format is given, e.g. mvt */
+    private static String getFormat(Request req) {
+        String format = req.queryParams("format");
+        return format != null ? format : "png";
+    }
+
     /**
      * convert a UTFGrid ID into a char sequence, per spec: https://github.com/mapbox/mbtiles-spec/blob/master/1.1/utfgrid.md.
      * may return more than one char for 3+ byte characters
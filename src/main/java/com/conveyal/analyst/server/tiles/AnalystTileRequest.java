@@ -14,18 +14,20 @@ import models.Bundle.TransitSegment;
 import models.Query;
 import models.Shapefile;
 import models.Shapefile.ShapeFeature;
-import org.apache.commons.imaging.ImageWriteException;
-import org.opengis.geometry.MismatchedDimensionException;
-import org.opengis.referencing.operation.TransformException;
 import org.opentripplanner.analyst.cluster.ResultEnvelope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.*;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 
 public abstract class AnalystTileRequest {
@@ -55,11 +57,21 @@ public abstract class AnalystTileRequest {
 	
 
 	public String getId() {
-		return type + "_" + x + "_" + y + "_" + z;
+		return type + "_" + x + "_" + y + "_" + z + "_" + format;
+	}
+
+	/** whether this tile is a Mapbox Vector Tile, rather than an image */
+	public boolean isVector() {
+		return isVector(format);
+	}
+
+	public static boolean isVector(String format) {
+		return "mvt".equals(format) || "pbf".equals(format);
 	}
 	
-	public boolean equals(AnalystTileRequest tr) {
-		return this.getId().equals(tr.getId());
+	@Override
+	public boolean equals(Object o) {
+		return o instanceof AnalystTileRequest && this.getId().equals(((AnalystTileRequest) o).getId());
 	}
 	
 	public int hashCode() {
@@ -70,14 +82,30 @@ public abstract class AnalystTileRequest {
 	}
 	
 	abstract byte[] render();
+
+	/**
+	 * Prepare to render this tile, returning what draws it. This is called on the thread requesting the tile, so that
+	 * slow preparation (e.g. loading the results of a query) holds no render thread.
+	 */
+	Callable<byte[]> prepareRender() {
+		return this::render;
+	}
+
+	/**
+	 * Get the IDs of the queries, shapefiles and bundles this tile is rendered from, so that it can be removed from the
+	 * tile cache when they change.
+	 */
+	public List<String> getDependencies() {
+		return Collections.emptyList();
+	}
 	
 	
 	public static class TransitTile extends AnalystTileRequest {
 		
 		final String scenarioId;
 		
-		public TransitTile(String scenarioId, Integer x, Integer y, Integer z) {
-			super(x, y, z, "transit");
+		public TransitTile(String scenarioId, Integer x, Integer y, Integer z, String format) {
+			super(x, y, z, "transit", format);
 			
 			this.scenarioId = scenarioId;
 		}
@@ -85,9 +113,17 @@ public abstract class AnalystTileRequest {
 		public String getId() {
 			return super.getId() + "_" + scenarioId;
 		}
+
+		@Override
+		public List<String> getDependencies() {
+			return Arrays.asList(scenarioId);
+		}
 		
 		public byte[] render(){
 			
+			if(isVector())
+				return renderVector();
+			
 			Tile tile = new Tile(this);
 			
             STRtree index = Bundle.getBundle(scenarioId).getSpatialIndex();
@@ -98,21 +134,30 @@ public abstract class AnalystTileRequest {
 
     			color = new Color(0.6f,0.6f,1.0f,0.25f);
 
-    			try {
-					tile.renderLineString(seg.geom, color, 3);
-				} catch (MismatchedDimensionException | TransformException e) {
-					LOG.error("Error rendering line string to tile", e);
-				}
+    			tile.renderLineString(seg.geom, color, 3);
     		}
     		
     		try {
 				return tile.generateImage();
-			} catch (IOException | ImageWriteException e) {
+			} catch (IOException e) {
 				LOG.error("Error generating image", e);
 				return null;
 			}
 
 		}
+		
+		private byte[] renderVector() {
+			VectorTile tile = new VectorTile(this);
+			
+			STRtree index = Bundle.getBundle(scenarioId).getSpatialIndex();
+			List<TransitSegment> segments = index.query(tile.envelope);
+			
+			for(TransitSegment seg : segments) {
+				tile.addFeature("transit", seg.geom, Collections.emptyMap());
+			}
+			
+			return tile.encode();
+		}
 	}
 	
 	public static class TransitComparisonTile extends AnalystTileRequest {
@@ -130,6 +175,11 @@ public abstract class AnalystTileRequest {
 		public String getId() {
 			return super.getId() + "_" + scenario1Id  + "_" + scenario2Id;
 		}
+
+		@Override
+		public List<String> getDependencies() {
+			return Arrays.asList(scenario1Id, scenario2Id);
+		}
 		
 		public byte[] render(){
 			
@@ -153,13 +203,7 @@ public abstract class AnalystTileRequest {
 				if(!defaultEdges.contains(ts.edgeId)) {
 					color = new Color(0.6f,0.8f,0.6f,0.75f);
 
-	    			try {
-						tile.renderLineString(ts.geom, color, 5);
-					} catch (MismatchedDimensionException
-							| TransformException e) {
-						// TODO Auto-generated catch block
-						e.printStackTrace();
-					}
+	    			tile.renderLineString(ts.geom, color, 5);
 				}
     		}
     		
@@ -181,8 +225,9 @@ public abstract class AnalystTileRequest {
 		final String shapefileId;
 		final String selectedAttributes;
 		
-		public SpatialTile(String shapefileId, Integer x, Integer y, Integer z, String selectedAttributes) {
-			super(x, y, z, "spatial");
+		public SpatialTile(String shapefileId, Integer x, Integer y, Integer z, String selectedAttributes,
+				String format) {
+			super(x, y, z, "spatial", format);
 			
 			this.shapefileId = shapefileId;
 			this.selectedAttributes = selectedAttributes;
@@ -191,9 +236,17 @@ public abstract class AnalystTileRequest {
 		public String getId() {
 			return super.getId() + "_" + shapefileId + "_" + selectedAttributes;
 		}
+
+		@Override
+		public List<String> getDependencies() {
+			return Arrays.asList(shapefileId);
+		}
 		
 		public byte[] render(){
 			
+			if(isVector())
+				return renderVector();
+			
 			Tile tile = new Tile(this);
 
 			Shapefile shp = Shapefile.getShapefile(shapefileId);
@@ -236,22 +289,44 @@ public abstract class AnalystTileRequest {
             		Color color = new Color(0.0f,0.0f,0.0f,0.1f);
             		Color stroke = new Color(0.0f,0.0f,0.0f,0.5f);
 
-            		try {
-						tile.renderPolygon(feature.geom, color, stroke);
-					} catch (MismatchedDimensionException | TransformException e) {
-						LOG.error("Error rendering polygon to tile", e);
-					}
+            		tile.renderPolygon(feature, color, stroke);
             	}
             }
 		           
     		try {
 				return tile.generateImage();
-			} catch (IOException | ImageWriteException e) {
+			} catch (IOException e) {
 				LOG.error("Error generating image", e);
 				return null;
 			}
 
 		}
+		
+		/** a vector tile of the features, with the values of the selected attributes */
+		private byte[] renderVector() {
+			VectorTile tile = new VectorTile(this);
+			
+			Shapefile shp = Shapefile.getShapefile(shapefileId);
+			
+			if(shp == null)
+				return null;
+			
+			List<String> attributes = selectedAttributes != null ? Arrays.asList(selectedAttributes.split(",")) :
+					Collections.<String>emptyList();
+			
+			for(ShapeFeature feature : shp.query(tile.envelope, z + VectorTile.DETAIL_ZOOM)) {
+				Map<String, Object> properties = new LinkedHashMap<String, Object>();
+				properties.put("id", feature.id);
+				
+				for(String attribute : attributes) {
+					properties.put(attribute, feature.getAttribute(attribute));
+				}
+				
+				tile.addFeature("spatial", feature.geom, properties);
+			}
+			
+			return tile.encode();
+		}
 	}
 	
 	public static class ShapefileTile extends AnalystTileRequest {
@@ -259,24 +334,33 @@ public abstract class AnalystTileRequest {
 		final String shapefileId;
 		final String attributeName;
 		
-		public ShapefileTile(String shapefileId, Integer x, Integer y, Integer z, String attributeName) {
-			super(x, y, z, "spatial");
+		public ShapefileTile(String shapefileId, Integer x, Integer y, Integer z, String attributeName,
+				String format) {
+			super(x, y, z, "shapefile", format);
 			
 			this.shapefileId = shapefileId;
 			this.attributeName = attributeName;
 		}
 		
 		public String getId() {
-			return super.getId() + "_" + shapefileId;
+			return super.getId() + "_" + shapefileId + "_" + attributeName;
+		}
+
+		@Override
+		public List<String> getDependencies() {
+			return Arrays.asList(shapefileId);
 		}
 		
 		public byte[] render(){
 			
+			if(isVector())
+				return renderVector();
+			
 			Tile tile = new Tile(this);
 				
 			Shapefile shp = Shapefile.getShapefile(shapefileId);
 			
-    	    List<ShapeFeature> features = shp.getShapefile(shapefileId).query(tile.envelope);
+    	    List<ShapeFeature> features = shp.getShapefile(shapefileId).query(tile.envelope, z);
 
     	    if(shp == null)
 				return null;
@@ -308,21 +392,37 @@ public abstract class AnalystTileRequest {
             	Color color = new Color(colorTemplate.getRed() / 255.0f, colorTemplate.getGreen() / 255.0f, colorTemplate.getBlue() / 255.0f, (float) (feature.getAttribute(attributeName) / attr.max));
         		Color stroke = new Color(0.0f,0.0f,0.0f,0.5f);
 
-        		try {
-					tile.renderPolygon(feature.geom, color, stroke);
-				} catch (TransformException | MismatchedDimensionException e) {
-					LOG.error("Error rendering polygon to tile", e);
-				}
+        		tile.renderPolygon(feature, color, stroke);
             }
 		           
     		try {
 				return tile.generateImage();
-			} catch (IOException | ImageWriteException e) {
+			} catch (IOException e) {
 				LOG.error("Error generating tile image", e);
 				return null;
 			}
 			
 		}
+		
+		/** a vector tile of the features, with the value of the attribute */
+		private byte[] renderVector() {
+			VectorTile tile = new VectorTile(this);
+			
+			Shapefile shp = Shapefile.getShapefile(shapefileId);
+			
+			if(shp == null)
+				return null;
+			
+			for(ShapeFeature feature : shp.query(tile.envelope, z + VectorTile.DETAIL_ZOOM)) {
+				Map<String, Object> properties = new LinkedHashMap<String, Object>();
+				properties.put("id", feature.id);
+				properties.put(attributeName, feature.getAttribute(attributeName));
+				
+				tile.addFeature("shapefile", feature.geom, properties);
+			}
+			
+			return tile.encode();
+		}
 	}
 
 
@@ -338,8 +438,8 @@ public abstract class AnalystTileRequest {
 		
 		public QueryTile(String queryId, Integer x, Integer y, Integer z, Integer timeLimit,
 				String weightByShapefile, String weightByAttribute, String groupBy,
-				ResultEnvelope.Which which, String attributeName) {
-			super(x, y, z, "transit");
+				ResultEnvelope.Which which, String attributeName, String format) {
+			super(x, y, z, "transit", format);
 			
 			this.queryId = queryId;
 			this.timeLimit = timeLimit;
@@ -353,63 +453,65 @@ public abstract class AnalystTileRequest {
 		public String getId() {
 			return super.getId() + "_" + queryId + "_" + timeLimit +  "_" +  which + "_" + weightByShapefile + "_" + groupBy + "_" + weightByAttribute + "_" + attributeName;
 		}
+
+		@Override
+		public List<String> getDependencies() {
+			List<String> ret = new ArrayList<String>();
+			ret.add(queryId);
+
+			if (weightByShapefile != null)
+				ret.add(weightByShapefile);
+
+			if (groupBy != null)
+				ret.add(groupBy);
+
+			return ret;
+		}
 		
+		/** the ID of the map layer this tile is part of, i.e. its ID without the tile coordinates */
+		public String getLayerId() {
+			return getId().substring(super.getId().length());
+		}
+
 		public byte[] render(){
+			return draw(TileRenderer.renderer.getContext(getLayerId(), this::prepare));
+		}
+
+		@Override
+		Callable<byte[]> prepareRender() {
+			RenderContext context = TileRenderer.renderer.getContext(getLayerId(), this::prepare);
+			return () -> draw(context);
+		}
+
+		private byte[] draw(RenderContext context) {
+			if(context == null)
+				return null;
 			
+			if(isVector())
+				return doRenderVector(context);
+			
+			return doRender(context);
+		}
+		
+		/** Prepare the render context of this tile's layer, or return null if the query no longer exists */
+		protected RenderContext prepare() {
 			Query query = Query.getQuery(queryId);
 			
 			if(query == null)
 				return null;
 
-
-    		String queryKey = queryId + "_" + timeLimit + "_" + which + "_" + attributeName;
-			
-			QueryResults qr = null;
-
-			synchronized(QueryResults.queryResultsCache) {
-				if(!QueryResults.queryResultsCache.containsKey(queryKey)) {
-					qr = new QueryResults(query, timeLimit, which, attributeName);
-					QueryResults.queryResultsCache.put(queryKey, qr);
-				}
-				else
-					qr = QueryResults.queryResultsCache.get(queryKey);
-			}
+			QueryResults qr = QueryResults.cache.get(query, timeLimit, which, attributeName);
 			
-			return doRender(qr, query.originShapefileId);
+			return prepare(qr, query.originShapefileId);
 		}
 		
 		/**
-		 * Actually perform the rendering. This is abstracted into a separate function so it can also be used in
-		 * QueryComparisonTile.
+		 * Prepare the render context for the given results, aggregating them if requested. This is abstracted into a
+		 * separate function so it can also be used in QueryComparisonTile.
 		 */
-		protected byte[] doRender(QueryResults qr, String originShapefileId) {
-			Tile tile = new Tile(this);
-			
-			Shapefile shp = Shapefile.getShapefile(originShapefileId);
-
-		    List<ShapeFeature> features = shp.query(tile.envelope);
-
+		protected RenderContext prepare(QueryResults qr, String originShapefileId) {
 		    if(weightByShapefile == null) {
-		        for(ShapeFeature feature : features) {
-
-		        	Color color = null;
-
-		        	if(qr.items.containsKey(feature.id)) {
-		         		color = qr.classifier.getColorValue(qr.items.get(feature.id).value);
-		         	}
-
-					if(color == null) {
-						color = new Color(0.0f,0.0f,0.0f,0.1f);
-					}
-
-		         	if (color != null) {
-						try {
-							tile.renderPolygon(feature.geom, color, null);
-						} catch (MismatchedDimensionException | TransformException e) {
-							LOG.error("error rendering polygon to tile", e);
-						}
-					}
-		        }
+		    	return new RenderContext(qr, Shapefile.getShapefile(originShapefileId), getDependencies());
 		    }
 		    else {
 		    	if(groupBy == null) {
@@ -423,35 +525,55 @@ public abstract class AnalystTileRequest {
 		    		Shapefile weightBy = Shapefile.getShapefile(weightByShapefile); 
 		    		QueryResults groupedQr = qr.aggregate(aggregateTo, weightBy, weightByAttribute);
 
-		    		// TODO: don't loop over everything here, only the items in this tile
-		    		for(QueryResults.QueryResultItem item : groupedQr.items.values()) {
-
-		            	Color color = null;
-
-		            	color = groupedQr.classifier.getColorValue(item.value);
-
-		            	if(color == null){
-							color = new Color(0.0f,0.0f,0.0f,0.1f);
-						}
-
-		            	try {
-							tile.renderPolygon(item.feature.geom, color, null);
-						} catch (MismatchedDimensionException | TransformException e) {
-							LOG.error("error rendering polygon to tile", e);
-						}
-
-		            }
+		    		// aggregated results have a value for every feature of the shapefile aggregated to, so the tiles
+		    		// are drawn from its spatial index just like unaggregated results
+		    		return new RenderContext(groupedQr, aggregateTo, getDependencies());
 		    	}
 		    }
+		}
+		
+		/** Actually perform the rendering, from the prepared context of this tile's layer */
+		protected byte[] doRender(RenderContext context) {
+			Tile tile = new Tile(this);
+			
+		    List<ShapeFeature> features = context.shapefile.query(tile.envelope, z);
+
+		    for(ShapeFeature feature : features) {
+				tile.renderPolygon(feature, context.getColor(feature.id), null);
+		    }
     		
     		try {
 				return tile.generateImage();
-			} catch (IOException | ImageWriteException e) {
+			} catch (IOException e) {
 				LOG.error("error generating tile", e);
 				return null;
 			}
 			
 		}
+		
+		/**
+		 * Render a vector tile of the features with their values, which clients can classify and color themselves.
+		 * Features without a value are included without one.
+		 */
+		protected byte[] doRenderVector(RenderContext context) {
+			VectorTile tile = new VectorTile(this);
+			
+			QueryResults qr = context.results;
+			
+			for(ShapeFeature feature : context.shapefile.query(tile.envelope, z + VectorTile.DETAIL_ZOOM)) {
+				int i = qr.indexOf(feature.id);
+				tile.addFeature("results", feature.geom, getProperties(feature.id, i != -1 ? qr.values[i] : null));
+			}
+			
+			return tile.encode();
+		}
+		
+		private static Map<String, Object> getProperties(String id, Double value) {
+			Map<String, Object> properties = new LinkedHashMap<String, Object>();
+			properties.put("id", id);
+			properties.put("value", value);
+			return properties;
+		}
 	}
 
 	/**
@@ -462,8 +584,9 @@ public abstract class AnalystTileRequest {
 		
 		public QueryComparisonTile(String queryId, String compareTo, Integer x, Integer y, Integer z, Integer timeLimit,
 				String weightByShapefile, String weightByAttribute, String groupBy, ResultEnvelope.Which which,
-				String attributeName) {
-			super(queryId, x, y, z, timeLimit, weightByShapefile, weightByAttribute, groupBy, which, attributeName);
+				String attributeName, String format) {
+			super(queryId, x, y, z, timeLimit, weightByShapefile, weightByAttribute, groupBy, which, attributeName,
+					format);
 
 			this.compareTo = compareTo;
 		}
@@ -472,38 +595,26 @@ public abstract class AnalystTileRequest {
 		public String getId () {
 			return super.getId() + "_" + compareTo;
 		}
+
+		@Override
+		public List<String> getDependencies () {
+			List<String> ret = super.getDependencies();
+			ret.add(compareTo);
+			return ret;
+		}
 		
 		@Override
-		public byte[] render () {
+		protected RenderContext prepare () {
 			Query q1 = Query.getQuery(queryId);
 			Query q2 = Query.getQuery(compareTo);
 			
 			if (q1 == null || q2 == null || !q1.originShapefileId.equals(q2.originShapefileId))
 				return null;
 			
-			String q1key = queryId + "_" + timeLimit + "_" + which + "_" + attributeName;
-			String q2key = compareTo + "_" + timeLimit + "_" + which + "_" + attributeName;
-			
-			QueryResults qr1, qr2;
-			
-			if (!QueryResults.queryResultsCache.containsKey(q1key)) {
-				qr1 = new QueryResults(q1, timeLimit, which, attributeName);
-				QueryResults.queryResultsCache.put(q1key, qr1);
-			}
-			else {
-				qr1 = QueryResults.queryResultsCache.get(q1key);
-			}
-			
-			if (!QueryResults.queryResultsCache.containsKey(q2key)) {
-				qr2 = new QueryResults(q2, timeLimit, which, attributeName);
-				QueryResults.queryResultsCache.put(q2key, qr2);
-			}
-			else {
-				qr2 = QueryResults.queryResultsCache.get(q2key);
-			}
-			
+			QueryResults qr1 = QueryResults.cache.get(q1, timeLimit, which, attributeName);
+			QueryResults qr2 = QueryResults.cache.get(q2, timeLimit, which, attributeName);
 			
-			return doRender(qr1.subtract(qr2), q1.originShapefileId);
+			return prepare(qr1.subtract(qr2), q1.originShapefileId);
 		}
 	}
  
@@ -0,0 +1,362 @@
+package com.conveyal.analyst.server.tiles;
+
+import com.conveyal.analyst.server.AnalystMain;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * A PNG encoder for tiles. Tiles with at most 256 colors, e.g. polygons colored by a classifier without antialiasing,
+ * or points, are encoded with an indexed palette, a quarter the size of the RGBA pixels before compression. Others are
+ * encoded as RGBA.
+ *
+ * The zlib compression level is application.tile-png-compression, from 1 (fastest) to 9 (smallest). Tiles are cached
+ * in memory and on disk once encoded, so the default is a middle ground. Rows are not filtered by default: tiles are
+ * mostly flat fills and antialiased edges on transparency, where filtering makes them larger, not smaller (see
+ * TileEncoderBenchmark). application.tile-png-filter=adaptive filters each row of RGBA tiles with the filter that
+ * gives the smallest sum of absolute differences, the usual heuristic, which suits continuous images.
+ */
+public class PngEncoder implements TileEncoder {
+	public static final int COMPRESSION = Integer.parseInt(AnalystMain.config.getProperty(
+			"application.tile-png-compression", "4"));
+
+	/** whether to filter the rows of RGBA tiles; the rows of indexed tiles are never filtered */
+	public static final boolean ADAPTIVE_FILTER = "adaptive".equals(AnalystMain.config.getProperty(
+			"application.tile-png-filter", "none"));
+
+	public static final PngEncoder encoder = new PngEncoder(COMPRESSION, ADAPTIVE_FILTER);
+
+	private static final byte[] SIGNATURE = { (byte) 137, 80, 78, 71, 13, 10, 26, 10 };
+
+	private static final int COLOR_TYPE_INDEXED = 3, COLOR_TYPE_RGBA = 6;
+
+	private static final int FILTER_NONE = 0, FILTER_SUB = 1, FILTER_UP = 2, FILTER_AVERAGE = 3, FILTER_PAETH = 4;
+
+	private final int compression;
+
+	private final boolean adaptiveFilter;
+
+	public PngEncoder (int compression, boolean adaptiveFilter) {
+		this.compression = compression;
+		this.adaptiveFilter = adaptiveFilter;
+	}
+
+	@Override
+	public String getContentType () {
+		return "image/png";
+	}
+
+	@Override
+	public byte[] encode (BufferedImage image) throws IOException {
+		int width = image.getWidth(), height = image.getHeight();
+		int[] argb = getArgb(image);
+
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		DataOutputStream out = new DataOutputStream(baos);
+		out.write(SIGNATURE);
+
+		Palette palette = Palette.of(argb);
+
+		ByteArrayOutputStream ihdr = new ByteArrayOutputStream();
+		DataOutputStream ihdrOut = new DataOutputStream(ihdr);
+		ihdrOut.writeInt(width);
+		ihdrOut.writeInt(height);
+		ihdrOut.writeByte(8); // bit depth
+		ihdrOut.writeByte(palette != null ? COLOR_TYPE_INDEXED : COLOR_TYPE_RGBA);
+		ihdrOut.writeByte(0); // deflate
+		ihdrOut.writeByte(0); // adaptive filtering
+		ihdrOut.writeByte(0); // not interlaced
+		writeChunk(out, "IHDR", ihdr.toByteArray());
+
+		if (palette != null) {
+			writeChunk(out, "PLTE", palette.getRgb());
+			byte[] alpha = palette.getAlpha();
+
+			if (alpha.length > 0)
+				writeChunk(out, "tRNS", alpha);
+		}
+
+		Deflater deflater = new Deflater(compression);
+		ByteArrayOutputStream idat = new ByteArrayOutputStream();
+
+		try (DeflaterOutputStream zout = new DeflaterOutputStream(idat, deflater, 8192)) {
+			if (palette != null)
+				writeIndexed(zout, argb, width, height, palette);
+			else if (adaptiveFilter)
+				writeRgbaFiltered(zout, argb, width, height);
+			else
+				writeRgba(zout, argb, width, height);
+		} finally {
+			deflater.end();
+		}
+
+		writeChunk(out, "IDAT", idat.toByteArray());
+		writeChunk(out, "IEND", new byte[0]);
+
+		out.flush();
+		return baos.toByteArray();
+	}
+
+	/** the pixels of an image as ARGB, with all fully transparent pixels the same */
+	private static int[] getArgb (BufferedImage image) {
+		int width = image.getWidth(), height = image.getHeight();
+		int[] argb = new int[width * height];
+
+		if (image.getType() == BufferedImage.TYPE_4BYTE_ABGR) {
+			// read the raster directly rather than converting each pixel through the color model
+			byte[] abgr = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+
+			for (int i = 0, j = 0; i < argb.length; i++, j += 4) {
+				argb[i] = (abgr[j] & 0xff) << 24 | (abgr[j + 3] & 0xff) << 16 | (abgr[j + 2] & 0xff) << 8 |
+						(abgr[j + 1] & 0xff);
+			}
+		}
+		else {
+			image.getRGB(0, 0, width, height, argb, 0, width);
+		}
+
+		for (int i = 0; i < argb.length; i++) {
+			if (argb[i] >>> 24 == 0)
+				argb[i] = 0;
+		}
+
+		return argb;
+	}
+
+	private static void writeIndexed (DeflaterOutputStream out, int[] argb, int width, int height, Palette palette)
+			throws IOException {
+		// the indices are not continuous, so filtering them is pointless
+		byte[] row = new byte[width + 1];
+		row[0] = FILTER_NONE;
+
+		for (int y = 0, i = 0; y < height; y++) {
+			for (int x = 1; x <= width; x++, i++) {
+				row[x] = (byte) palette.indexOf(argb[i]);
+			}
+
+			out.write(row);
+		}
+	}
+
+	private static void writeRgba (DeflaterOutputStream out, int[] argb, int width, int height) throws IOException {
+		byte[] row = new byte[width * 4 + 1];
+		row[0] = FILTER_NONE;
+
+		for (int y = 0; y < height; y++) {
+			toRgba(argb, y * width, width, row, 1);
+			out.write(row);
+		}
+	}
+
+	/** Write RGBA rows, each with the filter that gives the smallest sum of absolute differences */
+	private static void writeRgbaFiltered (DeflaterOutputStream out, int[] argb, int width, int height)
+			throws IOException {
+		int stride = width * 4;
+		byte[] previous = new byte[stride], current = new byte[stride];
+		byte[][] filtered = new byte[5][stride + 1];
+
+		for (int y = 0; y < height; y++) {
+			toRgba(argb, y * width, width, current, 0);
+
+			int best = 0;
+			long bestSum = Long.MAX_VALUE;
+
+			for (int filter = FILTER_NONE; filter <= FILTER_PAETH; filter++) {
+				long sum = filter(filter, current, previous, filtered[filter]);
+
+				if (sum < bestSum) {
+					best = filter;
+					bestSum = sum;
+				}
+			}
+
+			out.write(filtered[best]);
+
+			byte[] tmp = previous;
+			previous = current;
+			current = tmp;
+		}
+	}
+
+	/** copy width ARGB pixels, starting at the given pixel, into a row of RGBA bytes */
+	private static void toRgba (int[] argb, int start, int width, byte[] row, int offset) {
+		for (int x = 0, i = start, j = offset; x < width; x++, i++, j += 4) {
+			int p = argb[i];
+			row[j] = (byte) (p >>> 16);
+			row[j + 1] = (byte) (p >>> 8);
+			row[j + 2] = (byte) p;
+			row[j + 3] = (byte) (p >>> 24);
+		}
+	}
+
+	/** filter a row into out, preceded by the filter type, returning the sum of the filtered bytes as signed values */
+	private static long filter (int filter, byte[] row, byte[] previous, byte[] out) {
+		out[0] = (byte) filter;
+		long sum = 0;
+
+		for (int i = 0; i < row.length; i++) {
+			int a = i >= 4 ? row[i - 4] & 0xff : 0;
+			int b = previous[i] & 0xff;
+			int c = i >= 4 ? previous[i - 4] & 0xff : 0;
+			int x = row[i] & 0xff;
+
+			int predicted;
+			switch (filter) {
+				case FILTER_SUB: predicted = a; break;
+				case FILTER_UP: predicted = b; break;
+				case FILTER_AVERAGE: predicted = (a + b) >>> 1; break;
+				case FILTER_PAETH: predicted = paeth(a, b, c); break;
+				default: predicted = 0;
+			}
+
+			byte value = (byte) (x - predicted);
+			out[i + 1] = value;
+			sum += Math.abs(value);
+		}
+
+		return sum;
+	}
+
+	private static int paeth (int a, int b, int c) {
+		int p = a + b - c;
+		int pa = Math.abs(p - a), pb = Math.abs(p - b), pc = Math.abs(p - c);
+
+		if (pa <= pb && pa <= pc)
+			return a;
+		else if (pb <= pc)
+			return b;
+		else
+			return c;
+	}
+
+	private static void writeChunk (DataOutputStream out, String type, byte[] data) throws IOException {
+		byte[] typeBytes = type.getBytes("US-ASCII");
+
+		CRC32 crc = new CRC32();
+		crc.update(typeBytes);
+		crc.update(data);
+
+		out.writeInt(data.length);
+		out.write(typeBytes);
+		out.write(data);
+		out.writeInt((int) crc.getValue());
+	}
+
+	/** The colors of an image with at most 256 of them, translucent colors first so the tRNS chunk is short */
+	static class Palette {
+		/** open addressing hash table of colors to their indices; twice the maximum size, so it never fills */
+		private static final int TABLE_SIZE = 512;
+
+		private final int[] keys = new int[TABLE_SIZE];
+		private final int[] indices = new int[TABLE_SIZE];
+		private final boolean[] used = new boolean[TABLE_SIZE];
+
+		private int[] colors;
+
+		/** get the palette of the pixels, or null if there are more than 256 colors */
+		public static Palette of (int[] argb) {
+			Palette palette = new Palette();
+			int[] colors = new int[256];
+			int size = 0;
+
+			int last = 0;
+			boolean first = true;
+
+			for (int color : argb) {
+				// runs of the same color are common
+				if (!first && color == last)
+					continue;
+
+				first = false;
+				last = color;
+
+				int slot = palette.slot(color);
+
+				if (palette.used[slot])
+					continue;
+
+				if (size == 256)
+					return null;
+
+				palette.used[slot] = true;
+				palette.keys[slot] = color;
+				colors[size++] = color;
+			}
+
+			colors = Arrays.copyOf(colors, size);
+
+			// translucent colors first, then opaque, so that the alpha of the opaque colors needn't be stored
+			int[] sorted = new int[size];
+			int n = 0;
+			for (int color : colors) {
+				if (color >>> 24 != 0xff)
+					sorted[n++] = color;
+			}
+			for (int color : colors) {
+				if (color >>> 24 == 0xff)
+					sorted[n++] = color;
+			}
+
+			for (int i = 0; i < sorted.length; i++) {
+				palette.indices[palette.slot(sorted[i])] = i;
+			}
+
+			palette.colors = sorted;
+			return palette;
+		}
+
+		/** the slot of a color in the hash table, or of the empty slot it would go in */
+		private int slot (int color) {
+			int slot = (color * 0x9E3779B1 >>> 23) & (TABLE_SIZE - 1);
+
+			while (used[slot] && keys[slot] != color) {
+				slot = (slot + 1) & (TABLE_SIZE - 1);
+			}
+
+			return slot;
+		}
+
+		public int indexOf (int color) {
+			return indices[slot(color)];
+		}
+
+		public int size () {
+			return colors.length;
+		}
+
+		/** the PLTE chunk */
+		public byte[] getRgb () {
+			byte[] rgb = new byte[colors.length * 3];
+
+			for (int i = 0; i < colors.length; i++) {
+				rgb[i * 3] = (byte) (colors[i] >>> 16);
+				rgb[i * 3 + 1] = (byte) (colors[i] >>> 8);
+				rgb[i * 3 + 2] = (byte) colors[i];
+			}
+
+			return rgb;
+		}
+
+		/** the tRNS chunk, the alpha of each translucent color */
+		public byte[] getAlpha () {
+			int translucent = 0;
+			while (translucent < colors.length && colors[translucent] >>> 24 != 0xff) {
+				translucent++;
+			}
+
+			byte[] alpha = new byte[translucent];
+			for (int i = 0; i < translucent; i++) {
+				alpha[i] = (byte) (colors[i] >>> 24);
+			}
+
+			return alpha;
+		}
+	}
+}
@@ -0,0 +1,48 @@
+package com.conveyal.analyst.server.tiles;
+
+import com.conveyal.analyst.server.utils.QueryResults;
+import models.Shapefile;
+
+import java.awt.*;
+import java.util.List;
+import java.util.stream.IntStream;
+
+/**
+ * Everything needed to render the tiles of a map layer of query results, prepared once and shared by all the tiles of
+ * the layer: the results, the shapefile their features come from, and the color of each feature, resolved from the
+ * classifier.
+ */
+public class RenderContext {
+	/** the color of features with no value, or whose value is not in any class */
+	public static final Color NO_DATA = new Color(0.0f, 0.0f, 0.0f, 0.1f);
+
+	public final QueryResults results;
+
+	/** the shapefile whose features are drawn, with its spatial index; for aggregated results, the one aggregated to */
+	public final Shapefile shapefile;
+
+	/** the color of each feature of the results, by index */
+	public final Color[] colors;
+
+	/** the IDs of the queries, shapefiles and bundles the layer is rendered from */
+	public final List<String> dependencies;
+
+	public RenderContext(QueryResults results, Shapefile shapefile, List<String> dependencies) {
+		this.results = results;
+		this.shapefile = shapefile;
+		this.dependencies = dependencies;
+
+		this.colors = new Color[results.size()];
+
+		IntStream.range(0, colors.length).parallel().forEach(i -> {
+			Color color = results.classifier.getColorValue(results.values[i]);
+			colors[i] = color != null ? color : NO_DATA;
+		});
+	}
+
+	/** the color of the feature with the given ID in the results */
+	public Color getColor(String featureId) {
+		int i = results.indexOf(featureId);
+		return i != -1 ? colors[i] : NO_DATA;
+	}
+}
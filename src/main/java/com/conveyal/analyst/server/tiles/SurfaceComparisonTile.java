@@ -10,9 +10,6 @@ import com.vividsolutions.jts.index.strtree.STRtree;
 
 import models.Attribute;
 import models.Shapefile;
-import org.apache.commons.imaging.ImageWriteException;
-import org.opengis.geometry.MismatchedDimensionException;
-import org.opengis.referencing.operation.TransformException;
 import org.opentripplanner.analyst.PointSet;
 import org.opentripplanner.analyst.ResultSet;
 import org.opentripplanner.analyst.cluster.ResultEnvelope;
@@ -117,11 +114,7 @@ public class SurfaceComparisonTile extends AnalystTileRequest implements UTFIntG
                 }
 
                  if(color != null)
-                    try {
-                        tile.renderPolygon(feature.geom, color, null);
-                    } catch (MismatchedDimensionException | TransformException e) {
-                        LOG.error("Unable to render polygon", e);
-                    }
+                    tile.renderPolygon(feature, color, null);
             }
 
              if(showPoints && (time1 < timeLimit || time2 < timeLimit)) {
@@ -142,7 +135,7 @@ public class SurfaceComparisonTile extends AnalystTileRequest implements UTFIntG
 
         try {
             return tile.generateImage();
-        } catch (IOException | ImageWriteException e) {
+        } catch (IOException e) {
             LOG.error("unable to generate tile image", e);
             return null;
         }
@@ -175,7 +168,7 @@ public class SurfaceComparisonTile extends AnalystTileRequest implements UTFIntG
 			return null;
 		
 		// build a spatial index for just this tile, to speed up querying
-		STRtree subIdx = new STRtree(Math.max(fsub.size(), 2));
+		STRtree subIdx = new STRtree();
 		
 		for (Shapefile.ShapeFeature ft : fsub) {
 			subIdx.insert(ft.geom.getEnvelopeInternal(), ft);
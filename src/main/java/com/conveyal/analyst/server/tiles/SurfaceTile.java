@@ -4,9 +4,6 @@ import com.conveyal.analyst.server.controllers.SinglePoint;
 import com.conveyal.analyst.server.utils.HaltonPoints;
 import models.Attribute;
 import models.Shapefile;
-import org.apache.commons.imaging.ImageWriteException;
-import org.opengis.geometry.MismatchedDimensionException;
-import org.opengis.referencing.operation.TransformException;
 import org.opentripplanner.analyst.PointSet;
 import org.opentripplanner.analyst.ResultSet;
 import org.opentripplanner.analyst.cluster.ResultEnvelope;
@@ -87,11 +84,7 @@ public class SurfaceTile extends AnalystTileRequest {
                 }
 
                  if (color != null) {
-                     try {
-                         tile.renderPolygon(feature.geom, color, null);
-                     } catch (MismatchedDimensionException | TransformException e) {
-                        LOG.error("error rendering polygon to tile", e);
-                     }
+                     tile.renderPolygon(feature, color, null);
                  }
             }
 
@@ -115,7 +108,7 @@ public class SurfaceTile extends AnalystTileRequest {
 
         try {
             return tile.generateImage();
-        } catch (IOException | ImageWriteException e) {
+        } catch (IOException e) {
             LOG.error("error generating tile image", e);
             return null;
         }
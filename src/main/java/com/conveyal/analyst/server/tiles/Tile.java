@@ -1,51 +1,94 @@
 package com.conveyal.analyst.server.tiles;
 
 import com.conveyal.analyst.server.utils.HaltonPoints;
-import com.vividsolutions.jts.geom.*;
-import org.apache.commons.imaging.ImageFormats;
-import org.apache.commons.imaging.ImageWriteException;
-import org.apache.commons.imaging.Imaging;
-import org.geotools.coverage.grid.GridEnvelope2D;
-import org.geotools.coverage.grid.GridGeometry2D;
-import org.geotools.geometry.Envelope2D;
-import org.geotools.geometry.jts.JTS;
-import org.geotools.referencing.crs.DefaultGeographicCRS;
-import org.opengis.geometry.MismatchedDimensionException;
-import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.TransformException;
+import com.conveyal.analyst.server.utils.MercatorGeometry;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.geom.prep.PreparedPolygon;
+import models.Shapefile.ShapeFeature;
 import org.opentripplanner.analyst.core.SlippyTile;
-import org.opentripplanner.analyst.request.TileRequest;
 
 import java.awt.*;
 import java.awt.geom.Path2D;
 import java.awt.image.BufferedImage;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.Map;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
 
+/**
+ * A raster tile, drawn directly at its final size with antialiasing.
+ *
+ * Geometries are drawn from their web mercator projections (see MercatorGeometry), which are mapped to pixels with a
+ * scale and an offset.
+ *
+ * The image is not allocated until something is drawn. Tiles with nothing in them, e.g. over the ocean, and tiles
+ * entirely covered by a single polygon, e.g. inside a large rural block, are a single color, and return a PNG encoded
+ * once and shared by every such tile.
+ */
 public class Tile {
+	/** the width and height of a tile, in pixels */
+	public static final int TILE_SIZE = 256;
+
+	/** points of lines and polygons closer than this to the last point drawn, in pixels, are left out */
+	private static final double MIN_SEGMENT = 0.5;
+	
+	/** encodes raster tiles once they are drawn */
+	public static final TileEncoder ENCODER = PngEncoder.encoder;
+	
+	/** the number of single-color tiles to keep encoded; colors come from classifiers, so there are few in use */
+	private static final int UNIFORM_TILES = 256;
+	
+	/** ARGB color -> tile filled with it */
+	private static final Cache<Integer, byte[]> uniformTiles = CacheBuilder.newBuilder()
+			.maximumSize(UNIFORM_TILES)
+			.build();
+	
+	/** a transparent tile, with nothing drawn in it */
+	public static final byte[] EMPTY = getUniformTile(0);
+	
+	private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
 	
 	final public String id;
 	final public Integer x, y, z;
 	
-	final public Integer scaleFactor;
-	final private MathTransform tr;
+	/**
+	 * Tiles used to be drawn at 14 - z times their size and scaled down, so at low zooms strokes were thinner and
+	 * points fainter. They still are, by this factor, so that there is not too much ink in each pixel.
+	 */
+	final private int lowZoomScale;
+	
+	/** pixels per web mercator metre at this zoom */
+	final private double scale;
 	
-	public BufferedImage buffer;	
-	public Graphics2D gr;
+	/** the web mercator coordinates of the top left corner of the tile, in metres */
+	final private double originX, originY;
+	
+	/** reused for every geometry drawn */
+	final private Path2D.Double path = new Path2D.Double(Path2D.WIND_EVEN_ODD);
+	
+	/** null until something is drawn */
+	private BufferedImage buffer;	
+	private Graphics2D gr;
+	
+	/** the color of a polygon covering the whole tile, drawn before anything else and not yet rasterized */
+	private Color uniformColor;
 	
 	final public Envelope envelope;
 	
+	/** the envelope of the tile as a geometry, to test features against */
+	final private Geometry envelopeGeometry;
+	
 	public Tile(AnalystTileRequest req) {
 		
 		this.x = req.x;
 		this.y = req.y;
 		this.z = req.z;
 		
-		if(14 - z <= 0)
-			this.scaleFactor = 1;
-		else
-			this.scaleFactor = 14 - z;
+		this.lowZoomScale = Math.max(14 - z, 1);
 		
 		this.id = req.getId();
 		
@@ -54,196 +97,270 @@ public class Tile {
         double minLon = SlippyTile.tile2lon(x, z);
         double maxLon = SlippyTile.tile2lon(x + 1, z);
     	
-        // annoyingly need both jts and opengis envelopes -- there's probably a smarter way to get them
     	envelope = new Envelope(maxLon, minLon, maxLat, minLat);
-         
-    	Envelope2D env = JTS.getEnvelope2D(envelope, DefaultGeographicCRS.WGS84);
+    	envelopeGeometry = GEOMETRY_FACTORY.toGeometry(envelope);
     	
-    	TileRequest tileRequest = new TileRequest(env, 256 * this.scaleFactor, 256 * this.scaleFactor);
-    	GridEnvelope2D gridEnv = new GridEnvelope2D(0, 0, tileRequest.width, tileRequest.height);
-    	GridGeometry2D gg = new GridGeometry2D(gridEnv, (org.opengis.geometry.Envelope)(tileRequest.bbox));
-    	
-      	tr = gg.getCRSToGrid2D();
-      	
-      	buffer = new BufferedImage(tileRequest.width, tileRequest.height, BufferedImage.TYPE_4BYTE_ABGR);
+    	scale = TILE_SIZE * Math.pow(2, z) / (2 * MercatorGeometry.HALF_WORLD);
+    	originX = x * TILE_SIZE / scale - MercatorGeometry.HALF_WORLD;
+    	originY = MercatorGeometry.HALF_WORLD - y * TILE_SIZE / scale;
       
 	}
 	
 	public void renderHaltonPoints(HaltonPoints hp, Color c) {
 		
-		double[] coords = hp.transformPoints(tr);
-    	int i = 0;
-    	for(i = 0; i < hp.getNumPoints() * 2; i += 2){
-    		
-    		if(coords[i] > 0 && coords[i] < buffer.getWidth() &&  coords[i+1] > 0 && coords[i+1] < buffer.getHeight())
-    			buffer.setRGB((int)coords[i], (int)coords[i+1], c.getRGB());
+		double[] coords = hp.getMercatorCoords();
+		
+		// the image is only allocated once a point falls in the tile
+		if(lowZoomScale > 1) {
+			// at low zooms many points fall in each pixel, so draw them faintly and let them accumulate
+			Graphics2D g = null;
 			
-    		if(z > 14) {
+			for(int i = 0; i < hp.getNumPoints() * 2; i += 2) {
+				double px = pixelX(coords[i]), py = pixelY(coords[i+1]);
 				
-				if(x+1 < buffer.getWidth() && y+1 < buffer.getHeight())
-					buffer.setRGB((int)coords[i]+1, (int)coords[i+1]+1, c.getRGB());
-				
-				if(y+1 < buffer.getHeight())
-					buffer.setRGB((int)coords[i], (int)coords[i+1]+1, c.getRGB());
-				
-				if(x+1 < buffer.getWidth())
-					buffer.setRGB((int)coords[i]+1, (int)coords[i+1], c.getRGB());
-    			
+				if(px > 0 && px < TILE_SIZE && py > 0 && py < TILE_SIZE) {
+					if(g == null) {
+						g = getGraphics();
+						g.setColor(new Color(c.getRed(), c.getGreen(), c.getBlue(),
+								Math.max(1, c.getAlpha() / (lowZoomScale * lowZoomScale))));
+					}
+					
+					g.fillRect((int) px, (int) py, 1, 1);
+				}
+			}
+			
+			return;
+		}
+		
+		int rgb = c.getRGB();
+		
+    	for(int i = 0; i < hp.getNumPoints() * 2; i += 2){
+    		int px = (int) pixelX(coords[i]), py = (int) pixelY(coords[i+1]);
+    		
+    		if(px > 0 && py > 0)
+    			setPixel(px, py, rgb);
+			
+    		if(z > 14 && px >= 0 && py >= 0) {
+				setPixel(px+1, py+1, rgb);
+				setPixel(px, py+1, rgb);
+				setPixel(px+1, py, rgb);
 			}	
     	}	
 		
 	}
 	
-	public void renderPolygon(Geometry g, Color c, Color stroke) throws MismatchedDimensionException, TransformException {
+	/** set a pixel if it is in the tile */
+	private void setPixel(int px, int py, int rgb) {
+		if(px >= 0 && px < TILE_SIZE && py >= 0 && py < TILE_SIZE)
+			getBuffer().setRGB(px, py, rgb);
+	}
+	
+	/** Draw a feature, from its web mercator geometry which is projected once and kept with the feature */
+	public void renderPolygon(ShapeFeature feature, Color c, Color stroke) {
+		// spatial index queries return features whose envelopes touch the tile, in no particular order; leave out those
+		// that draw nothing, so they don't allocate the image before a polygon covering the tile is found
+		if(!intersects(feature))
+			return;
+		
+		// Until something is drawn, a polygon covering the tile just sets its color; an opaque one hides any other
+		// polygon covering it. The outline of a polygon covering the tile is outside it, so the stroke doesn't matter.
+		if(buffer == null && (uniformColor == null || c.getAlpha() == 255) && covers(feature)) {
+			uniformColor = c;
+			return;
+		}
+		
+		renderPolygon(feature.getMercatorGeometry(), c, stroke);
+	}
+	
+	/** whether a feature may draw anything in the tile */
+	private boolean intersects(ShapeFeature feature) {
+		List<PreparedPolygon> polygons = feature.getPreparedPolygons();
 		
-		if(g instanceof com.vividsolutions.jts.geom.MultiPolygon) {
-			com.vividsolutions.jts.geom.MultiPolygon gM = ((com.vividsolutions.jts.geom.MultiPolygon)g);
-			for(int nGm = 0; nGm < gM.getNumGeometries(); nGm++) {
-				renderPolygon(gM.getGeometryN(nGm), c, stroke);	
-			}
+		// points and lines are drawn wider than they are, so may show even if they are just outside the tile
+		if(polygons.isEmpty())
+			return true;
+		
+		Envelope env = feature.geom.getEnvelopeInternal();
+		
+		if(!env.intersects(envelope))
+			return false;
+		
+		if(envelope.covers(env))
+			return true;
+		
+		for(PreparedPolygon polygon : polygons) {
+			if(polygon.intersects(envelopeGeometry))
+				return true;
 		}
-		else {
-			if(gr == null)
-				gr = buffer.createGraphics();
-			
-			gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-	                RenderingHints.VALUE_ANTIALIAS_ON);
-			
-			Geometry gTr  = JTS.transform(g, tr);
-	        
-			Coordinate[] coords;
+		
+		return false;
+	}
+	
+	/** whether a feature covers the whole tile */
+	private boolean covers(ShapeFeature feature) {
+		if(!feature.geom.getEnvelopeInternal().covers(envelope))
+			return false;
+		
+		for(PreparedPolygon polygon : feature.getPreparedPolygons()) {
+			if(polygon.covers(envelopeGeometry))
+				return true;
+		}
+		
+		return false;
+	}
+	
+	public void renderPolygon(MercatorGeometry g, Color c, Color stroke) {
+		
+		if(g.getNumParts() == 0)
+			return;
+		
+		Graphics2D gr = getGraphics();
+		gr.setColor(c);
+		
+		if(g.dimension == 0) {
+			int size = Math.max(10 / lowZoomScale, 1);
 			
-			if(gTr instanceof com.vividsolutions.jts.geom.Polygon) {
-				com.vividsolutions.jts.geom.Polygon pTr = (com.vividsolutions.jts.geom.Polygon)gTr;
-				coords = pTr.getExteriorRing().getCoordinates();
+			for(int i = 0; i < g.coords.length; i += 2) {
+				gr.fillOval((int) pixelX(g.coords[i]), (int) pixelY(g.coords[i+1]), size, size);
 			}
-			else
-				coords = gTr.getCoordinates();
 			
-			gr.setColor(c);
-			
-			if(coords.length > 1) {
-				// even-odd winding rule, then we don't have to worry about directionality of holes
-				// fine to use coords.length as initial value, most polygons don't have holes
-				Path2D p = new Path2D.Double(Path2D.WIND_EVEN_ODD, coords.length);
-				p.moveTo(coords[0].x, coords[0].y);
-
-				for (int i = 1; i < coords.length; i++)	{
-					p.lineTo(coords[i].x, coords[i].y);
-				}
-
-				// punch holes
-				// we do this by creating additional rings in the path2d. It is important that we do this rather than
-				// filling the exterior ring and then unfilling the holes, which is how we used to do it - if there are
-				// polygons in the holes they will be erased when we unfill the holes.
-				if(gTr instanceof com.vividsolutions.jts.geom.Polygon) {
-					com.vividsolutions.jts.geom.Polygon pTr = (com.vividsolutions.jts.geom.Polygon) gTr;
-
-					// punch holes
-					for (int nIr = 0; nIr < pTr.getNumInteriorRing(); nIr++) {
-						LineString ring = pTr.getInteriorRingN(nIr);
-
-						int ncoord = ring.getNumPoints();
-						if (ncoord <= 1)
-							continue;
-
-						Coordinate start = ring.getCoordinateN(0);
-						// start new ring
-						p.moveTo(start.x, start.y);
-
-						for (int i = 1; i < ncoord; i++) {
-							Coordinate next = ring.getCoordinateN(i);
-							p.lineTo(next.x, next.y);
-						}
-					}
-				}
-
-		    	gr.fill(p);
-		    	
-		    	if(stroke != null) {
-		    		gr.setColor(stroke);
-		    		gr.setStroke(new BasicStroke(0.25f));
-		    		gr.draw(p);
-		    	}
-			}
-			else {
-				gr.fillOval((int)coords[0].x, (int)coords[0].y, 10, 10);
-			}
+			return;
 		}
+		
+		// even-odd winding rule, then we don't have to worry about directionality of holes. Holes are additional
+		// rings in the path. It is important that we do this rather than filling the exterior ring and then
+		// unfilling the holes, which is how we used to do it - if there are polygons in the holes they will be erased
+		// when we unfill the holes. The polygons of a multipolygon don't overlap, so they can share the path too.
+		path.reset();
+		
+		for(int part = 0; part < g.getNumParts(); part++) {
+			addToPath(g, part);
+		}
+		
+    	gr.fill(path);
+    	
+    	if(stroke != null) {
+    		gr.setColor(stroke);
+    		gr.setStroke(new BasicStroke(0.25f / lowZoomScale));
+    		gr.draw(path);
+    	}
 	}
 	
-	public void renderLineString(Geometry g, Color c, Integer strokeWidth) throws MismatchedDimensionException, TransformException {
+	public void renderLineString(Geometry g, Color c, Integer strokeWidth) {
 		
-		if(gr == null)
-			gr = buffer.createGraphics();
+		Graphics2D gr = getGraphics();
 		
-		gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING,
-                RenderingHints.VALUE_ANTIALIAS_ON);
-		
-		Geometry gTr  = JTS.transform(g, tr);
+		MercatorGeometry gTr = new MercatorGeometry(g);
         
 		gr.setColor(c);
 		
 		if(strokeWidth == null)
-			gr.setStroke(new BasicStroke(5));
-		else
-			gr.setStroke(new BasicStroke(strokeWidth));
-		
-		Path2D path = new Path2D.Double();
-		
-		boolean firstPoint = true;
-    	for(Coordinate coord : gTr.getCoordinates()) {
-    		if(firstPoint)
-    			path.moveTo(coord.x, coord.y);
-    		else
-    			path.lineTo(coord.x, coord.y);
-    		
-    		firstPoint = false;
-    	}
+			strokeWidth = 5;
+		
+		gr.setStroke(new BasicStroke((float) strokeWidth / lowZoomScale));
+		
+		path.reset();
+		
+		for(int part = 0; part < gTr.getNumParts(); part++) {
+			addToPath(gTr, part);
+		}
     	
     	gr.draw(path);    
 	}
 	
-	public byte[] generateImage() throws IOException, ImageWriteException {
+	/**
+	 * Start a new line or ring in the path from a part of a geometry, mapped to pixels, leaving out points too close
+	 * together to see.
+	 */
+	private void addToPath(MercatorGeometry g, int part) {
+		int start = g.parts[part], end = g.parts[part + 1];
+		
+		// a single point, e.g. a degenerate hole
+		if (end - start < 4)
+			return;
 		
-		if(this.scaleFactor > 1) {
+		double lastX = pixelX(g.coords[start]), lastY = pixelY(g.coords[start + 1]);
+		path.moveTo(lastX, lastY);
+		
+		for (int i = start + 2; i < end; i += 2) {
+			double nextX = pixelX(g.coords[i]), nextY = pixelY(g.coords[i + 1]);
 			
-			int w = buffer.getWidth();
-            int h = buffer.getHeight();
+			// always draw the last point, so that rings close
+			if (i < end - 2 && Math.abs(nextX - lastX) < MIN_SEGMENT && Math.abs(nextY - lastY) < MIN_SEGMENT)
+				continue;
 			
-			do {
-				w /= 2;
-                if (w < 256) {
-                    w = 256;
-                }
-                
-                h /= 2;
-                if (h < 256) {
-                    h = 256;
-                }
-				
-				BufferedImage original = buffer;
-				
-
-				BufferedImage resized = new BufferedImage(w, h, original.getType());
-			    Graphics2D g = resized.createGraphics();
-			    g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
-			    g.drawImage(original, 0, 0, w, h, null);
-			    g.dispose();
-			    g = null;
-			    
-			    buffer = resized;
-
-	        } while (w != 256 || h != 256);
+			path.lineTo(nextX, nextY);
+			lastX = nextX;
+			lastY = nextY;
+		}
+	}
+	
+	/** pixel x in this tile of a web mercator x */
+	private double pixelX(double mercatorX) {
+		return (mercatorX - originX) * scale;
+	}
+	
+	/** pixel y in this tile of a web mercator y, increasing downwards */
+	private double pixelY(double mercatorY) {
+		return (originY - mercatorY) * scale;
+	}
+	
+	/** Get the image, allocating it, and filling it with a uniform color not yet drawn, if need be */
+	private BufferedImage getBuffer() {
+		if(buffer == null) {
+			buffer = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_4BYTE_ABGR);
+			
+			if(uniformColor != null) {
+				Graphics2D g = buffer.createGraphics();
+				g.setColor(uniformColor);
+				g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+				g.dispose();
+				uniformColor = null;
+			}
+		}
+		
+		return buffer;
+	}
+	
+	private Graphics2D getGraphics() {
+		if(gr == null) {
+			gr = getBuffer().createGraphics();
+			gr.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+			gr.setRenderingHint(RenderingHints.KEY_STROKE_CONTROL, RenderingHints.VALUE_STROKE_PURE);
 		}
 		
+		return gr;
+	}
+	
+	public byte[] generateImage() throws IOException {
+		
+		if(buffer == null)
+			return uniformColor != null ? getUniformTile(uniformColor.getRGB()) : EMPTY;
+		
 		if(gr != null)
 			gr.dispose();
 		gr = null;
 
-		Map<String, Object> params = new HashMap<>();
-		//params.put(ImagingConstants.PARAM_KEY_COMPRESSION, PngConstants.COMPRESSION_DEFLATE_INFLATE);
-
-		return Imaging.writeImageToBytes(buffer, ImageFormats.PNG, params);
+		return ENCODER.encode(buffer);
+	}
+	
+	/** Get a tile filled with the given ARGB color, encoding it the first time it is needed */
+	private static byte[] getUniformTile(int argb) {
+		try {
+			return uniformTiles.get(argb, () -> {
+				BufferedImage image = new BufferedImage(TILE_SIZE, TILE_SIZE, BufferedImage.TYPE_4BYTE_ABGR);
+				
+				if(argb != 0) {
+					Graphics2D g = image.createGraphics();
+					g.setColor(new Color(argb, true));
+					g.fillRect(0, 0, TILE_SIZE, TILE_SIZE);
+					g.dispose();
+				}
+				
+				return ENCODER.encode(image);
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
 	}
 }
@@ -1,42 +1,118 @@
 package com.conveyal.analyst.server.tiles;
 
+import com.conveyal.analyst.server.AnalystMain;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import models.Query;
 
+import java.io.File;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
 
+/**
+ * Caches rendered tiles in two levels: the most recently used in memory, in front of a TileStore on disk which
+ * persists across restarts (application.tile-cache-disk-mb, 0 to disable). Tiles are keyed by the ID of their request.
+ *
+ * Tiles that are not cached are rendered by the TileRenderer. Tiles must be invalidated when the queries, shapefiles
+ * or bundles they are rendered from change. Tiles of running queries are only kept in memory.
+ */
 public class TileCache extends CacheLoader<AnalystTileRequest, byte[]> {
-	
+
+	 /** the tile cache used by the tile controllers, and invalidated by the models */
+	 public static final TileCache cache = new TileCache();
+
+	 private static final long DISK_MB = Long.parseLong(AnalystMain.config.getProperty(
+			 "application.tile-cache-disk-mb", "1024"));
+
 	 private LoadingCache<AnalystTileRequest, byte[]> tileCache;
 
+	 /** the second level, or null if there is none */
+	 private TileStore store;
+
+	 /** incremented whenever tiles are invalidated, so tiles rendered from out-of-date data are not stored */
+	 private final AtomicLong generation = new AtomicLong();
+
 	 private int size = 200;
 	 private int concurrency = 16;
-	 
+
 	 public TileCache() {
-		 
+
 		 this.tileCache = CacheBuilder.newBuilder()
 				 .concurrencyLevel(concurrency)
 				 .maximumSize(size)
 				 .build(this);
+
+		 if (DISK_MB > 0)
+			 this.store = new TileStore(new File(new File(AnalystMain.config.getProperty("application.data"), "tiles"),
+					 "tiles.db"), DISK_MB * 1024 * 1024);
 	 }
-	 
+
 	 public byte[] get(AnalystTileRequest req) {
 		try {
 			return tileCache.get(req);
-		} catch (ExecutionException e) {
+		} catch (ExecutionException | CacheLoader.InvalidCacheLoadException e) {
+			// the tile could not be rendered
 			return null;
 		}
 	 }
 
+	 /** Remove all tiles rendered from the query, shapefile or bundle with the given ID, because it has changed */
+	 public void invalidate(String id) {
+		 generation.incrementAndGet();
+
+		 tileCache.asMap().keySet().removeIf(req -> req.getDependencies().contains(id));
+		 TileRenderer.renderer.invalidate(id);
+
+		 if (store != null)
+			 store.invalidate(id);
+	 }
+
 	 public void clear() {
+		 generation.incrementAndGet();
+
 		 tileCache.invalidateAll();
+		 TileRenderer.renderer.clear();
+
+		 if (store != null)
+			 store.clear();
 	 }
-	 
+
 	 @Override
 	 public byte[] load(final AnalystTileRequest request) throws Exception {
-		 
-		 return request.render();
-	
-	 }	 
+		 String id = request.getId();
+
+		 if (store != null) {
+			 byte[] tile = store.get(id);
+
+			 if (tile != null)
+				 return tile;
+		 }
+
+		 long renderedGeneration = generation.get();
+
+		 byte[] tile = TileRenderer.renderer.render(request);
+
+		 // don't persist a tile if what it was rendered from may have changed while it was rendering
+		 if (store != null && tile != null && generation.get() == renderedGeneration && !isRunning(request))
+			 store.put(id, request.getDependencies(), tile);
+
+		 return tile;
+
+	 }
+
+	 /**
+	  * Is a tile rendered from a query that is still running? Its tiles are invalidated whenever more results are
+	  * ingested, so they are not worth persisting.
+	  */
+	 private static boolean isRunning(AnalystTileRequest request) {
+		 for (String id : request.getDependencies()) {
+			 Query query = Query.getQuery(id);
+
+			 if (query != null && !query.complete)
+				 return true;
+		 }
+
+		 return false;
+	 }
 }
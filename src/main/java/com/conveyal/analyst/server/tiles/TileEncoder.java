@@ -0,0 +1,14 @@
+package com.conveyal.analyst.server.tiles;
+
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+
+/**
+ * Encodes rendered raster tiles. Tiles are encoded on the render pool (see TileRenderer), so many are encoded at once.
+ */
+public interface TileEncoder {
+	byte[] encode (BufferedImage image) throws IOException;
+
+	/** the MIME type of encoded tiles */
+	String getContentType ();
+}
@@ -0,0 +1,91 @@
+package com.conveyal.analyst.server.tiles;
+
+import com.conveyal.analyst.server.AnalystMain;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheLoader;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Renders tiles on a dedicated, bounded pool of threads (application.tile-render-threads, by default one per
+ * processor) rather than on the threads serving requests, so a screenful of cold tiles can't occupy every request
+ * thread, and holds the prepared render contexts of map layers.
+ *
+ * Contexts are prepared on the threads requesting tiles, and only drawing is done on the pool, so a layer that is slow
+ * to prepare doesn't hold render threads that tiles of other layers could use. Preparing a context is single-flight:
+ * the first tile of a layer prepares it while the other tiles of the layer wait, then they all render from it at once.
+ */
+public class TileRenderer {
+	public static final int THREADS = Integer.parseInt(AnalystMain.config.getProperty("application.tile-render-threads",
+			"" + Runtime.getRuntime().availableProcessors()));
+
+	/** the number of render contexts to keep; they hold results which may be large, so the values are soft */
+	private static final int CONTEXTS = 32;
+
+	public static final TileRenderer renderer = new TileRenderer();
+
+	private final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+			new ThreadFactoryBuilder().setNameFormat("tile-render-%d").setDaemon(true).build());
+
+	/** layer ID -> render context */
+	private final Cache<String, RenderContext> contexts = CacheBuilder.newBuilder()
+			.maximumSize(CONTEXTS)
+			.softValues()
+			.build();
+
+	/** incremented whenever contexts are invalidated, so contexts prepared from out-of-date data are not kept */
+	private final AtomicLong generation = new AtomicLong();
+
+	/** Prepare to render a tile on this thread, then draw it on the render pool, waiting for it */
+	public byte[] render(AnalystTileRequest request) {
+		try {
+			return executor.submit(request.prepareRender()).get();
+		} catch (InterruptedException e) {
+			throw new RuntimeException(e);
+		} catch (ExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Get the render context of a map layer, preparing it if it has not been prepared already. Returns null if the
+	 * loader returns null, e.g. because the query no longer exists.
+	 */
+	public RenderContext getContext(String layerId, Callable<RenderContext> loader) {
+		long preparedGeneration = generation.get();
+
+		RenderContext context;
+
+		try {
+			context = contexts.get(layerId, loader);
+		} catch (CacheLoader.InvalidCacheLoadException e) {
+			return null;
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+
+		// what the context was prepared from may have changed while it was being prepared
+		if (generation.get() != preparedGeneration)
+			contexts.invalidate(layerId);
+
+		return context;
+	}
+
+	/** Remove the render contexts of layers rendered from the query, shapefile or bundle with the given ID */
+	public void invalidate(String id) {
+		generation.incrementAndGet();
+		contexts.asMap().values().removeIf(context -> context.dependencies.contains(id));
+	}
+
+	public void clear() {
+		generation.incrementAndGet();
+		contexts.invalidateAll();
+	}
+}
@@ -0,0 +1,176 @@
+package com.conveyal.analyst.server.tiles;
+
+import org.mapdb.*;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.NavigableSet;
+
+/**
+ * A persistent store of rendered tiles, the second level of the TileCache, so that tiles survive restarts and there
+ * is room for many more of them than in memory.
+ *
+ * Tiles are keyed by the ID of their request, and indexed by the IDs of the queries, shapefiles and bundles they were
+ * rendered from, so that they can be removed when any of those change. When the tiles exceed the maximum size the
+ * oldest are removed.
+ *
+ * This is a cache, so it is not transactional; if it can't be opened (e.g. after a crash) it is recreated empty.
+ */
+public class TileStore {
+	private static final Logger LOG = LoggerFactory.getLogger(TileStore.class);
+
+	private final File file;
+
+	private final long maxBytes;
+
+	private DB db;
+
+	/** tile request ID -> tile */
+	private BTreeMap<String, StoredTile> tiles;
+
+	/** (dependency ID, tile request ID) for each of the dependencies of each tile */
+	private NavigableSet<Fun.Tuple2<String, String>> tilesByDependency;
+
+	/** (sequence number, tile request ID), in the order the tiles were stored */
+	private NavigableSet<Fun.Tuple2<Long, String>> tilesBySequence;
+
+	private Atomic.Long sequence;
+
+	/** the total size of the stored tiles */
+	private Atomic.Long bytes;
+
+	public TileStore (File file, long maxBytes) {
+		this.file = file;
+		this.maxBytes = maxBytes;
+
+		try {
+			open();
+		} catch (Exception e) {
+			LOG.warn("Unable to open tile store {}, recreating it", file, e);
+
+			if (db != null && !db.isClosed())
+				db.close();
+
+			// MapDB keeps its data in several files with the same prefix
+			File[] files = file.getParentFile().listFiles((dir, name) -> name.startsWith(file.getName()));
+
+			if (files != null) {
+				for (File f : files) {
+					f.delete();
+				}
+			}
+
+			open();
+		}
+	}
+
+	private void open () {
+		file.getParentFile().mkdirs();
+
+		db = DBMaker.newFileDB(file)
+				.transactionDisable()
+				.closeOnJvmShutdown()
+				.make();
+
+		tiles = db.createTreeMap("tiles")
+				.valuesOutsideNodesEnable()
+				.valueSerializer(Serializer.JAVA)
+				.makeOrGet();
+
+		tilesByDependency = db.createTreeSet("tilesByDependency")
+				.makeOrGet();
+
+		tilesBySequence = db.createTreeSet("tilesBySequence")
+				.makeOrGet();
+
+		Bind.secondaryKeys(tiles, tilesByDependency, (id, tile) -> tile.dependencies);
+		Bind.secondaryKeys(tiles, tilesBySequence, (id, tile) -> new Long[] { tile.sequence });
+
+		sequence = db.getAtomicLong("sequence");
+		bytes = db.getAtomicLong("bytes");
+	}
+
+	/** Get a tile, or null if it is not stored */
+	public byte[] get (String id) {
+		StoredTile tile = tiles.get(id);
+		return tile != null ? tile.data : null;
+	}
+
+	/** Store a tile, along with the IDs of the queries, shapefiles and bundles it was rendered from */
+	public void put (String id, Collection<String> dependencies, byte[] data) {
+		StoredTile tile = new StoredTile();
+		tile.sequence = sequence.incrementAndGet();
+		tile.dependencies = dependencies.toArray(new String[dependencies.size()]);
+		tile.data = data;
+
+		StoredTile previous = tiles.put(id, tile);
+		bytes.addAndGet(data.length - (previous != null ? previous.data.length : 0));
+
+		if (bytes.get() > maxBytes)
+			evict();
+	}
+
+	/** remove the oldest tiles until we're back under the limit */
+	private synchronized void evict () {
+		while (bytes.get() > maxBytes && !tilesBySequence.isEmpty()) {
+			remove(tilesBySequence.first().b);
+		}
+	}
+
+	/** Remove all the tiles rendered from a query, shapefile or bundle */
+	public void invalidate (String dependency) {
+		// copy, removing tiles modifies the index
+		List<Fun.Tuple2<String, String>> dependents = new ArrayList<>(
+				tilesByDependency.subSet(new Fun.Tuple2(dependency, null), new Fun.Tuple2(dependency, Fun.HI)));
+
+		for (Fun.Tuple2<String, String> dependent : dependents) {
+			remove(dependent.b);
+		}
+
+		if (!dependents.isEmpty())
+			LOG.info("Removed {} stored tiles of {}", dependents.size(), dependency);
+	}
+
+	public synchronized void clear () {
+		tiles.clear();
+		tilesByDependency.clear();
+		tilesBySequence.clear();
+		bytes.set(0);
+	}
+
+	/** the number of stored tiles */
+	public int size () {
+		return tiles.size();
+	}
+
+	/** the total size of the stored tiles, in bytes */
+	public long getBytes () {
+		return bytes.get();
+	}
+
+	private void remove (String id) {
+		StoredTile removed = tiles.remove(id);
+
+		if (removed != null)
+			bytes.addAndGet(-removed.data.length);
+	}
+
+	/** A stored tile, with what it was rendered from */
+	public static class StoredTile implements Serializable {
+		private static final long serialVersionUID = 1L;
+
+		/** when the tile was stored, relative to other tiles */
+		public long sequence;
+
+		/** IDs of the queries, shapefiles and bundles the tile was rendered from */
+		public String[] dependencies;
+
+		/** the encoded tile */
+		public byte[] data;
+	}
+}
@@ -0,0 +1,458 @@
+package com.conveyal.analyst.server.tiles;
+
+import com.vividsolutions.jts.geom.*;
+import com.vividsolutions.jts.simplify.DouglasPeuckerSimplifier;
+import gnu.trove.list.array.TIntArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A Mapbox Vector Tile (https://github.com/mapbox/vector-tile-spec/tree/master/2.1), which lets clients style the
+ * features themselves rather than the server rendering an image for every style.
+ *
+ * Geometries are given in WGS84. They are projected into the tile's coordinates, simplified to the tile's resolution,
+ * clipped to the tile plus a small buffer, and rounded to the tile's integer grid. The protocol buffer is written
+ * directly; the format is small enough that generated classes are not worth a dependency.
+ */
+public class VectorTile {
+	/** the number of units across a tile */
+	public static final int EXTENT = 4096;
+
+	/**
+	 * a tile has 16 times as many units across as a raster tile has pixels, as many as a raster tile four zooms deeper,
+	 * so features are drawn from the geometries generalized for that zoom
+	 */
+	public static final int DETAIL_ZOOM = 4;
+
+	/** how far features extend beyond the edges of the tile, in tile units, so that strokes join up across tiles */
+	public static final int BUFFER = 64;
+
+	/** simplification tolerance, in tile units */
+	private static final double TOLERANCE = 1;
+
+	private static final int POINT = 1, LINESTRING = 2, POLYGON = 3;
+
+	private static final int MOVE_TO = 1, LINE_TO = 2, CLOSE_PATH = 7;
+
+	private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+	final public int x, y, z;
+
+	/** the envelope of the tile and its buffer in WGS84, for querying spatial indices */
+	final public Envelope envelope;
+
+	/** the clip rectangle, in tile units */
+	private final Geometry clip;
+
+	private final Map<String, Layer> layers = new LinkedHashMap<>();
+
+	public VectorTile(AnalystTileRequest req) {
+		this.x = req.x;
+		this.y = req.y;
+		this.z = req.z;
+
+		double buffer = (double) BUFFER / EXTENT;
+		envelope = new Envelope(tile2lon(x - buffer, z), tile2lon(x + 1 + buffer, z), tile2lat(y + 1 + buffer, z),
+				tile2lat(y - buffer, z));
+
+		clip = GEOMETRY_FACTORY.toGeometry(new Envelope(-BUFFER, EXTENT + BUFFER, -BUFFER, EXTENT + BUFFER));
+	}
+
+	/**
+	 * Add a feature to a layer of the tile. Properties may be strings, numbers or booleans; null properties are left
+	 * out. Features which are entirely outside the tile, or too small to see, are not added.
+	 */
+	public void addFeature(String layerName, Geometry geom, Map<String, Object> properties) {
+		Geometry projected = project(geom);
+
+		// polygons are repaired by the simplifier, so the clip can rely on them being valid
+		Geometry simplified = DouglasPeuckerSimplifier.simplify(projected, TOLERANCE);
+
+		if (simplified.isEmpty())
+			return;
+
+		Geometry clipped;
+
+		if (clip.getEnvelopeInternal().contains(simplified.getEnvelopeInternal()))
+			clipped = simplified;
+		else if (!clip.getEnvelopeInternal().intersects(simplified.getEnvelopeInternal()))
+			return;
+		else {
+			try {
+				clipped = simplified.intersection(clip);
+			} catch (TopologyException e) {
+				clipped = simplified.buffer(0).intersection(clip);
+			}
+		}
+
+		int type;
+		TIntArrayList commands = new TIntArrayList();
+		Cursor cursor = new Cursor();
+
+		switch (geom.getDimension()) {
+		case 0:
+			type = POINT;
+			encodePoints(clipped, commands);
+			break;
+		case 1:
+			type = LINESTRING;
+			for (LineString ls : getComponents(clipped, LineString.class)) {
+				encodeRing(ls.getCoordinates(), false, false, commands, cursor);
+			}
+			break;
+		default:
+			type = POLYGON;
+			for (Polygon p : getComponents(clipped, Polygon.class)) {
+				// a polygon whose exterior collapses to nothing when rounded is left out along with its holes
+				if (!encodeRing(p.getExteriorRing().getCoordinates(), true, true, commands, cursor))
+					continue;
+
+				for (int i = 0; i < p.getNumInteriorRing(); i++) {
+					encodeRing(p.getInteriorRingN(i).getCoordinates(), true, false, commands, cursor);
+				}
+			}
+		}
+
+		if (commands.isEmpty())
+			return;
+
+		Layer layer = layers.computeIfAbsent(layerName, Layer::new);
+		layer.addFeature(type, commands.toArray(), properties);
+	}
+
+	/** Encode the tile as a protocol buffer. A tile with no features is empty. */
+	public byte[] encode() {
+		ProtobufWriter tile = new ProtobufWriter();
+
+		for (Layer layer : layers.values()) {
+			tile.writeMessage(3, layer.encode());
+		}
+
+		return tile.toByteArray();
+	}
+
+	/** project a WGS84 geometry into tile units */
+	private Geometry project(Geometry geom) {
+		Geometry projected = (Geometry) geom.clone();
+		double scale = Math.pow(2, z);
+
+		projected.apply(new CoordinateSequenceFilter() {
+			@Override
+			public void filter(CoordinateSequence seq, int i) {
+				double lon = seq.getOrdinate(i, 0);
+				double lat = Math.toRadians(seq.getOrdinate(i, 1));
+
+				double tx = (lon + 180) / 360 * scale;
+				double ty = (1 - Math.log(Math.tan(lat) + 1 / Math.cos(lat)) / Math.PI) / 2 * scale;
+
+				seq.setOrdinate(i, 0, (tx - x) * EXTENT);
+				seq.setOrdinate(i, 1, (ty - y) * EXTENT);
+			}
+
+			@Override
+			public boolean isDone() {
+				return false;
+			}
+
+			@Override
+			public boolean isGeometryChanged() {
+				return true;
+			}
+		});
+
+		return projected;
+	}
+
+	private static <T extends Geometry> List<T> getComponents(Geometry geom, Class<T> clazz) {
+		List<T> ret = new ArrayList<>();
+
+		for (int i = 0; i < geom.getNumGeometries(); i++) {
+			Geometry g = geom.getGeometryN(i);
+
+			if (clazz.isInstance(g))
+				ret.add(clazz.cast(g));
+			else if (g instanceof GeometryCollection)
+				ret.addAll(getComponents(g, clazz));
+		}
+
+		return ret;
+	}
+
+	private static void encodePoints(Geometry geom, TIntArrayList commands) {
+		Coordinate[] coords = geom.getCoordinates();
+
+		if (coords.length == 0)
+			return;
+
+		commands.add(command(MOVE_TO, coords.length));
+
+		int cx = 0, cy = 0;
+		for (Coordinate c : coords) {
+			int px = (int) Math.round(c.x);
+			int py = (int) Math.round(c.y);
+			commands.add(zigzag(px - cx));
+			commands.add(zigzag(py - cy));
+			cx = px;
+			cy = py;
+		}
+	}
+
+	/**
+	 * Round the coordinates of a line or ring to the tile grid and encode them, returning false if nothing was encoded
+	 * because too few distinct points remained. Rings are oriented as the specification requires: exteriors with
+	 * positive area in tile coordinates (clockwise, since y points down) and holes with negative area.
+	 */
+	static boolean encodeRing(Coordinate[] coords, boolean ring, boolean exterior, TIntArrayList commands,
+			Cursor cursor) {
+		int[] xs = new int[coords.length];
+		int[] ys = new int[coords.length];
+		int n = 0;
+
+		for (Coordinate c : coords) {
+			int px = (int) Math.round(c.x);
+			int py = (int) Math.round(c.y);
+
+			if (n > 0 && xs[n - 1] == px && ys[n - 1] == py)
+				continue;
+
+			xs[n] = px;
+			ys[n] = py;
+			n++;
+		}
+
+		if (ring) {
+			// the closing point is implied by ClosePath
+			if (n > 1 && xs[n - 1] == xs[0] && ys[n - 1] == ys[0])
+				n--;
+
+			if (n < 3)
+				return false;
+
+			long area = 0;
+			for (int i = 0; i < n; i++) {
+				int j = (i + 1) % n;
+				area += (long) xs[i] * ys[j] - (long) xs[j] * ys[i];
+			}
+
+			if (area == 0)
+				return false;
+
+			if (area > 0 != exterior) {
+				reverse(xs, n);
+				reverse(ys, n);
+			}
+		}
+		else if (n < 2)
+			return false;
+
+		commands.add(command(MOVE_TO, 1));
+		commands.add(zigzag(xs[0] - cursor.x));
+		commands.add(zigzag(ys[0] - cursor.y));
+
+		commands.add(command(LINE_TO, n - 1));
+		for (int i = 1; i < n; i++) {
+			commands.add(zigzag(xs[i] - xs[i - 1]));
+			commands.add(zigzag(ys[i] - ys[i - 1]));
+		}
+
+		if (ring)
+			commands.add(command(CLOSE_PATH, 1));
+
+		cursor.x = xs[n - 1];
+		cursor.y = ys[n - 1];
+
+		return true;
+	}
+
+	private static void reverse(int[] values, int n) {
+		for (int i = 0, j = n - 1; i < j; i++, j--) {
+			int tmp = values[i];
+			values[i] = values[j];
+			values[j] = tmp;
+		}
+	}
+
+	private static int command(int id, int count) {
+		return (id & 0x7) | (count << 3);
+	}
+
+	private static int zigzag(int n) {
+		return (n << 1) ^ (n >> 31);
+	}
+
+	static double tile2lon(double x, int z) {
+		return x / Math.pow(2, z) * 360 - 180;
+	}
+
+	static double tile2lat(double y, int z) {
+		double n = Math.PI - 2 * Math.PI * y / Math.pow(2, z);
+		return Math.toDegrees(Math.atan(Math.sinh(n)));
+	}
+
+	/** the position the last geometry command left off at; commands are relative to it */
+	static class Cursor {
+		int x, y;
+	}
+
+	/** A layer of a tile, with its features and the keys and values of their properties */
+	static class Layer {
+		final String name;
+
+		final List<byte[]> features = new ArrayList<>();
+
+		final TObjectIntHashMap<String> keys = new TObjectIntHashMap<>(10, 0.5f, -1);
+		final List<String> keyList = new ArrayList<>();
+
+		final TObjectIntHashMap<Object> values = new TObjectIntHashMap<>(10, 0.5f, -1);
+		final List<Object> valueList = new ArrayList<>();
+
+		Layer(String name) {
+			this.name = name;
+		}
+
+		void addFeature(int type, int[] geometry, Map<String, Object> properties) {
+			TIntArrayList tags = new TIntArrayList();
+
+			for (Map.Entry<String, Object> e : properties.entrySet()) {
+				if (e.getValue() == null)
+					continue;
+
+				int key = keys.get(e.getKey());
+				if (key == -1) {
+					key = keyList.size();
+					keys.put(e.getKey(), key);
+					keyList.add(e.getKey());
+				}
+
+				// integers and doubles are encoded differently, so an integer and a double that are equal must not
+				// share a value
+				Object v = e.getValue();
+				if (v instanceof Number && !(v instanceof Double || v instanceof Float))
+					v = ((Number) v).longValue();
+				else if (v instanceof Float)
+					v = ((Float) v).doubleValue();
+
+				int value = values.get(v);
+				if (value == -1) {
+					value = valueList.size();
+					values.put(v, value);
+					valueList.add(v);
+				}
+
+				tags.add(key);
+				tags.add(value);
+			}
+
+			ProtobufWriter feature = new ProtobufWriter();
+			feature.writePacked(2, tags.toArray());
+			feature.writeVarint(3, type);
+			feature.writePacked(4, geometry);
+			features.add(feature.toByteArray());
+		}
+
+		byte[] encode() {
+			ProtobufWriter layer = new ProtobufWriter();
+			layer.writeVarint(15, 2);
+			layer.writeString(1, name);
+
+			for (byte[] feature : features) {
+				layer.writeMessage(2, feature);
+			}
+
+			for (String key : keyList) {
+				layer.writeString(3, key);
+			}
+
+			for (Object v : valueList) {
+				ProtobufWriter value = new ProtobufWriter();
+
+				if (v instanceof String)
+					value.writeString(1, (String) v);
+				else if (v instanceof Double)
+					value.writeDouble(3, (Double) v);
+				else if (v instanceof Long)
+					value.writeVarint(6, zigzag((Long) v));
+				else if (v instanceof Boolean)
+					value.writeVarint(7, (Boolean) v ? 1 : 0);
+				else
+					value.writeString(1, v.toString());
+
+				layer.writeMessage(4, value.toByteArray());
+			}
+
+			layer.writeVarint(5, EXTENT);
+
+			return layer.toByteArray();
+		}
+
+		private static long zigzag(long n) {
+			return (n << 1) ^ (n >> 63);
+		}
+	}
+
+	/** Writes the few protocol buffer field types a vector tile needs */
+	static class ProtobufWriter {
+		private static final int VARINT = 0, FIXED64 = 1, LENGTH_DELIMITED = 2;
+
+		private final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+		void writeVarint(int field, long value) {
+			tag(field, VARINT);
+			varint(value);
+		}
+
+		void writeDouble(int field, double value) {
+			tag(field, FIXED64);
+			long bits = Double.doubleToLongBits(value);
+			for (int i = 0; i < 8; i++) {
+				out.write((int) (bits >>> (8 * i)) & 0xff);
+			}
+		}
+
+		void writeString(int field, String value) {
+			writeMessage(field, value.getBytes(StandardCharsets.UTF_8));
+		}
+
+		void writeMessage(int field, byte[] message) {
+			tag(field, LENGTH_DELIMITED);
+			varint(message.length);
+			out.write(message, 0, message.length);
+		}
+
+		/** write a packed repeated uint32 field, leaving it out if it is empty */
+		void writePacked(int field, int[] values) {
+			if (values.length == 0)
+				return;
+
+			ProtobufWriter packed = new ProtobufWriter();
+			for (int v : values) {
+				packed.varint(v & 0xffffffffL);
+			}
+
+			writeMessage(field, packed.toByteArray());
+		}
+
+		byte[] toByteArray() {
+			return out.toByteArray();
+		}
+
+		private void tag(int field, int wireType) {
+			varint((field << 3) | wireType);
+		}
+
+		private void varint(long value) {
+			while ((value & ~0x7fL) != 0) {
+				out.write((int) ((value & 0x7f) | 0x80));
+				value >>>= 7;
+			}
+
+			out.write((int) value);
+		}
+	}
+}
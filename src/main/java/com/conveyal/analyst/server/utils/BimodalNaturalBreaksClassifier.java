@@ -30,24 +30,20 @@ public class BimodalNaturalBreaksClassifier extends Classifier {
 		
 		bins = new ArrayList<Bin>(numCategories);
 		
-		double[] values = new double[qr.items.size()];
+		double[] values = new double[qr.size()];
 		
 		// these are where we insert the next values into the array
 		// we insert values below middle at the start and values above at the end
 		int lower = 0;
-		int upper = qr.items.size() - 1;
+		int upper = qr.size() - 1;
 		
-		for (QueryResults.QueryResultItem item : qr.items.values()) {
-			if (item.value == null) {
-				throw new NullPointerException("Item value should not be null");
-			}
-			
-			if (item.value > center) {
-				values[upper] = item.value;
+		for (double value : qr.values) {
+			if (value > center) {
+				values[upper] = value;
 				upper--;
 			}
 			else {
-				values[lower] = item.value;
+				values[lower] = value;
 				lower++;
 			}
 		}
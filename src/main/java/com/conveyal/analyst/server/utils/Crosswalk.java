@@ -0,0 +1,407 @@
+package com.conveyal.analyst.server.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometry;
+import com.vividsolutions.jts.geom.prep.PreparedGeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import gnu.trove.map.hash.TObjectIntHashMap;
+import models.Shapefile;
+import models.Shapefile.ShapeFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.Collectors;
+
+/**
+ * An areal crosswalk between two shapefiles: for every feature of the source shapefile, the fraction of its area that
+ * lies within each feature of the target shapefile that it overlaps. This depends only on the geometries, so it is
+ * computed once for each pair of shapefiles and stored next to the shape data, and is then used to aggregate any query
+ * result from one to the other.
+ *
+ * Features are identified by their index in the feature store of their shapefile, which is sorted by ID. The matrix is
+ * sparse, stored by source feature.
+ *
+ * Encoded like this:
+ *
+ * Header: CROSSWALK encoded as UTF
+ * int version
+ * UTF source shapefile ID
+ * UTF target shapefile ID
+ * int number of source features
+ * Repeated: source feature ID encoded as UTF
+ * int number of target features
+ * Repeated: target feature ID encoded as UTF
+ * Repeated, number of source features + 1 times: int offset of the first entry of each source feature (and the end)
+ * Repeated: int target feature of each entry
+ * Repeated: double fraction of each entry
+ */
+public class Crosswalk {
+	private static final Logger LOG = LoggerFactory.getLogger(Crosswalk.class);
+
+	public static final String MAGIC = "CROSSWALK";
+
+	public static final int VERSION = 1;
+
+	/** crosswalks in memory; they are small compared to the shapefiles, and stored on disk anyway */
+	private static final Cache<String, Crosswalk> cache = CacheBuilder.newBuilder()
+			.softValues()
+			.build();
+
+	/** attribute values of every feature of a shapefile, in store order */
+	private static final Cache<String, double[]> attributeCache = CacheBuilder.newBuilder()
+			.softValues()
+			.build();
+
+	public final String sourceId;
+
+	public final String targetId;
+
+	private final String[] sourceFeatures;
+
+	private final String[] targetFeatures;
+
+	/** feature ID -> index of the source features */
+	private final TObjectIntHashMap<String> sourceIndex;
+
+	/** offsets of the entries of each source feature in targets and fractions, with a final entry for the end */
+	private final int[] offsets;
+
+	private final int[] targets;
+
+	private final double[] fractions;
+
+	private Crosswalk (String sourceId, String targetId, String[] sourceFeatures, String[] targetFeatures,
+			int[] offsets, int[] targets, double[] fractions) {
+		this.sourceId = sourceId;
+		this.targetId = targetId;
+		this.sourceFeatures = sourceFeatures;
+		this.targetFeatures = targetFeatures;
+		this.offsets = offsets;
+		this.targets = targets;
+		this.fractions = fractions;
+
+		sourceIndex = new TObjectIntHashMap<>(sourceFeatures.length, 0.5f, -1);
+
+		for (int i = 0; i < sourceFeatures.length; i++) {
+			sourceIndex.put(sourceFeatures[i], i);
+		}
+	}
+
+	/** Get the crosswalk between two shapefiles, loading it from disk or computing it if need be */
+	public static Crosswalk get (Shapefile source, Shapefile target) {
+		try {
+			return cache.get(source.id + "_" + target.id, () -> {
+				File file = getFile(source.id, target.id);
+
+				if (file.exists())
+					return read(file);
+
+				Crosswalk crosswalk = compute(source, target);
+				crosswalk.write(file);
+				return crosswalk;
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** Delete all the crosswalks from or to a shapefile, and its cached attributes, e.g. because it is being deleted */
+	public static void delete (String shapefileId) {
+		cache.asMap().keySet().removeIf(key -> key.startsWith(shapefileId + "_") || key.endsWith("_" + shapefileId));
+		attributeCache.asMap().keySet().removeIf(key -> key.startsWith(shapefileId + "_"));
+
+		File[] files = Shapefile.getShapeDataPath().listFiles((dir, name) ->
+				name.startsWith("crosswalk_" + shapefileId + "_") || name.startsWith("crosswalk_") &&
+				name.endsWith("_" + shapefileId + ".dat"));
+
+		if (files != null) {
+			for (File file : files) {
+				file.delete();
+			}
+		}
+	}
+
+	/**
+	 * Get the values of an attribute for every feature of a shapefile, in store order, i.e. indexed the same way as
+	 * the source or target features of a crosswalk from or to the shapefile.
+	 */
+	public static double[] getAttributeValues (Shapefile shapefile, String attribute) {
+		try {
+			return attributeCache.get(shapefile.id + "_" + attribute, () -> shapefile.getShapeFeatureStore().getAll()
+					.stream()
+					.mapToDouble(f -> f.getAttribute(attribute))
+					.toArray());
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** the number of source features */
+	public int sourceSize () {
+		return sourceFeatures.length;
+	}
+
+	/** the number of target features */
+	public int targetSize () {
+		return targetFeatures.length;
+	}
+
+	/** the index of a source feature, or -1 if it is not in the source shapefile */
+	public int getSourceIndex (String featureId) {
+		return sourceIndex.get(featureId);
+	}
+
+	/** the ID of the target feature with the given index */
+	public String getTargetId (int target) {
+		return targetFeatures[target];
+	}
+
+	/**
+	 * Apportion values of the source features to the target features, in proportion to the fraction of each source
+	 * feature within each target feature. The values are indexed by source feature, and the result by target feature.
+	 */
+	public double[] apportion (double[] sourceValues) {
+		double[] ret = new double[targetFeatures.length];
+
+		for (int source = 0; source < sourceFeatures.length; source++) {
+			double value = sourceValues[source];
+
+			if (value == 0)
+				continue;
+
+			for (int entry = offsets[source]; entry < offsets[source + 1]; entry++) {
+				ret[targets[entry]] += value * fractions[entry];
+			}
+		}
+
+		return ret;
+	}
+
+	/**
+	 * Add the value times the fraction of the source feature within each target feature to the given target values.
+	 * This is the single-source form of apportion().
+	 */
+	public void apportion (int source, double value, double[] targetValues) {
+		for (int entry = offsets[source]; entry < offsets[source + 1]; entry++) {
+			targetValues[targets[entry]] += value * fractions[entry];
+		}
+	}
+
+	/** Compute the crosswalk between two shapefiles */
+	public static Crosswalk compute (Shapefile source, Shapefile target) {
+		long start = System.currentTimeMillis();
+
+		String[] sourceFeatures = source.getShapeFeatureStore().getAll().stream().map(f -> f.id).toArray(String[]::new);
+
+		TObjectIntHashMap<String> sourceIndex = new TObjectIntHashMap<>(sourceFeatures.length, 0.5f, -1);
+		for (int i = 0; i < sourceFeatures.length; i++) {
+			sourceIndex.put(sourceFeatures[i], i);
+		}
+
+		// make sure the areas of the source features are stored, so they are not reprojected, here or in future
+		source.storeAreas();
+
+		STRtree sourceTree = source.getSpatialIndex();
+
+		// Target features are independent, so compute them in parallel. Each one yields the source features it
+		// overlaps and how much of them it holds. There are usually fewer, larger targets, so each prepared target
+		// geometry is reused for many sources.
+		// This does not load all the features into memory; the parallel stream takes the disk-backed store in batches.
+		List<Column> columns = target.getShapeFeatureStore().getAll().parallelStream()
+				.map(feature -> computeColumn(feature, sourceTree, sourceIndex))
+				.collect(Collectors.toList());
+
+		String[] targetFeatures = new String[columns.size()];
+
+		// transpose into rows by source feature, first counting the entries of each source
+		int[] offsets = new int[sourceFeatures.length + 1];
+
+		for (int target = 0; target < columns.size(); target++) {
+			Column column = columns.get(target);
+			targetFeatures[target] = column.id;
+
+			for (int source : column.sources) {
+				offsets[source + 1]++;
+			}
+		}
+
+		for (int source = 0; source < sourceFeatures.length; source++) {
+			offsets[source + 1] += offsets[source];
+		}
+
+		int[] targets = new int[offsets[sourceFeatures.length]];
+		double[] fractions = new double[targets.length];
+		int[] next = Arrays.copyOf(offsets, sourceFeatures.length);
+
+		// targets are visited in order, so the entries of each source are sorted by target
+		for (int target = 0; target < columns.size(); target++) {
+			Column column = columns.get(target);
+
+			for (int i = 0; i < column.sources.length; i++) {
+				int entry = next[column.sources[i]]++;
+				targets[entry] = target;
+				fractions[entry] = column.fractions[i];
+			}
+		}
+
+		LOG.info("Computed crosswalk from shapefile {} to {} with {} entries in {}ms", source.id, target.id,
+				targets.length, System.currentTimeMillis() - start);
+
+		return new Crosswalk(source.id, target.id, sourceFeatures, targetFeatures, offsets, targets, fractions);
+	}
+
+	/** compute the fraction of each source feature overlapping a target feature that lies within the target */
+	private static Column computeColumn (ShapeFeature feature, STRtree sourceTree,
+			TObjectIntHashMap<String> sourceIndex) {
+		// prepared geometries index their segments, so repeated containment and intersection tests are much faster
+		PreparedGeometry prepared = PreparedGeometryFactory.prepare(feature.geom);
+
+		List<ShapeFeature> candidates = sourceTree.query(feature.geom.getEnvelopeInternal());
+
+		int[] sources = new int[candidates.size()];
+		double[] fractions = new double[candidates.size()];
+		int count = 0;
+
+		for (ShapeFeature candidate : candidates) {
+			Geometry geom = candidate.geom;
+			double fraction;
+
+			// Complete containment is the common case, and is detected without computing an intersection
+			if (prepared.contains(geom))
+				fraction = 1;
+			else if (!prepared.intersects(geom))
+				continue;
+			else {
+				double area = candidate.getArea();
+
+				// don't divide by zeroish
+				if (area < 0.0000000001)
+					continue;
+
+				Geometry overlap = geom.intersection(feature.geom);
+
+				if (overlap.isEmpty())
+					continue;
+
+				fraction = GeoUtils.getArea(overlap) / area;
+			}
+
+			sources[count] = sourceIndex.get(candidate.id);
+			fractions[count] = fraction;
+			count++;
+		}
+
+		return new Column(feature.id, Arrays.copyOf(sources, count), Arrays.copyOf(fractions, count));
+	}
+
+	public void write (File file) {
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(sourceId);
+			out.writeUTF(targetId);
+
+			out.writeInt(sourceFeatures.length);
+			for (String id : sourceFeatures) {
+				out.writeUTF(id);
+			}
+
+			out.writeInt(targetFeatures.length);
+			for (String id : targetFeatures) {
+				out.writeUTF(id);
+			}
+
+			for (int offset : offsets) {
+				out.writeInt(offset);
+			}
+
+			for (int target : targets) {
+				out.writeInt(target);
+			}
+
+			for (double fraction : fractions) {
+				out.writeDouble(fraction);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// move into place so a partially written crosswalk is never read
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static Crosswalk read (File file) {
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (!MAGIC.equals(in.readUTF()))
+				throw new IllegalArgumentException("Attempt to read non-crosswalk file");
+
+			int version = in.readInt();
+			if (version != VERSION)
+				throw new IllegalArgumentException("Unsupported crosswalk version " + version);
+
+			String sourceId = in.readUTF();
+			String targetId = in.readUTF();
+
+			String[] sourceFeatures = new String[in.readInt()];
+			for (int i = 0; i < sourceFeatures.length; i++) {
+				sourceFeatures[i] = in.readUTF();
+			}
+
+			String[] targetFeatures = new String[in.readInt()];
+			for (int i = 0; i < targetFeatures.length; i++) {
+				targetFeatures[i] = in.readUTF();
+			}
+
+			int[] offsets = new int[sourceFeatures.length + 1];
+			for (int i = 0; i < offsets.length; i++) {
+				offsets[i] = in.readInt();
+			}
+
+			int[] targets = new int[offsets[sourceFeatures.length]];
+			for (int i = 0; i < targets.length; i++) {
+				targets[i] = in.readInt();
+			}
+
+			double[] fractions = new double[targets.length];
+			for (int i = 0; i < fractions.length; i++) {
+				fractions[i] = in.readDouble();
+			}
+
+			return new Crosswalk(sourceId, targetId, sourceFeatures, targetFeatures, offsets, targets, fractions);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static File getFile (String sourceId, String targetId) {
+		return new File(Shapefile.getShapeDataPath(), "crosswalk_" + sourceId + "_" + targetId + ".dat");
+	}
+
+	/** the entries of the crosswalk for a single target feature */
+	private static class Column {
+		final String id;
+		final int[] sources;
+		final double[] fractions;
+
+		Column (String id, int[] sources, double[] fractions) {
+			this.id = id;
+			this.sources = sources;
+			this.fractions = fractions;
+		}
+	}
+}
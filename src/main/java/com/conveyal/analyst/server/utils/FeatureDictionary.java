@@ -0,0 +1,84 @@
+package com.conveyal.analyst.server.utils;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Interns the feature IDs of a query result store. Every envelope writes the same feature ID to the files for every
+ * variable and envelope parameter, so rather than encoding the ID in each of them we store it once here and refer to
+ * it by index.
+ *
+ * Encoded like this:
+ *
+ * Header: QUERYFEATURES encoded as UTF
+ * int number of features
+ * Repeated:
+ *   Feature ID encoded as UTF, in index order
+ */
+public class FeatureDictionary {
+	public static final String MAGIC = "QUERYFEATURES";
+
+	private final List<String> ids = new ArrayList<>();
+
+	private final TObjectIntHashMap<String> indices = new TObjectIntHashMap<>(10, 0.5f, -1);
+
+	/** Get the index of a feature ID, adding it to the dictionary if it is not already present */
+	public synchronized int getIndex (String id) {
+		if (id == null)
+			throw new NullPointerException("Feature ID is null!");
+
+		int index = indices.get(id);
+
+		if (index == -1) {
+			index = ids.size();
+			ids.add(id);
+			indices.put(id, index);
+		}
+
+		return index;
+	}
+
+	/** Get the feature ID with the given index */
+	public synchronized String getId (int index) {
+		return ids.get(index);
+	}
+
+	public synchronized int size () {
+		return ids.size();
+	}
+
+	public synchronized void write (File file) {
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+			out.writeUTF(MAGIC);
+			out.writeInt(ids.size());
+
+			for (String id : ids) {
+				out.writeUTF(id);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	public static FeatureDictionary read (File file) {
+		FeatureDictionary ret = new FeatureDictionary();
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (!MAGIC.equals(in.readUTF()))
+				throw new IllegalArgumentException("Attempt to read non-feature-dictionary file");
+
+			int size = in.readInt();
+
+			for (int i = 0; i < size; i++) {
+				ret.getIndex(in.readUTF());
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		return ret;
+	}
+}
@@ -33,8 +33,6 @@ public class GeoUtils {
    public static GeometryFactory geometryFactory = new GeometryFactory(new PrecisionModel(),4326);
    public static GeometryFactory projectedGeometryFactory = new GeometryFactory(new PrecisionModel());
 
-   private static MathTransform aeaTransform = null;
-   
    /**
     * From
     * http://gis.stackexchange.com/questions/28986/geotoolkit-conversion-from
@@ -114,26 +112,33 @@ public class GeoUtils {
     * 
     * The units are undefined because the scale varies across the map. However, two calls to getArea yield
     * units that are comparable.
+    *
+    * This reprojects the whole geometry, so use ShapeFeature.getArea() for the features of shapefiles, which is
+    * computed once when the shapefile is imported.
     */
    public static double getArea (Geometry geom) {
 	   // project the geometry to a cylindrical equal-area projection
-	   if (aeaTransform == null) {
+	   try {
+		   Geometry newGeom = JTS.transform(geom, AeaTransform.TRANSFORM);
+		   return newGeom.getArea();
+	   } catch (Exception e) {
+		   throw new RuntimeException(e);
+	   }
+   }
+
+   /** Holds the equal-area transform, so that it is created exactly once, on first use, however many threads use it */
+   private static class AeaTransform {
+	   static final MathTransform TRANSFORM;
+
+	   static {
 		   try {
 			   CoordinateReferenceSystem aea = CRS.parseWKT("PROJCS[\"unnamed\",GEOGCS[\"WGS 84\",DATUM[\"WGS_1984\",SPHEROID[\"WGS 84\",6378137,298.257223563,AUTHORITY[\"EPSG\",\"7030\"]],TOWGS84[0,0,0,0,0,0,0],AUTHORITY[\"EPSG\",\"6326\"]],PRIMEM[\"Greenwich\",0,AUTHORITY[\"EPSG\",\"8901\"]],UNIT[\"degree\",0.0174532925199433,AUTHORITY[\"EPSG\",\"9108\"]],AUTHORITY[\"EPSG\",\"4326\"]],PROJECTION[\"Albers_Conic_Equal_Area\"],PARAMETER[\"standard_parallel_1\",0],PARAMETER[\"standard_parallel_2\",30],PARAMETER[\"latitude_of_center\",0],PARAMETER[\"longitude_of_center\",0],PARAMETER[\"false_easting\",0],PARAMETER[\"false_northing\",0],UNIT[\"Meter\",1]]");
 
-			   aeaTransform = CRS.findMathTransform(DefaultGeographicCRS.WGS84, aea);
+			   TRANSFORM = CRS.findMathTransform(DefaultGeographicCRS.WGS84, aea);
 		   } catch (Exception e) {
 			   throw new RuntimeException(e);
 		   }
 	   }
-	   
-	   // perform the transformation
-	   try {
-		   Geometry newGeom = JTS.transform(geom, aeaTransform);
-		   return newGeom.getArea();
-	   } catch (Exception e) {
-		   throw new RuntimeException(e);
-	   }
    }
 
     /**
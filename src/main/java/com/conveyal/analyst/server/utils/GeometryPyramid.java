@@ -0,0 +1,343 @@
+package com.conveyal.analyst.server.utils;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import com.vividsolutions.jts.index.strtree.STRtree;
+import com.vividsolutions.jts.io.ParseException;
+import com.vividsolutions.jts.io.WKBReader;
+import com.vividsolutions.jts.io.WKBWriter;
+import com.vividsolutions.jts.simplify.TopologyPreservingSimplifier;
+import gnu.trove.set.hash.TLongHashSet;
+import models.Shapefile;
+import models.Shapefile.ShapeFeature;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.stream.IntStream;
+
+/**
+ * Generalized geometries of the features of a shapefile for drawing at low zooms, where full-resolution geometries
+ * have far more detail than can be seen and take far longer to draw. There is a level for each band of zooms, with
+ * geometries simplified to half a pixel at the highest zoom of the band, preserving topology.
+ *
+ * Each feature is simplified on its own, which preserves the topology of the feature but not the edges it shares with
+ * its neighbours: adjacent polygons may simplify a shared edge differently, leaving slivers of gap or overlap up to a
+ * pixel wide between them, which can show as seams with translucent fills.
+ *
+ * Features smaller than a pixel are culled: each pixel they fall in is drawn as the first such feature in it (as a
+ * square filling the pixel, if it is a polygon), and the others in the same pixel are left out. Dropping them all
+ * would leave holes where there are many small features, e.g. census blocks in a city.
+ *
+ * Pyramids are computed when shapefiles are imported (or the first time they are needed, for older shapefiles) and
+ * stored next to the shape data. Encoded like this:
+ *
+ * Header: PYRAMID encoded as UTF
+ * int version
+ * UTF shapefile ID
+ * int number of levels
+ * Repeated: int highest zoom of each level
+ * int number of features
+ * Repeated: feature ID encoded as UTF, in store order
+ * Repeated for each level, then each feature: int length of the WKB of the geometry (-1 if it is culled), the WKB
+ */
+public class GeometryPyramid {
+	private static final Logger LOG = LoggerFactory.getLogger(GeometryPyramid.class);
+
+	public static final String MAGIC = "PYRAMID";
+
+	public static final int VERSION = 1;
+
+	/** the highest zoom of each level. Tiles at higher zooms are drawn from the full-resolution geometries. */
+	public static final int[] ZOOMS = { 4, 6, 8, 10, 12 };
+
+	private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+	/** pyramids in memory; they hold copies of the features, so are released when memory is short */
+	private static final Cache<String, GeometryPyramid> cache = CacheBuilder.newBuilder()
+			.softValues()
+			.build();
+
+	public final String shapefileId;
+
+	/** the features of each level, with generalized geometries */
+	private final STRtree[] levels;
+
+	private GeometryPyramid (String shapefileId, STRtree[] levels) {
+		this.shapefileId = shapefileId;
+		this.levels = levels;
+	}
+
+	/** Get the pyramid of a shapefile, loading it from disk or computing it if need be */
+	public static GeometryPyramid get (Shapefile shapefile) {
+		try {
+			return cache.get(shapefile.id, () -> {
+				File file = getFile(shapefile.id);
+				Collection<ShapeFeature> features = shapefile.getShapeFeatureStore().getAll();
+
+				if (file.exists()) {
+					GeometryPyramid pyramid = read(file, features);
+
+					// null if the shapefile has changed since the pyramid was computed
+					if (pyramid != null)
+						return pyramid;
+				}
+
+				Geometry[][] geometries = compute(shapefile);
+				write(file, shapefile.id, features, geometries);
+				return new GeometryPyramid(shapefile.id, index(features, geometries));
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/** Delete the pyramid of a shapefile, e.g. because it is being deleted */
+	public static void delete (String shapefileId) {
+		cache.invalidate(shapefileId);
+		getFile(shapefileId).delete();
+	}
+
+	/** the level to draw tiles of the given zoom from, or -1 if they should be drawn at full resolution */
+	public static int getLevel (int zoom) {
+		for (int level = 0; level < ZOOMS.length; level++) {
+			if (zoom <= ZOOMS[level])
+				return level;
+		}
+
+		return -1;
+	}
+
+	/** Get the features at a level intersecting the envelope, with generalized geometries */
+	public List<ShapeFeature> query (Envelope env, int level) {
+		return levels[level].query(env);
+	}
+
+	/** Compute generalized geometries of the features of a shapefile at every level, in store order */
+	public static Geometry[][] compute (Shapefile shapefile) {
+		long start = System.currentTimeMillis();
+
+		ShapeFeature[] features = shapefile.getShapeFeatureStore().getAll().toArray(new ShapeFeature[0]);
+
+		Geometry[][] geometries = new Geometry[ZOOMS.length][];
+
+		for (int level = 0; level < ZOOMS.length; level++) {
+			int zoom = ZOOMS[level];
+			Geometry[] generalized = new Geometry[features.length];
+
+			// the pixels claimed by a feature smaller than a pixel
+			TLongHashSet claimed = new TLongHashSet();
+
+			// simplify in parallel, then cull in store order so that the same features are always kept
+			boolean[] small = new boolean[features.length];
+
+			IntStream.range(0, features.length).parallel().forEach(i -> {
+				Geometry geom = features[i].geom;
+				Envelope env = geom.getEnvelopeInternal();
+
+				if (pixelX(env.getMaxX(), zoom) - pixelX(env.getMinX(), zoom) < 1 &&
+						pixelY(env.getMinY(), zoom) - pixelY(env.getMaxY(), zoom) < 1) {
+					small[i] = true;
+					return;
+				}
+
+				// Half a pixel. In web mercator a pixel spans the same degrees of longitude everywhere, but fewer degrees
+				// of latitude away from the equator, by cos(latitude); use the smaller so no vertex moves more than that.
+				double tolerance = 0.5 * 360 / (256 * Math.pow(2, zoom)) *
+						Math.cos(Math.toRadians(env.centre().y));
+				generalized[i] = TopologyPreservingSimplifier.simplify(geom, tolerance);
+			});
+
+			int culled = 0;
+
+			for (int i = 0; i < features.length; i++) {
+				if (!small[i])
+					continue;
+
+				Envelope env = features[i].geom.getEnvelopeInternal();
+				long px = (long) Math.floor(pixelX(env.centre().x, zoom));
+				long py = (long) Math.floor(pixelY(env.centre().y, zoom));
+
+				if (!claimed.add(px << 32 | py))
+					culled++;
+				else if (features[i].geom.getDimension() == 2)
+					generalized[i] = GEOMETRY_FACTORY.toGeometry(new Envelope(lon(px, zoom), lon(px + 1, zoom),
+							lat(py + 1, zoom), lat(py, zoom)));
+				else
+					// points and lines are drawn as they are
+					generalized[i] = features[i].geom;
+			}
+
+			geometries[level] = generalized;
+
+			LOG.info("Generalized {} features of shapefile {} for zoom {}, culling {}", features.length, shapefile.id,
+					zoom, culled);
+		}
+
+		LOG.info("Computed geometry pyramid for shapefile {} in {}ms", shapefile.id,
+				System.currentTimeMillis() - start);
+
+		return geometries;
+	}
+
+	/** build a spatial index of copies of the features for each level, with their generalized geometries */
+	private static STRtree[] index (Collection<ShapeFeature> features, Geometry[][] geometries) {
+		STRtree[] levels = new STRtree[geometries.length];
+
+		for (int level = 0; level < geometries.length; level++) {
+			Geometry[] levelGeometries = geometries[level];
+
+			levels[level] = SpatialIndexes.build(tree -> {
+				int i = 0;
+				for (ShapeFeature feature : features) {
+					Geometry geom = levelGeometries[i++];
+
+					if (geom == null)
+						continue;
+
+					ShapeFeature generalized = new ShapeFeature();
+					generalized.id = feature.id;
+					generalized.geom = geom;
+					generalized.attributes = feature.attributes;
+					tree.insert(geom.getEnvelopeInternal(), generalized);
+				}
+			});
+		}
+
+		return levels;
+	}
+
+	public static void write (File file, String shapefileId, Collection<ShapeFeature> features,
+			Geometry[][] geometries) {
+		File tmp = new File(file.getParentFile(), file.getName() + ".tmp");
+		WKBWriter writer = new WKBWriter();
+
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+			out.writeUTF(MAGIC);
+			out.writeInt(VERSION);
+			out.writeUTF(shapefileId);
+
+			out.writeInt(ZOOMS.length);
+			for (int zoom : ZOOMS) {
+				out.writeInt(zoom);
+			}
+
+			out.writeInt(features.size());
+			for (ShapeFeature feature : features) {
+				out.writeUTF(feature.id);
+			}
+
+			for (Geometry[] level : geometries) {
+				for (Geometry geom : level) {
+					if (geom == null) {
+						out.writeInt(-1);
+						continue;
+					}
+
+					byte[] wkb = writer.write(geom);
+					out.writeInt(wkb.length);
+					out.write(wkb);
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// move into place so a partially written pyramid is never read
+		try {
+			Files.move(tmp.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Read a pyramid, returning null if it was computed with different levels or from different features than those
+	 * given, which must be in store order.
+	 */
+	public static GeometryPyramid read (File file, Collection<ShapeFeature> features) {
+		WKBReader reader = new WKBReader(GEOMETRY_FACTORY);
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+			if (!MAGIC.equals(in.readUTF()))
+				throw new IllegalArgumentException("Attempt to read non-pyramid file");
+
+			int version = in.readInt();
+			if (version != VERSION)
+				return null;
+
+			String shapefileId = in.readUTF();
+
+			int[] zooms = new int[in.readInt()];
+			for (int i = 0; i < zooms.length; i++) {
+				zooms[i] = in.readInt();
+			}
+
+			if (!Arrays.equals(zooms, ZOOMS))
+				return null;
+
+			if (in.readInt() != features.size())
+				return null;
+
+			for (ShapeFeature feature : features) {
+				if (!feature.id.equals(in.readUTF()))
+					return null;
+			}
+
+			Geometry[][] geometries = new Geometry[zooms.length][features.size()];
+
+			for (Geometry[] level : geometries) {
+				for (int i = 0; i < level.length; i++) {
+					int length = in.readInt();
+
+					if (length == -1)
+						continue;
+
+					byte[] wkb = new byte[length];
+					in.readFully(wkb);
+					level[i] = reader.read(wkb);
+				}
+			}
+
+			return new GeometryPyramid(shapefileId, index(features, geometries));
+		} catch (IOException | ParseException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	private static File getFile (String shapefileId) {
+		return new File(Shapefile.getShapeDataPath(), "pyramid_" + shapefileId + ".dat");
+	}
+
+	/** x in web mercator pixels at the given zoom */
+	private static double pixelX (double lon, int zoom) {
+		return (lon + 180) / 360 * 256 * Math.pow(2, zoom);
+	}
+
+	/** y in web mercator pixels at the given zoom, increasing southwards */
+	private static double pixelY (double lat, int zoom) {
+		double rad = Math.toRadians(lat);
+		return (1 - Math.log(Math.tan(rad) + 1 / Math.cos(rad)) / Math.PI) / 2 * 256 * Math.pow(2, zoom);
+	}
+
+	/** the longitude of a web mercator pixel x */
+	private static double lon (double x, int zoom) {
+		return x / (256 * Math.pow(2, zoom)) * 360 - 180;
+	}
+
+	/** the latitude of a web mercator pixel y */
+	private static double lat (double y, int zoom) {
+		double n = Math.PI - 2 * Math.PI * y / (256 * Math.pow(2, zoom));
+		return Math.toDegrees(Math.atan(Math.sinh(n)));
+	}
+}
@@ -4,8 +4,6 @@ import com.vividsolutions.jts.geom.Coordinate;
 import com.vividsolutions.jts.geom.Envelope;
 import com.vividsolutions.jts.geom.Geometry;
 import com.vividsolutions.jts.geom.Polygon;
-import org.opengis.referencing.operation.MathTransform;
-import org.opengis.referencing.operation.TransformException;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -17,6 +15,8 @@ public class HaltonPoints {
 	private int numPoints; 
 	
 	private double[] coords;
+	
+	private double[] mercatorCoords;
 
 	public HaltonPoints(Geometry geom, Integer numberPoints) {
 		if(numberPoints < 0) 
@@ -71,17 +71,21 @@ public class HaltonPoints {
 	}
 	
 	
-	public double[] transformPoints(MathTransform transform) {
-	
-		double[] transformedCoords = new double[coords.length];
+	/** the points projected to web mercator metres, packed x, y; projected once and kept for every tile drawn */
+	public double[] getMercatorCoords() {
 		
-		try {
-			transform.transform(coords, 0, transformedCoords, 0, coords.length/2);
-		} catch (TransformException e) {
-			LOG.error("Transform exception", e);
+		if(mercatorCoords == null) {
+			double[] projected = new double[coords.length];
+			
+			for(int i = 0; i < coords.length; i += 2) {
+				projected[i] = MercatorGeometry.x(coords[i]);
+				projected[i+1] = MercatorGeometry.y(coords[i+1]);
+			}
+			
+			mercatorCoords = projected;
 		}
 		
-		return transformedCoords;
+		return mercatorCoords;
 	}
 	
 	private double haltonNumber(int index, int base) {
@@ -0,0 +1,101 @@
+package com.conveyal.analyst.server.utils;
+
+import com.vividsolutions.jts.geom.CoordinateSequence;
+import com.vividsolutions.jts.geom.Geometry;
+import com.vividsolutions.jts.geom.LineString;
+import com.vividsolutions.jts.geom.Point;
+import com.vividsolutions.jts.geom.Polygon;
+import gnu.trove.list.array.TIntArrayList;
+
+/**
+ * The coordinates of a geometry projected to web mercator metres and packed into a single array. Tiles map them to
+ * pixels with a scale and an offset, rather than transforming and copying the geometry for every tile.
+ */
+public class MercatorGeometry {
+	/** the radius of the sphere web mercator projects from, in metres */
+	public static final double EARTH_RADIUS = 6378137;
+
+	/** half the width (and height) of the world in web mercator, in metres */
+	public static final double HALF_WORLD = Math.PI * EARTH_RADIUS;
+
+	/** the latitude of the top and bottom edges of the world in web mercator */
+	public static final double MAX_LAT = 85.0511287798;
+
+	/** x and y of each point, in web mercator metres */
+	public final double[] coords;
+
+	/** the index in coords of the first x of each ring or line, then the length of coords */
+	public final int[] parts;
+
+	/** 0 for points, 1 for lines, 2 for polygons */
+	public final int dimension;
+
+	public MercatorGeometry (Geometry geom) {
+		this.dimension = geom.getDimension();
+
+		// the number of points is known up front, so fill the array directly rather than growing it
+		this.coords = new double[geom.getNumPoints() * 2];
+
+		TIntArrayList parts = new TIntArrayList();
+		int end = addGeometry(geom, parts, 0);
+		parts.add(end);
+
+		this.parts = parts.toArray();
+	}
+
+	/** the number of rings or lines (or points) */
+	public int getNumParts () {
+		return parts.length - 1;
+	}
+
+	/** add the rings, lines or points of a geometry, returning the index in coords after them */
+	private int addGeometry (Geometry geom, TIntArrayList parts, int offset) {
+		if (geom instanceof Polygon) {
+			Polygon polygon = (Polygon) geom;
+			offset = addSequence(polygon.getExteriorRing().getCoordinateSequence(), parts, offset);
+
+			for (int i = 0; i < polygon.getNumInteriorRing(); i++) {
+				offset = addSequence(polygon.getInteriorRingN(i).getCoordinateSequence(), parts, offset);
+			}
+		}
+		else if (geom instanceof LineString) {
+			offset = addSequence(((LineString) geom).getCoordinateSequence(), parts, offset);
+		}
+		else if (geom instanceof Point) {
+			offset = addSequence(((Point) geom).getCoordinateSequence(), parts, offset);
+		}
+		else {
+			// multi-geometries and collections
+			for (int i = 0; i < geom.getNumGeometries(); i++) {
+				offset = addGeometry(geom.getGeometryN(i), parts, offset);
+			}
+		}
+
+		return offset;
+	}
+
+	private int addSequence (CoordinateSequence seq, TIntArrayList parts, int offset) {
+		if (seq.size() == 0)
+			return offset;
+
+		parts.add(offset);
+
+		for (int i = 0; i < seq.size(); i++) {
+			coords[offset++] = x(seq.getX(i));
+			coords[offset++] = y(seq.getY(i));
+		}
+
+		return offset;
+	}
+
+	/** web mercator x of a longitude, in metres */
+	public static double x (double lon) {
+		return Math.toRadians(lon) * EARTH_RADIUS;
+	}
+
+	/** web mercator y of a latitude, in metres, increasing northwards */
+	public static double y (double lat) {
+		lat = Math.max(-MAX_LAT, Math.min(MAX_LAT, lat));
+		return Math.log(Math.tan(Math.PI / 4 + Math.toRadians(lat) / 2)) * EARTH_RADIUS;
+	}
+}
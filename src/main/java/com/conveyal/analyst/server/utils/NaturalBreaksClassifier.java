@@ -9,13 +9,8 @@ public class NaturalBreaksClassifier extends Classifier {
 	public List<Bin> bins = new ArrayList<Bin>();
 	
 	public NaturalBreaksClassifier(QueryResults qr, int numCategories, Color color1, Color color2) {
-		double[] list = new double[qr.items.size()];
-		
-		Iterator<QueryResults.QueryResultItem> qrIt = qr.items.values().iterator();
-		
-		for (int i = 0; i < list.length; i++) {
-			list[i] = qrIt.next().value;
-		}
+		// copy, the values of the query results are in feature order
+		double[] list = qr.values.clone();
 		
 		Arrays.sort(list);
 		
@@ -52,8 +47,127 @@ public class NaturalBreaksClassifier extends Classifier {
 
 	/**
 	 * Build Jenks breaks for the given list, which is assumed to be already sorted.
+	 *
+	 * Jenks natural breaks minimise the sum of squared deviations from the class means, which is exactly optimal
+	 * k-means in one dimension. That is solved here by dynamic programming as in Ckmeans (Wang and Song, "Ckmeans.1d.dp:
+	 * Optimal k-means Clustering in One Dimension by Dynamic Programming", The R Journal 3/2, 2011), with each row of
+	 * the program filled by divide and conquer, because the optimal start of the last class never decreases as the
+	 * classes extend further. This takes O(k n log n) time, so it uses all of the values rather than a sample.
+	 *
+	 * The first and last breaks are just below the minimum and just above the maximum, and each break in between is the
+	 * largest value of the class below it. Returns an empty array if there are no values, or fewer values than classes.
 	 */
 	public static double[] buildJenksBreaks(double[] list, int numclass) {
+		int n = list.length;
+
+		if (n == 0 || numclass < 1 || numclass > n)
+			return new double[0];
+
+		// cumulative sums of the values and their squares, shifted by the median to avoid catastrophic cancellation
+		// when computing the sums of squared deviations of large values
+		double shift = list[n / 2];
+		double[] sum = new double[n + 1];
+		double[] sumSquares = new double[n + 1];
+
+		for (int i = 0; i < n; i++) {
+			double val = list[i] - shift;
+			sum[i + 1] = sum[i] + val;
+			sumSquares[i + 1] = sumSquares[i] + val * val;
+		}
+
+		// cost[i]: the least sum of squared deviations of the values up to and including i, in the classes so far
+		double[] cost = new double[n];
+		double[] nextCost = new double[n];
+
+		// start[c][i]: the first value of class c, in the best classification of the values up to i into c + 1 classes
+		int[][] start = new int[numclass][n];
+
+		for (int i = 0; i < n; i++) {
+			cost[i] = sumOfSquares(sum, sumSquares, 0, i);
+		}
+
+		for (int c = 1; c < numclass; c++) {
+			fillRow(c, c, n - 1, c, n - 1, cost, nextCost, start[c - 1], start[c], sum, sumSquares);
+
+			double[] tmp = cost;
+			cost = nextCost;
+			nextCost = tmp;
+		}
+
+		double[] breaks = new double[numclass + 1];
+
+		// list is sorted, first and last breaks are min and max
+		breaks[numclass] = list[n - 1] + 0.0000001;
+		breaks[0] = list[0] - 0.0000001;
+
+		// walk back through the classes, from the last
+		int last = n - 1;
+
+		for (int c = numclass - 1; c >= 1; c--) {
+			int first = start[c][last];
+			breaks[c] = list[first - 1];
+			last = first - 1;
+		}
+
+		return breaks;
+	}
+
+	/**
+	 * Fill in the costs of classifying the values up to each of first through last into c + 1 classes, knowing that the
+	 * last class starts between minStart and maxStart. cost holds the costs for c classes.
+	 */
+	private static void fillRow(int c, int first, int last, int minStart, int maxStart, double[] cost,
+			double[] nextCost, int[] previousStart, int[] start, double[] sum, double[] sumSquares) {
+		if (first > last)
+			return;
+
+		int i = (first + last) / 2;
+
+		// every class needs at least one value, and the last class never starts earlier than it does with fewer classes
+		int from = Math.max(Math.max(c, minStart), previousStart[i]);
+		int to = Math.min(i, maxStart);
+
+		double best = Double.POSITIVE_INFINITY;
+		int bestStart = to;
+
+		// Search from the latest start. The cost of the last class only grows as it starts earlier, so once that alone
+		// is no better than the best so far, no earlier start can be better.
+		for (int j = to; j >= from; j--) {
+			double lastClass = sumOfSquares(sum, sumSquares, j, i);
+
+			if (lastClass >= best)
+				break;
+
+			double candidate = cost[j - 1] + lastClass;
+
+			if (candidate < best) {
+				best = candidate;
+				bestStart = j;
+			}
+		}
+
+		nextCost[i] = best;
+		start[i] = bestStart;
+
+		// the best start is monotonic, so the values on either side of i need only consider starts on their side
+		fillRow(c, first, i - 1, minStart, bestStart, cost, nextCost, previousStart, start, sum, sumSquares);
+		fillRow(c, i + 1, last, bestStart, maxStart, cost, nextCost, previousStart, start, sum, sumSquares);
+	}
+
+	/** the sum of squared deviations from their mean of the values from j to i inclusive, from cumulative sums */
+	private static double sumOfSquares(double[] sum, double[] sumSquares, int j, int i) {
+		double s = sum[i + 1] - sum[j];
+		double ret = sumSquares[i + 1] - sumSquares[j] - s * s / (i - j + 1);
+		// rounding can make this slightly negative
+		return ret > 0 ? ret : 0;
+	}
+
+	/**
+	 * Build Jenks breaks for the given list, which is assumed to be already sorted, with the classic O(n^2 k) dynamic
+	 * program over a sample of at most about 2000 values. This was used before buildJenksBreaks, and is kept for
+	 * comparison.
+	 */
+	public static double[] buildSampledJenksBreaks(double[] list, int numclass) {
 		try {
 			// If there are more than 2000 values, take a systematic sample
 			// This is what is done by QGIS:
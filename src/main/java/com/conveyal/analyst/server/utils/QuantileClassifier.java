@@ -0,0 +1,136 @@
+package com.conveyal.analyst.server.utils;
+
+import com.conveyal.analyst.server.AnalystMain;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Classifies values into classes holding about equal numbers of values, with breaks at quantiles read from a
+ * QuantileSketch. Used for results that are too large to classify by natural breaks quickly, since the sketch is built
+ * in a single parallel pass without copying or sorting the values.
+ *
+ * Repeated values can't be split between classes, so there may be fewer classes than requested.
+ */
+public class QuantileClassifier extends Classifier {
+	/** results with more values than this are classified by quantiles rather than natural breaks */
+	public static final int THRESHOLD = Integer.parseInt(AnalystMain.config.getProperty(
+			"application.quantile-classifier-threshold", "2000000"));
+
+	public List<Bin> bins = new ArrayList<Bin>();
+
+	/** whether the classes are colored either side of a center value */
+	public final boolean centered;
+
+	public QuantileClassifier(QueryResults qr, int numCategories, Color color1, Color color2) {
+		centered = false;
+
+		double[] breaks = getBreaks(qr.getSketch(), numCategories);
+
+		if (breaks.length == 0)
+			return;
+
+		numCategories = breaks.length - 1;
+
+		for (int i = 0; i < numCategories; i++) {
+			// numcategories - 1: fencepost problem. The highest value should get color2
+			Color c;
+			if (numCategories > 1)
+				c = interpolateColor(color1, color2, (float)((float)i / (float) (numCategories - 1)));
+			else
+				c = interpolateColor(color1, color2, 0.5f);
+
+			bins.add(new Bin(breaks[i], breaks[i + 1], c));
+		}
+
+		finish(qr.maxPossible);
+	}
+
+	/**
+	 * Create a quantile classifier for values either side of a center value (e.g. zero in a comparison), coloring the
+	 * classes below the center from color1 to centerColor and those above from centerColor to color2. The class
+	 * containing the center gets centerColor.
+	 */
+	public QuantileClassifier(QueryResults qr, int numCategories, double center, Color color1, Color centerColor,
+			Color color2) {
+		centered = true;
+
+		double[] breaks = getBreaks(qr.getSketch(), numCategories);
+
+		if (breaks.length == 0)
+			return;
+
+		numCategories = breaks.length - 1;
+
+		// count the classes entirely below and entirely above the center
+		int below = 0, above = 0;
+
+		for (int i = 0; i < numCategories; i++) {
+			if (breaks[i + 1] <= center)
+				below++;
+			else if (breaks[i] > center)
+				above++;
+		}
+
+		for (int i = 0; i < numCategories; i++) {
+			Color c;
+
+			if (i < below)
+				c = interpolateColor(color1, centerColor, (float) i / (float) below);
+			else if (i >= numCategories - above)
+				c = interpolateColor(centerColor, color2, (float) (i - (numCategories - above) + 1) / (float) above);
+			else
+				c = centerColor;
+
+			bins.add(new Bin(breaks[i], breaks[i + 1], c));
+		}
+
+		finish(qr.maxPossible);
+	}
+
+	/** add percentages, and make sure that the minimum and maximum values fall in the bins */
+	private void finish (double maxPossible) {
+		addPercentagesToBins(maxPossible);
+
+		bins.get(0).lower -= 0.00000001;
+		bins.get(bins.size() - 1).upper += 0.00000001;
+	}
+
+	@Override
+	public List<Bin> getBins() {
+		return bins;
+	}
+
+	/**
+	 * Get the breaks between classes of about equal counts: the minimum, the quantiles between, and the maximum, with
+	 * repeated breaks removed. Returns an empty array if the sketch is empty.
+	 */
+	public static double[] getBreaks (QuantileSketch sketch, int numCategories) {
+		double[] fractions = new double[numCategories + 1];
+
+		for (int i = 0; i <= numCategories; i++) {
+			fractions[i] = (double) i / numCategories;
+		}
+
+		double[] quantiles = sketch.getQuantiles(fractions);
+
+		if (quantiles.length == 0)
+			return quantiles;
+
+		// a single value makes a single class
+		if (quantiles[0] == quantiles[numCategories])
+			return new double[] { quantiles[0], quantiles[0] };
+
+		int unique = 1;
+
+		for (int i = 1; i < quantiles.length; i++) {
+			if (quantiles[i] > quantiles[unique - 1])
+				quantiles[unique++] = quantiles[i];
+		}
+
+		double[] ret = new double[unique];
+		System.arraycopy(quantiles, 0, ret, 0, unique);
+		return ret;
+	}
+}
@@ -0,0 +1,250 @@
+package com.conveyal.analyst.server.utils;
+
+import java.util.Arrays;
+
+/**
+ * A mergeable streaming sketch of the distribution of a set of values, from which approximate quantiles can be read.
+ * This is a KLL sketch (Karnin, Lang and Liberty, "Optimal Quantile Approximation in Streams", FOCS 2016): values are
+ * kept in levels, an item at level h standing for 2^h values. When a level is full it is sorted and every other item
+ * is promoted to the next level. Lower levels have geometrically smaller capacities, so the sketch holds O(k) items
+ * however many values are added, and the rank error of a quantile is about 1.7 / k.
+ *
+ * Sketches of different parts of a data set can be merged into a sketch of the whole, so a sketch can be built in
+ * parallel, e.g. with DoubleStream.collect. Which item of each pair is promoted alternates rather than being random,
+ * so a sketch of the same values added in the same order is always the same.
+ *
+ * Not thread-safe; use a sketch per thread and merge them.
+ */
+public class QuantileSketch {
+	public static final int DEFAULT_K = 200;
+
+	/** the smallest capacity of any level */
+	private static final int MIN_CAPACITY = 8;
+
+	/** capacity of the top level */
+	private final int k;
+
+	/** the items at each level, sorted when the level is compacted */
+	private double[][] levels = new double[1][];
+
+	/** the number of items at each level */
+	private int[] sizes = new int[1];
+
+	/** the capacity of each level, which depends on the number of levels */
+	private int[] capacities;
+
+	/** the number of items at all levels */
+	private int retained = 0;
+
+	/** the sum of the capacities of the levels */
+	private int totalCapacity;
+
+	/** the number of values added */
+	private long count = 0;
+
+	private double min = Double.POSITIVE_INFINITY;
+
+	private double max = Double.NEGATIVE_INFINITY;
+
+	/** the number of compactions of each level so far, which decides which item of each pair is promoted */
+	private int[] compactions = new int[1];
+
+	public QuantileSketch () {
+		this(DEFAULT_K);
+	}
+
+	public QuantileSketch (int k) {
+		this.k = k;
+		updateCapacities();
+		levels[0] = new double[capacities[0]];
+	}
+
+	/** Sketch the given values, in parallel */
+	public static QuantileSketch of (double[] values) {
+		return Arrays.stream(values).parallel().collect(QuantileSketch::new, QuantileSketch::add, QuantileSketch::merge);
+	}
+
+	/** Add a value to the sketch. NaN values are ignored. */
+	public void add (double value) {
+		if (Double.isNaN(value))
+			return;
+
+		count++;
+
+		if (value < min)
+			min = value;
+		if (value > max)
+			max = value;
+
+		append(0, value);
+
+		if (retained >= totalCapacity)
+			compress();
+	}
+
+	/** Add all the values of another sketch to this one. The other sketch is not modified. */
+	public void merge (QuantileSketch other) {
+		if (other.count == 0)
+			return;
+
+		while (levels.length < other.levels.length)
+			addLevel();
+
+		for (int h = 0; h < other.levels.length; h++) {
+			for (int i = 0; i < other.sizes[h]; i++) {
+				append(h, other.levels[h][i]);
+			}
+		}
+
+		count += other.count;
+		min = Math.min(min, other.min);
+		max = Math.max(max, other.max);
+		for (int h = 0; h < other.compactions.length; h++) {
+			compactions[h] += other.compactions[h];
+		}
+
+		compress();
+	}
+
+	/** the number of values added to the sketch */
+	public long size () {
+		return count;
+	}
+
+	public double getMin () {
+		return min;
+	}
+
+	public double getMax () {
+		return max;
+	}
+
+	/** Get an approximate quantile, with fraction between 0 (the minimum) and 1 (the maximum) */
+	public double getQuantile (double fraction) {
+		return getQuantiles(new double[] { fraction })[0];
+	}
+
+	/**
+	 * Get approximate quantiles, with fractions between 0 (the minimum) and 1 (the maximum) in ascending order.
+	 * Returns an empty array if the sketch is empty.
+	 */
+	public double[] getQuantiles (double[] fractions) {
+		if (count == 0)
+			return new double[0];
+
+		// sort the items by value, along with the number of values each stands for
+		double[] values = new double[retained];
+		int[] itemLevels = new int[retained];
+
+		int n = 0;
+		for (int h = 0; h < levels.length; h++) {
+			for (int i = 0; i < sizes[h]; i++) {
+				values[n] = levels[h][i];
+				itemLevels[n] = h;
+				n++;
+			}
+		}
+
+		Integer[] order = new Integer[retained];
+		for (int i = 0; i < retained; i++) {
+			order[i] = i;
+		}
+
+		Arrays.sort(order, (a, b) -> Double.compare(values[a], values[b]));
+
+		double[] ret = new double[fractions.length];
+		long cumulative = 0;
+		int item = 0;
+
+		for (int q = 0; q < fractions.length; q++) {
+			if (fractions[q] <= 0) {
+				ret[q] = min;
+				continue;
+			}
+
+			if (fractions[q] >= 1) {
+				ret[q] = max;
+				continue;
+			}
+
+			double rank = fractions[q] * count;
+
+			// the first item at or above the rank
+			while (item < retained - 1 && cumulative + (1L << itemLevels[order[item]]) < rank) {
+				cumulative += 1L << itemLevels[order[item]];
+				item++;
+			}
+
+			ret[q] = values[order[item]];
+		}
+
+		return ret;
+	}
+
+	/** the top level has capacity k, and each level below has two thirds the capacity of the level above */
+	private void updateCapacities () {
+		capacities = new int[levels.length];
+		totalCapacity = 0;
+
+		for (int h = 0; h < levels.length; h++) {
+			int depth = levels.length - 1 - h;
+			capacities[h] = Math.max(MIN_CAPACITY, (int) Math.ceil(k * Math.pow(2d / 3d, depth)));
+			totalCapacity += capacities[h];
+		}
+	}
+
+	private void append (int level, double value) {
+		if (sizes[level] == levels[level].length)
+			levels[level] = Arrays.copyOf(levels[level], Math.max(sizes[level] * 2, MIN_CAPACITY));
+
+		levels[level][sizes[level]++] = value;
+		retained++;
+	}
+
+	private void addLevel () {
+		levels = Arrays.copyOf(levels, levels.length + 1);
+		sizes = Arrays.copyOf(sizes, sizes.length + 1);
+		compactions = Arrays.copyOf(compactions, compactions.length + 1);
+		levels[levels.length - 1] = new double[MIN_CAPACITY];
+		updateCapacities();
+	}
+
+	/** while the sketch is over capacity, compact the lowest level that is over capacity */
+	private void compress () {
+		while (retained >= totalCapacity) {
+			int h = 0;
+
+			while (sizes[h] < capacities[h])
+				h++;
+
+			compact(h);
+		}
+	}
+
+	/** sort a level and promote every other item to the level above, keeping the largest item if there are an odd number */
+	private void compact (int level) {
+		if (level == levels.length - 1)
+			addLevel();
+
+		double[] items = levels[level];
+		int size = sizes[level];
+		Arrays.sort(items, 0, size);
+
+		int pairs = size / 2;
+		int offset = compactions[level]++ & 1;
+
+		for (int i = 0; i < pairs; i++) {
+			append(level + 1, items[2 * i + offset]);
+		}
+
+		if (size % 2 == 1) {
+			items[0] = items[size - 1];
+			sizes[level] = 1;
+		}
+		else {
+			sizes[level] = 0;
+		}
+
+		retained -= size - sizes[level];
+	}
+}
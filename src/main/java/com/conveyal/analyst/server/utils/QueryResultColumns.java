@@ -0,0 +1,536 @@
+package com.conveyal.analyst.server.utils;
+
+import gnu.trove.map.hash.TObjectIntHashMap;
+import org.opentripplanner.analyst.Histogram;
+import org.opentripplanner.analyst.ResultSet;
+import org.opentripplanner.analyst.cluster.ResultEnvelope;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * A memory-mapped, columnar query result file (format version 5, see docs/queryresults.md).
+ *
+ * With the RAW encoding, counts and sums are stored uncompressed as fixed-width int columns, one row per feature,
+ * padded with zeros to the length of the longest histogram in the file. Rows can thus be located without reading
+ * anything else, and slices of a histogram are views of the mapped file rather than copies. With the varint encodings
+ * (see ResultEncoding) each row's counts and sums are encoded together, located using an index column, and decoded
+ * on access. The file is mapped when the reader is constructed and the file handle closed immediately; the mapping
+ * stays valid until this object is garbage collected.
+ *
+ * The file also contains the prefix sums of each histogram, stored minute-major: for each minute there is a column
+ * with the accessibility of every feature at that time limit. Any accessibility value is thus a single lookup, and the
+ * values of all features at a time limit are a contiguous slice of the file. Version 2 files lack this section; sums
+ * are then computed from the histograms.
+ *
+ * Feature IDs are stored as indices into the FeatureDictionary of the store. Version 2 and 3 files instead embed the
+ * IDs in a section at the end of the file.
+ *
+ * Instances are immutable and safe to share between threads.
+ */
+public class QueryResultColumns implements Iterable<ResultSet> {
+	/** Identifies a query result file, shared with the legacy gzipped format */
+	public static final String MAGIC = "QUERYRESULT";
+
+	public static final int VERSION = 5;
+
+	/** the first version to include cumulative sums */
+	private static final int CUMULATIVE_VERSION = 3;
+
+	/** the first version to refer to features by their index in a feature dictionary */
+	private static final int DICTIONARY_VERSION = 4;
+
+	/** the first version to record the encoding of the histograms */
+	private static final int ENCODING_VERSION = 5;
+
+	/** columns start on eight-byte boundaries */
+	private static final int ALIGNMENT = 8;
+
+	public final String queryId;
+
+	public final String variable;
+
+	public final ResultEnvelope.Which which;
+
+	public final ResultEncoding encoding;
+
+	/** number of features in this file */
+	private final int size;
+
+	/** number of minutes in each (padded) row */
+	private final int width;
+
+	private final IntBuffer lengths;
+
+	/** raw counts, row-major. Null for encoded files. */
+	private final IntBuffer counts;
+
+	/** raw sums, row-major. Null for encoded files. */
+	private final IntBuffer sums;
+
+	/** the offset of each row in the encoded data, plus the length of the data. Null for raw files. */
+	private final IntBuffer index;
+
+	/** encoded counts and sums. Null for raw files. */
+	private final ByteBuffer data;
+
+	/** prefix sums, minute-major, (width + 1) columns of size rows. Null for version 2 files. */
+	private final IntBuffer cumulative;
+
+	/** feature IDs, interned in the dictionary so they are shared between all the files of a store */
+	private final String[] ids;
+
+	/** feature ID -> row */
+	private final TObjectIntHashMap<String> rows;
+
+	/**
+	 * Read a columnar file. The dictionary is the feature dictionary of the store the file belongs to; it is not used
+	 * for version 2 and 3 files.
+	 */
+	public QueryResultColumns(File file, FeatureDictionary dictionary) {
+		try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+			if (!MAGIC.equals(raf.readUTF()))
+				throw new IllegalArgumentException("Attempt to read non-query-result file");
+
+			int version = raf.readInt();
+			if (version < 2 || version > VERSION)
+				throw new IllegalArgumentException("Unsupported query result format version " + version);
+
+			queryId = raf.readUTF();
+			variable = raf.readUTF();
+			which = ResultEnvelope.Which.valueOf(raf.readUTF());
+			size = raf.readInt();
+			width = raf.readInt();
+			encoding = version >= ENCODING_VERSION ? ResultEncoding.valueOf(raf.readUTF()) : ResultEncoding.RAW;
+
+			long featuresOffset = raf.readLong();
+			long lengthsOffset = raf.readLong();
+			// for encoded files these are the index and the data
+			long countsOffset = raf.readLong();
+			long sumsOffset = raf.readLong();
+			long cumulativeOffset = version >= CUMULATIVE_VERSION ? raf.readLong() : -1;
+
+			FileChannel channel = raf.getChannel();
+			lengths = map(channel, FileChannel.MapMode.READ_ONLY, lengthsOffset, size).asIntBuffer();
+
+			if (encoding == ResultEncoding.RAW) {
+				counts = map(channel, FileChannel.MapMode.READ_ONLY, countsOffset, (long) size * width).asIntBuffer();
+				sums = map(channel, FileChannel.MapMode.READ_ONLY, sumsOffset, (long) size * width).asIntBuffer();
+				index = null;
+				data = null;
+			}
+			else {
+				counts = null;
+				sums = null;
+				index = map(channel, FileChannel.MapMode.READ_ONLY, countsOffset, size + 1L).asIntBuffer();
+				data = channel.map(FileChannel.MapMode.READ_ONLY, sumsOffset, index.get(size));
+			}
+
+			cumulative = cumulativeOffset >= 0 ?
+					map(channel, FileChannel.MapMode.READ_ONLY, cumulativeOffset, (long) size * (width + 1)).asIntBuffer() :
+					null;
+
+			// read the feature IDs and build the index
+			ids = new String[size];
+			rows = new TObjectIntHashMap<>(size, 0.5f, -1);
+
+			if (version >= DICTIONARY_VERSION) {
+				if (dictionary == null)
+					throw new IllegalArgumentException("Feature dictionary is required to read version " + version);
+
+				IntBuffer features = map(channel, FileChannel.MapMode.READ_ONLY, featuresOffset, size).asIntBuffer();
+
+				for (int row = 0; row < size; row++) {
+					ids[row] = dictionary.getId(features.get(row));
+				}
+			}
+			else {
+				// IDs are embedded at the end of the file
+				channel.position(featuresOffset);
+				DataInputStream in = new DataInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+
+				for (int row = 0; row < size; row++) {
+					ids[row] = in.readUTF();
+				}
+			}
+
+			for (int row = 0; row < size; row++) {
+				rows.put(ids[row], row);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** the number of features in this file */
+	public int size () {
+		return size;
+	}
+
+	/** the feature ID of the given row */
+	public String getId (int row) {
+		return ids[row];
+	}
+
+	/** the row of the given feature, or -1 if it is not in this file */
+	public int getRow (String featureId) {
+		return rows.get(featureId);
+	}
+
+	/** the feature IDs of every row. This is not a copy, so that QueryResults can share it; do not modify it. */
+	String[] getIds () {
+		return ids;
+	}
+
+	/** the feature ID -> row index. This is not a copy, so that QueryResults can share it; do not modify it. */
+	TObjectIntHashMap<String> getRows () {
+		return rows;
+	}
+
+	/** the counts for the given row. For raw files this is a view of the mapped file, not a copy. */
+	public IntBuffer getCounts (int row) {
+		if (counts == null) {
+			int[] ret = new int[lengths.get(row)];
+			decode(row, ret, null);
+			return IntBuffer.wrap(ret);
+		}
+
+		return slice(counts, row, lengths.get(row));
+	}
+
+	/** the sums for the given row. For raw files this is a view of the mapped file, not a copy. */
+	public IntBuffer getSums (int row) {
+		if (sums == null) {
+			int[] ret = new int[lengths.get(row)];
+			decode(row, null, ret);
+			return IntBuffer.wrap(ret);
+		}
+
+		return slice(sums, row, lengths.get(row));
+	}
+
+	/**
+	 * the sums for the given row that fall below the given time limit, in seconds. For raw files this is a view of the
+	 * mapped file, not a copy.
+	 */
+	public IntBuffer getSums (int row, int timeLimit) {
+		int length = Math.min(lengths.get(row), binsBelow(timeLimit));
+
+		if (sums == null) {
+			IntBuffer ret = getSums(row);
+			ret.limit(length);
+			return ret.slice();
+		}
+
+		return slice(sums, row, length);
+	}
+
+	/** Sum the given row up to the time limit (in seconds); equivalent to ResultSet.sum on the same histogram */
+	public int sum (int row, int timeLimit) {
+		if (cumulative != null)
+			return cumulative.get(Math.min(binsBelow(timeLimit), width) * size + row);
+
+		int base = row * width;
+		int end = base + Math.min(lengths.get(row), binsBelow(timeLimit));
+
+		int value = 0;
+		for (int i = base; i < end; i++) {
+			value += sums.get(i);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Get the accessibility of every feature at the given time limit (in seconds), indexed by row. For files with
+	 * cumulative sums this is a view of the mapped file; older files compute a copy.
+	 */
+	public IntBuffer getCumulativeSums (int timeLimit) {
+		if (cumulative != null) {
+			IntBuffer ret = cumulative.duplicate();
+			int start = Math.min(binsBelow(timeLimit), width) * size;
+			ret.position(start);
+			ret.limit(start + size);
+			return ret.slice();
+		}
+
+		IntBuffer ret = IntBuffer.allocate(size);
+
+		for (int row = 0; row < size; row++) {
+			ret.put(row, sum(row, timeLimit));
+		}
+
+		return ret;
+	}
+
+	/** Materialize a row as a result set containing a single histogram */
+	public ResultSet getResultSet (int row) {
+		Histogram h = new Histogram();
+		h.counts = new int[lengths.get(row)];
+		h.sums = new int[lengths.get(row)];
+
+		if (data != null) {
+			decode(row, h.counts, h.sums);
+		}
+		else {
+			getCounts(row).get(h.counts);
+			getSums(row).get(h.sums);
+		}
+
+		ResultSet rs = new ResultSet();
+		rs.id = ids[row];
+		rs.histograms.put(variable, h);
+		return rs;
+	}
+
+	@Override
+	public Iterator<ResultSet> iterator () {
+		return new Iterator<ResultSet>() {
+			private int row = 0;
+
+			@Override
+			public boolean hasNext() {
+				return row < size;
+			}
+
+			@Override
+			public ResultSet next() {
+				if (!hasNext())
+					throw new NoSuchElementException();
+
+				return getResultSet(row++);
+			}
+		};
+	}
+
+	/** decode an encoded row into the given arrays; either may be null if it is not needed */
+	private void decode (int row, int[] counts, int[] sums) {
+		int length = lengths.get(row);
+
+		// duplicate so that the position is not shared between threads
+		ByteBuffer in = data.duplicate();
+		in.position(index.get(row));
+
+		// the counts must be decoded to get to the sums
+		encoding.read(in, counts != null ? counts : new int[length], length);
+
+		if (sums != null)
+			encoding.read(in, sums, length);
+	}
+
+	private IntBuffer slice (IntBuffer column, int row, int length) {
+		IntBuffer ret = column.duplicate();
+		ret.position(row * width);
+		ret.limit(row * width + length);
+		return ret.slice();
+	}
+
+	/**
+	 * The number of one-minute histogram bins that fall below a time limit in seconds. Bin i is included if
+	 * i * 60 < timeLimit, matching ResultSet.sum.
+	 */
+	public static int binsBelow (int timeLimit) {
+		return timeLimit <= 0 ? 0 : (int) ((timeLimit + 59L) / 60);
+	}
+
+	/**
+	 * Writes a columnar file row by row. The number of rows and the width must be known in advance; the cumulative
+	 * sums are computed as rows are written. Encoded rows are appended to the end of the file, after the fixed-size
+	 * columns.
+	 */
+	public static class Writer implements Closeable {
+		private final RandomAccessFile raf;
+
+		private final int nRecords;
+
+		private final int width;
+
+		private final ResultEncoding encoding;
+
+		private final MappedByteBuffer[] mapped;
+
+		private final IntBuffer features;
+
+		private final IntBuffer lengths;
+
+		/** raw counts, or the index of encoded rows */
+		private final IntBuffer counts;
+
+		/** raw sums; null for encoded files */
+		private final IntBuffer sums;
+
+		private final IntBuffer cumulative;
+
+		/** encoded counts and sums; null for raw files */
+		private final DataOutputStream data;
+
+		private int row = 0;
+
+		public Writer (File out, int nRecords, int width, String queryId, String variable, ResultEnvelope.Which which,
+				ResultEncoding encoding) throws IOException {
+			this.nRecords = nRecords;
+			this.width = width;
+			this.encoding = encoding;
+
+			ByteArrayOutputStream headerBytes = new ByteArrayOutputStream();
+			DataOutputStream header = new DataOutputStream(headerBytes);
+			header.writeUTF(MAGIC);
+			header.writeInt(VERSION);
+			header.writeUTF(queryId);
+			header.writeUTF(variable);
+			header.writeUTF(which.toString());
+			header.writeInt(nRecords);
+			header.writeInt(width);
+			header.writeUTF(encoding.toString());
+
+			// the header ends with the five section offsets
+			long featuresOffset = align(header.size() + 5 * 8);
+			long lengthsOffset = align(featuresOffset + 4L * nRecords);
+			long countsOffset, sumsOffset, cumulativeOffset, length;
+
+			if (encoding == ResultEncoding.RAW) {
+				countsOffset = align(lengthsOffset + 4L * nRecords);
+				sumsOffset = align(countsOffset + 4L * nRecords * width);
+				cumulativeOffset = align(sumsOffset + 4L * nRecords * width);
+				length = cumulativeOffset + 4L * nRecords * (width + 1);
+			}
+			else {
+				// the counts offset points to the index and the sums offset to the encoded data, which comes last as
+				// its length is not known in advance
+				countsOffset = align(lengthsOffset + 4L * nRecords);
+				cumulativeOffset = align(countsOffset + 4L * (nRecords + 1));
+				sumsOffset = align(cumulativeOffset + 4L * nRecords * (width + 1));
+				length = sumsOffset;
+			}
+
+			header.writeLong(featuresOffset);
+			header.writeLong(lengthsOffset);
+			header.writeLong(countsOffset);
+			header.writeLong(sumsOffset);
+			header.writeLong(cumulativeOffset);
+			header.flush();
+
+			raf = new RandomAccessFile(out, "rw");
+
+			try {
+				// padding and the first cumulative column are zero, which they already are as the file is extended
+				// with zeros
+				raf.setLength(length);
+				FileChannel channel = raf.getChannel();
+				channel.write(ByteBuffer.wrap(headerBytes.toByteArray()), 0);
+
+				if (encoding == ResultEncoding.RAW) {
+					mapped = new MappedByteBuffer[] {
+							map(channel, FileChannel.MapMode.READ_WRITE, featuresOffset, nRecords),
+							map(channel, FileChannel.MapMode.READ_WRITE, lengthsOffset, nRecords),
+							map(channel, FileChannel.MapMode.READ_WRITE, countsOffset, (long) nRecords * width),
+							map(channel, FileChannel.MapMode.READ_WRITE, cumulativeOffset, (long) nRecords * (width + 1)),
+							map(channel, FileChannel.MapMode.READ_WRITE, sumsOffset, (long) nRecords * width)
+					};
+					data = null;
+				}
+				else {
+					mapped = new MappedByteBuffer[] {
+							map(channel, FileChannel.MapMode.READ_WRITE, featuresOffset, nRecords),
+							map(channel, FileChannel.MapMode.READ_WRITE, lengthsOffset, nRecords),
+							map(channel, FileChannel.MapMode.READ_WRITE, countsOffset, nRecords + 1L),
+							map(channel, FileChannel.MapMode.READ_WRITE, cumulativeOffset, (long) nRecords * (width + 1))
+					};
+
+					channel.position(sumsOffset);
+					data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+				}
+			} catch (IOException | RuntimeException e) {
+				raf.close();
+				throw e;
+			}
+
+			features = mapped[0].asIntBuffer();
+			lengths = mapped[1].asIntBuffer();
+			counts = mapped[2].asIntBuffer();
+			cumulative = mapped[3].asIntBuffer();
+			sums = data == null ? mapped[4].asIntBuffer() : null;
+		}
+
+		/** Write the next row. Only the first length entries of counts and sums are used. */
+		public void write (int feature, int length, int[] counts, int[] sums) throws IOException {
+			if (row >= nRecords)
+				throw new IllegalStateException("Attempt to write more rows than were allocated");
+
+			if (length > width)
+				throw new IllegalArgumentException("Histogram is wider than the file");
+
+			features.put(row, feature);
+			lengths.put(row, length);
+
+			if (data != null) {
+				this.counts.put(row, data.size());
+				encoding.write(data, counts, length);
+				encoding.write(data, sums, length);
+
+				// DataOutputStream.size() saturates rather than overflowing
+				if (data.size() == Integer.MAX_VALUE)
+					throw new IllegalStateException("Encoded histograms are too large to map");
+			}
+
+			int base = row * width;
+			int total = 0;
+
+			for (int i = 0; i < length; i++) {
+				if (data == null) {
+					this.counts.put(base + i, counts[i]);
+					this.sums.put(base + i, sums[i]);
+				}
+
+				total += sums[i];
+				cumulative.put((i + 1) * nRecords + row, total);
+			}
+
+			// fill out the padding
+			for (int minute = length + 1; minute <= width; minute++) {
+				cumulative.put(minute * nRecords + row, total);
+			}
+
+			row++;
+		}
+
+		@Override
+		public void close () throws IOException {
+			try {
+				if (row != nRecords)
+					throw new IllegalStateException("Expected " + nRecords + " rows but " + row + " were written");
+
+				if (data != null) {
+					// the final index entry is the length of the data
+					counts.put(nRecords, data.size());
+					data.flush();
+				}
+
+				for (MappedByteBuffer buffer : mapped) {
+					buffer.force();
+				}
+			} finally {
+				raf.close();
+			}
+		}
+	}
+
+	/** map a column of ints. Each column is mapped separately, so each must be smaller than 2GB. */
+	private static MappedByteBuffer map (FileChannel channel, FileChannel.MapMode mode, long offset, long nInts)
+			throws IOException {
+		if (nInts * 4 > Integer.MAX_VALUE)
+			throw new IllegalArgumentException("Column of " + nInts + " values is too large to map");
+
+		return channel.map(mode, offset, nInts * 4);
+	}
+
+	private static long align (long offset) {
+		return (offset + ALIGNMENT - 1) / ALIGNMENT * ALIGNMENT;
+	}
+}
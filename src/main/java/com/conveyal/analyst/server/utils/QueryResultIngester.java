@@ -0,0 +1,184 @@
+package com.conveyal.analyst.server.utils;
+
+import com.conveyal.analyst.server.AnalystMain;
+import com.google.common.collect.Lists;
+import com.google.common.collect.Sets;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Stores results in a QueryResultStore using a dedicated, bounded pool of threads rather than the common fork-join
+ * pool. Retrieving and parsing each result happens on the pool too, so downloads proceed in parallel, and each pool
+ * thread writes to its own shard of the store.
+ *
+ * The number of results in flight is bounded: submit() blocks when the limit is reached, so that a fast producer
+ * (e.g. an S3 listing) cannot queue an unbounded amount of work. The pool is shared between all queries; the number of
+ * threads and the limit are set by application.ingest-threads and application.ingest-queue-size.
+ *
+ * Retrieving a result is retried with exponential backoff (application.ingest-retries times) before the pass fails,
+ * so a single transient error does not abort the whole pass.
+ *
+ * An ingester is used for the lifetime of a query's store, which may involve many passes over the results as they are
+ * computed. It keeps track of the keys of the results it has stored, so each pass only retrieves new results. A pass
+ * ends with finish() or cancel(), after which the ingester can be used for the next pass. checkpoint() flushes the
+ * store along with the keys stored since the last checkpoint; an ingester for a store that resumed from a checkpoint
+ * skips the keys that were checkpointed.
+ */
+public class QueryResultIngester {
+	private static final Logger LOG = LoggerFactory.getLogger(QueryResultIngester.class);
+
+	public static final int THREADS = Integer.parseInt(AnalystMain.config.getProperty("application.ingest-threads",
+			"" + Runtime.getRuntime().availableProcessors() * 2));
+
+	private static final int QUEUE_SIZE = Integer.parseInt(AnalystMain.config.getProperty(
+			"application.ingest-queue-size", "" + THREADS * 4));
+
+	private static final int RETRIES = Integer.parseInt(AnalystMain.config.getProperty("application.ingest-retries",
+			"4"));
+
+	/** delay before the first retry, doubled for each subsequent retry */
+	private static final long INITIAL_BACKOFF_MSEC = 500;
+
+	private static final ExecutorService executor = Executors.newFixedThreadPool(THREADS,
+			new ThreadFactoryBuilder().setNameFormat("result-ingest-%d").setDaemon(true).build());
+
+	private final QueryResultStore store;
+
+	private final int maxInFlight;
+
+	private final int retries;
+
+	/** one permit per result that may be in flight */
+	private final Semaphore permits;
+
+	/** the first failure of the current pass, after which no more results are stored until the next pass */
+	private final AtomicReference<Exception> failure = new AtomicReference<>();
+
+	/** keys of results that have been stored */
+	private final Set<String> stored = Sets.newConcurrentHashSet();
+
+	/** keys of results that have been stored since the last checkpoint */
+	private final Queue<String> uncheckpointed = new ConcurrentLinkedQueue<>();
+
+	public QueryResultIngester (QueryResultStore store) {
+		this(store, QUEUE_SIZE, RETRIES);
+	}
+
+	public QueryResultIngester (QueryResultStore store, int maxInFlight, int retries) {
+		this.store = store;
+		this.maxInFlight = maxInFlight;
+		this.retries = retries;
+		this.permits = new Semaphore(maxInFlight);
+		this.stored.addAll(store.getCheckpointKeys());
+	}
+
+	/**
+	 * Retrieve a result on the ingest pool and store it, blocking if too many results are already in flight. Results
+	 * whose key has already been stored are skipped, so a key must not be submitted again until the pass that
+	 * submitted it has finished. The source may be called more than once if it fails. Throws if a previously submitted
+	 * result in this pass has failed.
+	 */
+	public void submit (String key, Callable<QueryResultStore.FeatureResults> source) throws InterruptedException {
+		checkFailure();
+
+		if (stored.contains(key))
+			return;
+
+		permits.acquire();
+
+		try {
+			executor.execute(() -> {
+				try {
+					// don't bother once something has failed, the pass will be retried
+					if (failure.get() == null) {
+						// retrieve the whole result before storing it, so a failure doesn't leave part of it stored
+						store.store(retrieve(key, source));
+						stored.add(key);
+						uncheckpointed.add(key);
+					}
+				} catch (Exception e) {
+					failure.compareAndSet(null, e);
+				} finally {
+					permits.release();
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/** call the source, retrying with exponential backoff */
+	private QueryResultStore.FeatureResults retrieve (String key, Callable<QueryResultStore.FeatureResults> source)
+			throws Exception {
+		long backoff = INITIAL_BACKOFF_MSEC;
+
+		for (int attempt = 0; ; attempt++) {
+			try {
+				return source.call();
+			} catch (Exception e) {
+				if (attempt >= retries || failure.get() != null)
+					throw e;
+
+				LOG.warn("Failed to retrieve result {}, retrying in {}ms", key, backoff, e);
+				Thread.sleep(backoff);
+				backoff *= 2;
+			}
+		}
+	}
+
+	/** End a pass: wait for all submitted results to be stored, then throw if any of them failed */
+	public void finish () throws InterruptedException {
+		permits.acquire(maxInFlight);
+		permits.release(maxInFlight);
+
+		Exception e = failure.getAndSet(null);
+
+		if (e != null)
+			throw new RuntimeException("Failed to ingest query results", e);
+	}
+
+	/**
+	 * End a pass early: skip any results that have not yet started and wait for those in flight, so that nothing is
+	 * written to the store after this returns.
+	 */
+	public void cancel () {
+		failure.compareAndSet(null, new CancellationException());
+		permits.acquireUninterruptibly(maxInFlight);
+		permits.release(maxInFlight);
+		failure.set(null);
+	}
+
+	/**
+	 * Flush the store, making the results stored so far readable, and checkpoint the keys stored since the last
+	 * checkpoint. Call between passes.
+	 */
+	public void checkpoint () {
+		List<String> keys = Lists.newArrayList();
+
+		for (String key = uncheckpointed.poll(); key != null; key = uncheckpointed.poll()) {
+			keys.add(key);
+		}
+
+		store.flush(keys);
+	}
+
+	/** the number of results that have been stored, including any restored from a checkpoint */
+	public int size () {
+		return stored.size();
+	}
+
+	private void checkFailure () {
+		Exception e = failure.get();
+
+		if (e != null)
+			throw new RuntimeException("Failed to ingest query results", e);
+	}
+}
@@ -3,6 +3,7 @@ package com.conveyal.analyst.server.utils;
 import com.conveyal.analyst.server.AnalystMain;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
+import com.google.common.collect.Sets;
 import models.Query;
 import org.mapdb.Fun;
 import org.opentripplanner.analyst.Histogram;
@@ -10,15 +11,46 @@ import org.opentripplanner.analyst.ResultSet;
 import org.opentripplanner.analyst.cluster.ResultEnvelope;
 
 import java.io.*;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.function.Consumer;
 import java.util.zip.GZIPInputStream;
-import java.util.zip.GZIPOutputStream;
 
 /**
  * A datastore optimized for storing query results.
- * This is not a MapDB: it uses one flat file per variable (since you're only ever looking at one variable at a time),
- * which is then encoded like this:
+ * This is not a MapDB: it uses one flat file per variable (since you're only ever looking at one variable at a time).
+ *
+ * Results are written to a columnar, memory-mapped file per variable, <query>_<variable>_<which>.results; see
+ * QueryResultColumns and docs/queryresults.md for the format. Feature IDs are stored once per store, in a
+ * FeatureDictionary (<query>.features), and referred to by index.
+ *
+ * Results may be stored from many threads at once. To avoid contention, each thread has its own shard of writers, and
+ * appends records to its own uncompressed segment file per variable; the segments of each variable are merged into a
+ * single columnar file when the store is closed. While the store is open, flush() seals the current segments and
+ * merges everything stored so far into a partial columnar file, <query>_<variable>_<which>.results.partial, so that
+ * results can be displayed before the query completes.
+ *
+ * Each flush also writes a checkpoint (<query>.checkpoint) listing the sealed segments, along with a journal of the keys
+ * of the results they contain (<query>.keys), so that if the server restarts while a query is running, a new store
+ * resumes from the last flush and only the results stored since then need to be retrieved again.
+ *
+ * Segment files have no header and are encoded like this:
+ *
+ * Repeated:
+ *   int feature index in the dictionary
+ *   int number of counts (also number of sums)
+ *   counts in the encoding of the store
+ *   sums in the encoding of the store
+ * int -1, marking the end of the file
+ *
+ * The encoding of the histograms is chosen per store (see ResultEncoding) and recorded in each columnar file.
+ *
+ * Stores written by earlier versions use a single gzipped file per variable, <query>_<variable>_<which>.results.gz,
+ * which is still readable. It is encoded like this:
  *
  * Header: QUERYRESULT encoded as UTF
  * Query ID encoded as UTF
@@ -38,67 +70,176 @@ public class QueryResultStore {
 
 	private String queryId;
 
-	/** cache filewriters */
-	private Map<Fun.Tuple2<String, ResultEnvelope.Which>, FileWriter> writerCache = Maps.newHashMap();
+	private FeatureDictionary features;
+
+	/** the encoding of histograms in files written by this store */
+	private final ResultEncoding encoding;
+
+	/** the keys of the results in the sealed segments, as of the last checkpoint */
+	private Set<String> checkpointKeys = Sets.newHashSet();
+
+	/** the journal of checkpointed keys, which is appended to at every flush */
+	private DataOutputStream keyJournal;
+
+	/** the writers used by each thread that has stored results */
+	private Map<Thread, Shard> shards = Maps.newConcurrentMap();
+
+	/** used to give each shard's segment files a unique name */
+	private AtomicInteger nextShardId = new AtomicInteger();
 
-	/** we need to keep references to these because we need to close them */
-	private Collection<FileReader> readerCache = Lists.newArrayList();
+	/** segments that have been closed by flush(), which are merged again at every flush and when the store is closed */
+	private Map<Fun.Tuple2<String, ResultEnvelope.Which>, List<SegmentWriter>> sealed = Maps.newHashMap();
+
+	/** we need to keep references to these because we need to close them. Results may be read concurrently. */
+	private Collection<FileReader> readerCache = new ConcurrentLinkedQueue<>();
+
+	/** cache columnar readers, which are immutable and threadsafe */
+	private ConcurrentMap<Fun.Tuple2<String, ResultEnvelope.Which>, QueryResultColumns> columnCache = Maps.newConcurrentMap();
 
 	private static File scenarioDir = new File(AnalystMain.config.getProperty("application.data"), "flat_results");
 
 	public QueryResultStore (Query q) {
-		this(q.id, q.complete, new File(scenarioDir, q.id));
+		this(q.id, q.complete, new File(scenarioDir, q.id), getConfiguredEncoding());
 	}
 
 	public QueryResultStore(String queryId, boolean readOnly, File outDir) {
-		this.readOnly = readOnly;
-		this.queryId = queryId;
+		this(queryId, readOnly, outDir, ResultEncoding.DEFAULT);
+	}
 
+	/**
+	 * Create a query result store. The encoding is used only when writing; files record their encoding so readers
+	 * detect it automatically.
+	 */
+	public QueryResultStore(String queryId, boolean readOnly, File outDir, ResultEncoding encoding) {
+		this.queryId = queryId;
 		this.outDir = outDir;
 
-		// don't try to append to an existing store, just recreate from cached things in S3.
-		if (!readOnly && outDir.exists())
-			outDir.delete();
-
 		outDir.mkdirs();
+
+		File checkpoint = getCheckpointFile();
+
+		// A store that was closed is never reopened for writing, whatever the caller thinks (e.g. a stale copy of a
+		// query that has just completed), as that would remove its results.
+		this.readOnly = readOnly || !checkpoint.exists() && isClosed();
+
+		if (!this.readOnly && checkpoint.exists()) {
+			// resume from the last checkpoint; segments are in the encoding they were written in
+			encoding = resume(checkpoint);
+		}
+		else if (!this.readOnly) {
+			// don't try to append to an existing store, just recreate from cached things in S3. The directory may be
+			// shared with other queries (e.g. in migrations) so only remove this query's files.
+			for (File file : outDir.listFiles()) {
+				if (isOwnFile(file))
+					file.delete();
+			}
+		}
+
+		this.encoding = encoding;
+
+		File dictionary = getDictionaryFile();
+
+		// a resumed store has already restored its dictionary, and legacy stores have no dictionary
+		if (features == null) {
+			if (this.readOnly && dictionary.exists())
+				features = FeatureDictionary.read(dictionary);
+			else
+				features = new FeatureDictionary();
+		}
 	}
 	
-	/** Save a result envelope in this store */
+	/**
+	 * Save a result envelope in this store. This is threadsafe, and is intended to be called from many threads at once
+	 * (see QueryResultIngester); it must not be called concurrently with flush() or close().
+	 */
 	public void store(ResultEnvelope res) {
+		store(FeatureResults.of(res));
+	}
+
+	/** Save the results of a single feature in this store; the same rules apply as for store(ResultEnvelope) */
+	public void store(FeatureResults res) {
 		if (readOnly)
 			throw new UnsupportedOperationException("Attempt to write to read-only query result store!");
 
-		for (ResultEnvelope.Which which : ResultEnvelope.Which.values()) {
-			ResultSet rs = res.get(which);
+		int feature = features.getIndex(res.id);
 
-			if (rs != null) {
-				// parallelize across variables, which are stored in different files, so this is threadsafe
-				rs.histograms.entrySet().parallelStream().forEach(e -> {
-					getWriter(e.getKey(), which).write(res.id, e.getValue());
-				});
-			}
+		// the shard is only used by this thread, so no locking is needed to write to it
+		Shard shard = shards.computeIfAbsent(Thread.currentThread(), t -> new Shard(nextShardId.getAndIncrement()));
+
+		for (int i = 0; i < res.size(); i++) {
+			shard.getWriter(res.variables.get(i), res.which.get(i)).write(feature, res.counts.get(i), res.sums.get(i));
 		}
 	}
 
-	private FileWriter getWriter(String variable, ResultEnvelope.Which which) {
-		Fun.Tuple2<String, ResultEnvelope.Which> wkey = new Fun.Tuple2<>(variable, which);
+	/** The keys of the results that were checkpointed when this store was last flushed, before it was reopened */
+	public Set<String> getCheckpointKeys () {
+		return Collections.unmodifiableSet(checkpointKeys);
+	}
+
+	/**
+	 * Make everything stored so far readable through getColumns() and getAll(), without closing the store. The results
+	 * are written to partial columnar files, which are rewritten at every flush and removed when the store is closed.
+	 * This also checkpoints the store, recording the given keys of the results stored since the last flush; see
+	 * getCheckpointKeys(). This must not be called concurrently with store().
+	 */
+	public synchronized void flush (Collection<String> keys) {
+		if (readOnly)
+			return;
 
-		if (!writerCache.containsKey(wkey)) {
-			synchronized (writerCache) {
-				if (!writerCache.containsKey(wkey)) {
-					String filename = String.format(Locale.US, "%s_%s_%s.results.gz", queryId, variable, which);
-					writerCache.put(wkey, new FileWriter(new File(outDir, filename), queryId, variable, which));
-				}
+		seal();
+		checkpoint(keys);
+
+		// parallelize across variables, which are merged into different files, so this is threadsafe
+		sealed.entrySet().parallelStream().forEach(e -> {
+			File partial = getFile(e.getKey().a, e.getKey().b, "results.partial");
+			File tmp = getFile(e.getKey().a, e.getKey().b, "results.partial.tmp");
+			merge(tmp, e.getKey().a, e.getKey().b, e.getValue());
+
+			// replace the previous partial file; readers that have it mapped keep the old version
+			try {
+				Files.move(tmp.toPath(), partial.toPath(), StandardCopyOption.REPLACE_EXISTING);
+			} catch (IOException ex) {
+				throw new RuntimeException(ex);
 			}
-		}
+		});
 
-		return writerCache.get(wkey);
+		columnCache.clear();
 	}
 
 	/** close the underlying datastore, writing all changes to disk */
-	public void close () {
-		for (FileWriter w : writerCache.values()) {
-			w.close();
+	public synchronized void close () {
+		if (!readOnly) {
+			seal();
+
+			// parallelize across variables, which are merged into different files, so this is threadsafe
+			sealed.entrySet().parallelStream().forEach(e -> {
+				try {
+					merge(getFile(e.getKey().a, e.getKey().b, "results"), e.getKey().a, e.getKey().b, e.getValue());
+				} finally {
+					for (SegmentWriter segment : e.getValue()) {
+						segment.file.delete();
+					}
+
+					getFile(e.getKey().a, e.getKey().b, "results.partial").delete();
+				}
+			});
+
+			sealed.clear();
+			columnCache.clear();
+
+			features.write(getDictionaryFile());
+
+			// the results are complete, we won't need to resume
+			if (keyJournal != null) {
+				try {
+					keyJournal.close();
+				} catch (IOException e) {
+					throw new RuntimeException(e);
+				}
+			}
+
+			getCheckpointFile().delete();
+			getKeyJournalFile().delete();
 		}
 
 		for (FileReader reader : readerCache) {
@@ -108,72 +249,447 @@ public class QueryResultStore {
 	
 	/** get all the resultsets for a particular variable and envelope parameter */
 	public Iterator<ResultSet> getAll(String attr, ResultEnvelope.Which which) {
-		String filename = String.format(Locale.US, "%s_%s_%s.results.gz", queryId, attr, which);
+		QueryResultColumns columns = getColumns(attr, which);
+
+		if (columns != null)
+			return columns.iterator();
+
+		// fall back to the legacy format
+		File legacy = getFile(attr, which, "results.gz");
+
+		// nothing has been flushed yet
+		if (!readOnly && !legacy.exists())
+			return Collections.emptyIterator();
+
 		// cannot return a cached reader as each one has a pointer into the file
-		FileReader r = new FileReader(new File(outDir, filename));
+		FileReader r = new FileReader(legacy);
 		readerCache.add(r);
 		return r;
 	}
 
-	/** Write resultsets to a flat file */
-	private static class FileWriter {
+	/**
+	 * Get random access to the results for a particular variable and envelope parameter, or null if they are only
+	 * available in the legacy format (or have not been written yet). If the store is still being written, this
+	 * returns the results as of the last flush.
+	 */
+	public QueryResultColumns getColumns(String attr, ResultEnvelope.Which which) {
+		Fun.Tuple2<String, ResultEnvelope.Which> key = new Fun.Tuple2<>(attr, which);
+
+		// computeIfAbsent so that concurrent requests for the same file (e.g. for different time limits) read it once,
+		// while requests for other files are not blocked
+		return columnCache.computeIfAbsent(key, k -> {
+			File file = getFile(attr, which, "results");
+
+			if (!file.exists() && !readOnly)
+				file = getFile(attr, which, "results.partial");
+
+			// not cached, so it will be retried
+			if (!file.exists())
+				return null;
+
+			return new QueryResultColumns(file, features);
+		});
+	}
+
+	private File getFile (String variable, ResultEnvelope.Which which, String extension) {
+		return new File(outDir, String.format(Locale.US, "%s_%s_%s.%s", queryId, variable, which, extension));
+	}
+
+	private File getDictionaryFile () {
+		return new File(outDir, queryId + ".features");
+	}
+
+	private File getCheckpointFile () {
+		return new File(outDir, queryId + ".checkpoint");
+	}
+
+	private File getKeyJournalFile () {
+		return new File(outDir, queryId + ".keys");
+	}
+
+	/**
+	 * Record the sealed segments, the feature dictionary and the keys stored since the last checkpoint. The checkpoint
+	 * file is replaced atomically, and records how many keys of the journal are valid, so a crash at any point leaves
+	 * a consistent checkpoint.
+	 *
+	 * Encoded like this:
+	 *
+	 * Header: QUERYCHECKPOINT encoded as UTF
+	 * Encoding of the segments encoded as UTF
+	 * int number of segments
+	 * Repeated:
+	 *   Variable name encoded as UTF
+	 *   Envelope parameter encoded as UTF
+	 *   int shard ID
+	 *   int number of records
+	 *   int width
+	 * int number of keys in the journal
+	 */
+	private void checkpoint (Collection<String> keys) {
+		try {
+			if (keyJournal == null)
+				keyJournal = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(getKeyJournalFile(), true)));
+
+			for (String key : keys) {
+				keyJournal.writeUTF(key);
+			}
+
+			keyJournal.flush();
+			checkpointKeys.addAll(keys);
+
+			features.write(getDictionaryFile());
+
+			File tmp = new File(outDir, queryId + ".checkpoint.tmp");
+
+			try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)))) {
+				out.writeUTF("QUERYCHECKPOINT");
+				out.writeUTF(encoding.toString());
+				out.writeInt(sealed.values().stream().mapToInt(List::size).sum());
+
+				for (Map.Entry<Fun.Tuple2<String, ResultEnvelope.Which>, List<SegmentWriter>> e : sealed.entrySet()) {
+					for (SegmentWriter segment : e.getValue()) {
+						out.writeUTF(e.getKey().a);
+						out.writeUTF(e.getKey().b.toString());
+						out.writeInt(segment.shard);
+						out.writeInt(segment.nRecords);
+						out.writeInt(segment.width);
+					}
+				}
+
+				out.writeInt(checkpointKeys.size());
+			}
+
+			Files.move(tmp.toPath(), getCheckpointFile().toPath(), StandardCopyOption.REPLACE_EXISTING);
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** Restore the state of the store at the last checkpoint, returning the encoding of the segments */
+	private ResultEncoding resume (File checkpoint) {
+		Set<File> segmentFiles = Sets.newHashSet();
+		ResultEncoding encoding;
+
+		try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(checkpoint)))) {
+			if (!"QUERYCHECKPOINT".equals(in.readUTF()))
+				throw new IllegalArgumentException("Attempt to read non-checkpoint file");
+
+			encoding = ResultEncoding.valueOf(in.readUTF());
+			int nSegments = in.readInt();
+
+			for (int i = 0; i < nSegments; i++) {
+				String variable = in.readUTF();
+				ResultEnvelope.Which which = ResultEnvelope.Which.valueOf(in.readUTF());
+				int shard = in.readInt();
+				SegmentWriter segment = new SegmentWriter(getSegmentFile(variable, which, shard), shard, in.readInt(),
+						in.readInt());
+
+				sealed.computeIfAbsent(new Fun.Tuple2<>(variable, which), k -> Lists.newArrayList()).add(segment);
+				segmentFiles.add(segment.file);
+				nextShardId.set(Math.max(nextShardId.get(), shard + 1));
+			}
+
+			int nKeys = in.readInt();
+
+			// keys appended after the checkpoint was written belong to segments that were not sealed
+			try (DataInputStream keys = new DataInputStream(new BufferedInputStream(
+					new FileInputStream(getKeyJournalFile())))) {
+				for (int i = 0; i < nKeys; i++) {
+					checkpointKeys.add(keys.readUTF());
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		features = FeatureDictionary.read(getDictionaryFile());
+
+		// truncate the journal to the checkpointed keys, so that later checkpoints append to the right place
+		try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+				new FileOutputStream(getKeyJournalFile())))) {
+			for (String key : checkpointKeys) {
+				out.writeUTF(key);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+
+		// remove segments that were not sealed and partial files, which will be rewritten at the next flush
+		for (File file : outDir.listFiles()) {
+			String name = file.getName();
+
+			if (!isOwnFile(file))
+				continue;
+
+			if ((name.endsWith(".results.tmp") && !segmentFiles.contains(file)) || name.endsWith(".partial") ||
+					name.endsWith(".partial.tmp"))
+				file.delete();
+		}
+
+		return encoding;
+	}
+
+	/**
+	 * Has this store been closed? Closing writes the columnar files and the dictionary, then removes the checkpoint and
+	 * the key journal; a checkpoint writes the journal before the dictionary, so a dictionary without a journal is
+	 * final. Legacy stores have gzipped result files.
+	 */
+	private boolean isClosed () {
+		if (getDictionaryFile().exists() && !getKeyJournalFile().exists())
+			return true;
+
+		for (File file : outDir.listFiles()) {
+			if (isOwnFile(file) && (file.getName().endsWith(".results") || file.getName().endsWith(".results.gz")))
+				return true;
+		}
+
+		return false;
+	}
+
+	/** is the given file in the output directory part of this store? */
+	private boolean isOwnFile (File file) {
+		return file.getName().startsWith(queryId + "_") || file.getName().startsWith(queryId + ".");
+	}
+
+	private File getSegmentFile (String variable, ResultEnvelope.Which which, int shard) {
+		return getFile(variable, which, shard + ".results.tmp");
+	}
+
+	/** close the segments of all shards, so that they can be merged, and start new shards for subsequent writes */
+	private void seal () {
+		for (Shard shard : shards.values()) {
+			for (Map.Entry<Fun.Tuple2<String, ResultEnvelope.Which>, SegmentWriter> e : shard.writers.entrySet()) {
+				try {
+					e.getValue().close();
+				} catch (IOException ex) {
+					throw new RuntimeException(ex);
+				}
+
+				sealed.computeIfAbsent(e.getKey(), k -> Lists.newArrayList()).add(e.getValue());
+			}
+		}
+
+		shards.clear();
+	}
+
+	/** Merge the sealed segments of a variable and envelope parameter into a columnar file */
+	private void merge (File out, String variable, ResultEnvelope.Which which, List<SegmentWriter> segments) {
+		int nRecords = 0;
+		int width = 0;
+
+		for (SegmentWriter segment : segments) {
+			nRecords += segment.nRecords;
+			width = Math.max(width, segment.width);
+		}
+
+		try (QueryResultColumns.Writer columns =
+				new QueryResultColumns.Writer(out, nRecords, width, queryId, variable, which, encoding)) {
+			for (SegmentWriter segment : segments) {
+				try (SegmentReader in = new SegmentReader(segment.file, encoding)) {
+					while (in.next()) {
+						columns.write(in.feature, in.length, in.counts, in.sums);
+					}
+				}
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/** get the encoding for new stores from the application configuration */
+	private static ResultEncoding getConfiguredEncoding () {
+		String encoding = AnalystMain.config.getProperty("application.query-results-encoding");
+		return encoding != null ? ResultEncoding.valueOf(encoding) : ResultEncoding.DEFAULT;
+	}
+
+	/**
+	 * The histograms of a single feature, as they are stored. This can be built directly by a streaming parser (see
+	 * ResultEnvelopeParser) without binding a ResultEnvelope with its result sets, maps and histograms.
+	 */
+	public static class FeatureResults {
+		public String id;
+
+		public final List<ResultEnvelope.Which> which = Lists.newArrayList();
+
+		public final List<String> variables = Lists.newArrayList();
+
+		public final List<int[]> counts = Lists.newArrayList();
+
+		public final List<int[]> sums = Lists.newArrayList();
+
+		public void add (ResultEnvelope.Which which, String variable, int[] counts, int[] sums) {
+			this.which.add(which);
+			this.variables.add(variable);
+			this.counts.add(counts);
+			this.sums.add(sums);
+		}
+
+		/** the number of histograms */
+		public int size () {
+			return variables.size();
+		}
+
+		public static FeatureResults of (ResultEnvelope res) {
+			FeatureResults ret = new FeatureResults();
+			ret.id = res.id;
+
+			for (ResultEnvelope.Which which : ResultEnvelope.Which.values()) {
+				ResultSet rs = res.get(which);
+
+				if (rs != null) {
+					for (Map.Entry<String, Histogram> e : rs.histograms.entrySet()) {
+						ret.add(which, e.getKey(), e.getValue().counts, e.getValue().sums);
+					}
+				}
+			}
+
+			return ret;
+		}
+	}
+
+	/** The writers used by a single thread, one per variable and envelope parameter */
+	private class Shard {
+		private final int id;
+
+		private final Map<Fun.Tuple2<String, ResultEnvelope.Which>, SegmentWriter> writers = Maps.newHashMap();
+
+		public Shard (int id) {
+			this.id = id;
+		}
+
+		public SegmentWriter getWriter (String variable, ResultEnvelope.Which which) {
+			return writers.computeIfAbsent(new Fun.Tuple2<>(variable, which),
+					k -> new SegmentWriter(getSegmentFile(variable, which, id), id, encoding));
+		}
+	}
+
+	/**
+	 * Write resultsets to an uncompressed segment file. Not threadsafe; each writer belongs to a single shard.
+	 */
+	private static class SegmentWriter {
 		private final DataOutputStream out;
 
-		public FileWriter(File file, String queryId, String variable, ResultEnvelope.Which which) {
+		private final File file;
+
+		private final int shard;
+
+		private final ResultEncoding encoding;
+
+		private int nRecords = 0;
+
+		/** the length of the longest histogram written so far */
+		private int width = 0;
+
+		public SegmentWriter(File file, int shard, ResultEncoding encoding) {
+			this.file = file;
+			this.shard = shard;
+			this.encoding = encoding;
 
 			try {
 				OutputStream os = new FileOutputStream(file);
-				GZIPOutputStream gos = new GZIPOutputStream(os);
 				// buffer for performance
-				BufferedOutputStream bos = new BufferedOutputStream(gos);
+				BufferedOutputStream bos = new BufferedOutputStream(os);
 				out = new DataOutputStream(bos);
-				out.writeUTF("QUERYRESULT");
-				out.writeUTF(queryId);
-				out.writeUTF(variable);
-				out.writeUTF(which.toString());
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
 		}
 
-		public synchronized void write (String id, Histogram histogram) {
-			if (id == null)
-				throw new NullPointerException("Feature ID is null!");
+		/** A segment that was sealed before the store was reopened, which can be merged but not written to */
+		public SegmentWriter(File file, int shard, int nRecords, int width) {
+			this.file = file;
+			this.shard = shard;
+			this.nRecords = nRecords;
+			this.width = width;
+			this.out = null;
+			this.encoding = null;
+		}
 
-			if (histogram.counts.length != histogram.sums.length)
+		public void write (int feature, int[] counts, int[] sums) {
+			if (counts.length != sums.length)
 				throw new IllegalArgumentException("Invalid histogram, sum and count lengths differ");
 
 			try {
-				out.writeUTF(id);
-				out.writeInt(histogram.counts.length);
-
-				for (int i = 0; i < histogram.counts.length; i++) {
-					// TODO: zigzag encoding
-					// These are marginals so they are already effectively delta-coded
-					out.writeInt(histogram.counts[i]);
-				}
-
-				for (int i = 0; i < histogram.sums.length; i++) {
-					out.writeInt(histogram.sums[i]);
-				}
+				out.writeInt(feature);
+				out.writeInt(counts.length);
+				encoding.write(out, counts, counts.length);
+				encoding.write(out, sums, sums.length);
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
+
+			nRecords++;
+			width = Math.max(width, counts.length);
 		}
 
-		public void close () {
-			try {
-				out.close();
-			} catch (IOException e) {
-				throw new RuntimeException(e);
+		/** write the end marker and close the file */
+		public void close () throws IOException {
+			// segments restored from a checkpoint are already closed
+			if (out == null)
+				return;
+
+			out.writeInt(-1);
+			out.close();
+		}
+	}
+
+	/**
+	 * Read records from a segment file. Each record is decoded exactly once, into buffers which are reused between
+	 * records, so the fields are only valid until the next call to next(). Public so that it can be benchmarked.
+	 */
+	public static class SegmentReader implements Closeable {
+		private final DataInputStream in;
+
+		private final ResultEncoding encoding;
+
+		public int feature;
+
+		public int length;
+
+		public int[] counts = new int[0];
+
+		public int[] sums = new int[0];
+
+		public SegmentReader (File file, ResultEncoding encoding) throws IOException {
+			this.in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			this.encoding = encoding;
+		}
+
+		/** Read the next record, returning false at the end of the file */
+		public boolean next () throws IOException {
+			feature = in.readInt();
+
+			if (feature == -1)
+				return false;
+
+			length = in.readInt();
+
+			if (counts.length < length) {
+				counts = new int[length];
+				sums = new int[length];
 			}
+
+			encoding.read(in, counts, length);
+			encoding.read(in, sums, length);
+
+			return true;
+		}
+
+		@Override
+		public void close () throws IOException {
+			in.close();
 		}
 	}
 
-	/** read resultsets from a flat file */
+	/** read resultsets from a legacy gzipped flat file */
 	private static class FileReader implements Iterator<ResultSet> {
 		private DataInputStream in;
 
+		/** kept so we can peek at the next byte to detect the end of the file */
+		private BufferedInputStream bis;
+
+		private boolean done = false;
+
 		private String var;
 
 		public final String queryId;
@@ -184,7 +700,7 @@ public class QueryResultStore {
 			try {
 				InputStream is = new FileInputStream(file);
 				GZIPInputStream gis = new GZIPInputStream(is);
-				BufferedInputStream bis = new BufferedInputStream(gis);
+				bis = new BufferedInputStream(gis);
 				in = new DataInputStream(bis);
 
 				// make sure we have a query result file, and record variable name
@@ -203,20 +719,21 @@ public class QueryResultStore {
 
 		@Override
 		public boolean hasNext() {
-			// this cannot be the easiest way to tell if we're at the end of the file
-			in.mark(8192);
-
-			try {
-				in.readUTF();
-			} catch (EOFException e) {
-				this.close();
+			// The legacy format has no record count or end marker, so peek at the next byte to see if there is another
+			// record. This does not decode anything so each record is still only read once, in next().
+			if (done)
 				return false;
-			} catch (IOException e) {
-				throw new RuntimeException(e);
-			}
 
 			try {
-				in.reset();
+				bis.mark(1);
+				int next = bis.read();
+				bis.reset();
+
+				if (next == -1) {
+					this.close();
+					done = true;
+					return false;
+				}
 			} catch (IOException e) {
 				throw new RuntimeException(e);
 			}
@@ -1,40 +1,44 @@
 package com.conveyal.analyst.server.utils;
 
-import com.vividsolutions.jts.geom.Envelope;
-import com.vividsolutions.jts.geom.Geometry;
-import com.vividsolutions.jts.geom.MultiPolygon;
-import com.vividsolutions.jts.geom.Polygon;
-import com.vividsolutions.jts.geom.prep.PreparedGeometry;
-import com.vividsolutions.jts.geom.prep.PreparedPolygon;
 import com.vividsolutions.jts.index.SpatialIndex;
-import com.vividsolutions.jts.index.strtree.STRtree;
+import gnu.trove.list.array.TDoubleArrayList;
+import gnu.trove.map.hash.TObjectIntHashMap;
 import models.Query;
 import models.Shapefile;
 import models.Shapefile.ShapeFeature;
-import org.mapdb.Fun.Tuple3;
 import org.opentripplanner.analyst.ResultSet;
 import org.opentripplanner.analyst.cluster.ResultEnvelope;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.awt.*;
+import java.nio.IntBuffer;
+import java.util.ArrayList;
 import java.util.Iterator;
 import java.util.List;
-import java.util.Map;
-import java.util.WeakHashMap;
-import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * Accessibility for every feature of a shapefile, at a particular time limit, for a particular attribute.
+ *
+ * This is stored as parallel arrays of feature IDs and values rather than an object per feature, because there may be
+ * a great many features and many of these are cached at once. When the results come from a columnar file, the IDs and
+ * the ID -> index map are shared with the file, and thus between all the time limits of a query. Geometries are not
+ * held at all, but retrieved from the shapefile when needed.
+ */
 public class QueryResults {
 	private static final Logger LOG = LoggerFactory.getLogger(QueryResults.class);
 
-	public static Map<String, QueryResults> queryResultsCache = new WeakHashMap<>();
-	
-	/**
-	 * Keep track of IDs
-	 * This is an Integer not an int so we can synchronize on it.
-	 */
-	
-	private static Integer nextId = 0;
+	/** cache of query results and the results derived from them */
+	public static final QueryResultsCache cache = new QueryResultsCache();
+
+	/** separates the key of a result from the description of an aggregation, in the keys of aggregated results */
+	static final String AGGREGATE_KEY = "_aggregate_";
+
+	/** separates the keys of two results, in the key of their difference */
+	static final String SUBTRACT_KEY = "_minus_";
+
+	/** approximate bytes per feature: the value, the ID and its index entry, and its envelope in the spatial index */
+	private static final int BYTES_PER_FEATURE = 8 + 64 + 24 + 96;
 	
 	/*
 	 * Min and max values for this result. Set to null initially so that there is no confusion
@@ -55,33 +59,48 @@ public class QueryResults {
 	 * From whence do the geometries of this QueryResults come?
 	 */
 	public String shapeFileId;
+
+	/** the shapefile itself, from which geometries are retrieved */
+	private transient Shapefile shapefile;
 	
 	/**
 	 * What attribute of that shapefile are we using?
 	 */
 	public String attributeId;
 
-	public ConcurrentHashMap<String, QueryResultItem> items = new ConcurrentHashMap<String, QueryResultItem>();
-	
-	public ConcurrentHashMap<Integer, QueryResults> subtracted = new ConcurrentHashMap<Integer, QueryResults>();
-	
-	public ConcurrentHashMap<Tuple3<String, String, String>, QueryResults> aggregated =
-			new ConcurrentHashMap<Tuple3<String, String, String>, QueryResults>();
+	/** feature IDs, in the same order as values. May be shared; do not modify. */
+	private String[] ids;
+
+	/** feature ID -> index in ids and values. May be shared; do not modify. */
+	private TObjectIntHashMap<String> index;
+
+	/** the value for each feature, in the same order as the IDs */
+	public double[] values;
 	
 	public Classifier classifier;
 	
 	/** Cache the spatial index */
 	private transient SpatialIndex spIdx = null;
+
+	/** sketch of the distribution of the values, built the first time it is needed */
+	private transient QuantileSketch sketch = null;
 	
-	/** We want the IDs to be weak so that they never get serialized, as they are reset every time the server is restarted */
-	private transient int id;
+	/** the key of these results in the cache, or null if they are not cached */
+	transient String key;
 
 	/** Is this the point estimate, lower bound, etc.? */
 	private ResultEnvelope.Which which;
 	
-	public QueryResults() {
+	private QueryResults() {
 		
 	}
+
+	/** Create query results with the given values for the given features of a shapefile */
+	public QueryResults(Shapefile shapefile, String[] ids, double[] values) {
+		this.shapefile = shapefile;
+		this.shapeFileId = shapefile.id;
+		setValues(ids, null, values);
+	}
 	
 	public QueryResults(Query q, Integer timeLimit, ResultEnvelope.Which which, String attributeId) {
 		Shapefile origin = Shapefile.getShapefile(q.originShapefileId);
@@ -89,43 +108,112 @@ public class QueryResults {
 		
 		this.which = which;
 
-       double value;
-
-       for (Iterator<ResultSet> it = q.getResults().getAll(dest.categoryId + "." + attributeId, which); it.hasNext();) {
-       ResultSet feature = it.next();
+		String variable = dest.categoryId + "." + attributeId;
+		QueryResultColumns columns = q.getResults().getColumns(variable, which);
 
-       value = (double) feature.sum(timeLimit, dest.categoryId + "." + attributeId);
+		if (columns != null) {
+			// precomputed accessibility at this time limit for every feature, in row order; share the IDs
+			IntBuffer sums = columns.getCumulativeSums(timeLimit);
+			double[] values = new double[columns.size()];
 
-        if(maxValue == null || value > maxValue)
-            maxValue = value;
-        if(minValue == null || minValue > value)
-            minValue = value;
+			for (int row = 0; row < values.length; row++) {
+				values[row] = sums.get(row);
+			}
 
-        QueryResultItem item = new QueryResultItem();
+			setValues(columns.getIds(), columns.getRows(), values);
+		}
+		else {
+			// legacy result file, read it start to finish
+			List<String> ids = new ArrayList<>();
+			TDoubleArrayList values = new TDoubleArrayList();
 
-        item.value = value;
+			for (Iterator<ResultSet> it = q.getResults().getAll(variable, which); it.hasNext();) {
+				ResultSet feature = it.next();
+				ids.add(feature.id);
+				values.add(feature.sum(timeLimit, variable));
+			}
 
-        item.feature = origin.getShapeFeatureStore().getById(feature.id);
-        	
-        	items.put(feature.id, item);
-       }
+			setValues(ids, values);
+		}
        
        shapeFileId = origin.id;
+       shapefile = origin;
        
        this.attributeId = attributeId;
        
        this.maxPossible = dest.attributes.get(attributeId).sum;
        
-       // assign a unique ID
-       synchronized (nextId) {
-    	   id = nextId++;
-       }
-       
        //linearClassifier = new LinearClassifier(values, new Color(0.5f, 0.5f, 1.0f, 0.5f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
-       classifier = new NaturalBreaksClassifier(this, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.25f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
+       // too many values to classify by natural breaks quickly
+       if (size() > QuantileClassifier.THRESHOLD)
+           classifier = new QuantileClassifier(this, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.25f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
+       else
+           classifier = new NaturalBreaksClassifier(this, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.25f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
 		
 	}
 	
+	/**
+	 * Set the features and their values, and compute the min and max values. If the index is null it is built from
+	 * the IDs, which must not contain duplicates.
+	 */
+	private void setValues (String[] ids, TObjectIntHashMap<String> index, double[] values) {
+		if (index == null) {
+			index = new TObjectIntHashMap<>(ids.length, 0.5f, -1);
+
+			for (int i = 0; i < ids.length; i++) {
+				index.put(ids[i], i);
+			}
+		}
+
+		this.ids = ids;
+		this.index = index;
+		this.values = values;
+
+		for (double value : values) {
+			if(maxValue == null || value > maxValue)
+				maxValue = value;
+			if(minValue == null || minValue > value)
+				minValue = value;
+		}
+	}
+
+	private void setValues (List<String> ids, TDoubleArrayList values) {
+		setValues(ids.toArray(new String[ids.size()]), null, values.toArray());
+	}
+
+	/** the number of features in these results */
+	public int size () {
+		return ids.length;
+	}
+
+	/** the ID of the feature at the given index */
+	public String getId (int i) {
+		return ids[i];
+	}
+
+	/** the index of the given feature, or -1 if it is not in these results */
+	public int indexOf (String featureId) {
+		return index.get(featureId);
+	}
+
+	/** the approximate size of these results in memory, in bytes */
+	public long getWeight () {
+		return 256 + (long) size() * BYTES_PER_FEATURE;
+	}
+
+	/** Get a sketch of the distribution of the values, building it in parallel the first time */
+	public synchronized QuantileSketch getSketch () {
+		if (sketch == null)
+			sketch = QuantileSketch.of(values);
+
+		return sketch;
+	}
+
+	/** the feature at the given index, retrieved from the shapefile */
+	public ShapeFeature getFeature (int i) {
+		return shapefile.getShapeFeatureStore().getById(ids[i]);
+	}
+
 	/*public Color getColorById(String id) {
 		Color c = linearClassifier.getColorValue(items.get(id).value);
 		if(c == null) 
@@ -153,148 +241,79 @@ public class QueryResults {
 	 * the weighting is done by feature ID.
 	 */
 	public QueryResults aggregate (Shapefile aggregateTo, Shapefile weightBy, String weightByAttribute) {
+		// results that were not cached cannot have their aggregations cached either
+		if (key == null)
+			return doAggregate(aggregateTo, weightBy, weightByAttribute);
+
 		// see if we've already performed this aggregation; if so, return it from the cache
-		synchronized (aggregated) {
-			Tuple3<String, String, String> key = new Tuple3<String, String, String> (aggregateTo.id, weightBy.id, weightByAttribute);
-			if (aggregated.containsKey(key))
-				return aggregated.get(key);
-						
-			// Do the features come from the same shapefile?
-			boolean sameShapefile = shapeFileId.equals(weightBy.id);
-			
-			// if they don't come from the same shapefile, create the weights pycnoplactically
-			// we'll need a spatial index for that
-			SpatialIndex weightIdx = null;
-			DataStore<ShapeFeature> weightStore = null;
-			
-			if (!sameShapefile) {
-				// get the spatial index
-				weightIdx = weightBy.getSpatialIndex();
-			}
-			else {
-				// just use the id -> feature mapping directly
-				weightStore = weightBy.getShapeFeatureStore();
-			}
-			
-			// build a spatial index for the features of this queryresult
-			SpatialIndex spIdx = getSpatialIndex();
-			
-			QueryResults out = new QueryResults();
-			
-			// this does not actually load all the features into memory; this is a MapDB, and
-			// DataStore is delegating to MapDB's map values() function, which returns a disk-backed
-			// collection
-			for (final ShapeFeature aggregateFeature : aggregateTo.getShapeFeatureStore().getAll()) {
-				// TODO: this should be moved into Akka actors and parallelized
-				// TODO: ensure STRtree is threadsafe. There is some debate on this point.
-				Envelope env = aggregateFeature.geom.getEnvelopeInternal();
-				
-				// find all of the items that could overlap this geometry
-				List<QueryResultItem> potentialMatches = spIdx.query(env);
-				
-				// this is the weighted value of all of the original geographies within this
-				// aggregate geography
-				double weightedVal = 0.0;
-				
-				// This is the sum of the weights of all of the original geographies within this
-				// aggregate geography
-				double sumOfWeights = 0.0;
-				
-				for (QueryResultItem match : potentialMatches) {
-					// clean the geometry
-					Geometry matchGeom = match.feature.geom;
-
-					// calculate the weight of this geography in the aggregate geography
-					double weight;
-					
-					if (sameShapefile) {
-						weight = weightStore.getById(match.feature.id).getAttribute(weightByAttribute);
-					}
-					else {
-						// query the spatial index
-						List<ShapeFeature> potentialWeights =
-								weightIdx.query(matchGeom.getEnvelopeInternal());
-
-						// Generally, people want to aggregate a relatively large number of features into a relatively
-						// small number of features (perhaps only one). Thus we can gain more by parallelism here than
-						// we would by parallelizing the outside loop over aggregation features. We also neatly avoid
-						// any concerns about thread safety with STRtrees
-						weight = potentialWeights.parallelStream().mapToDouble(weightFeature -> {
-                            // calculate the weight of the entire item geometry that we are weighting by
-                            Geometry weightGeom = weightFeature.geom;
-
-							double totalWeight = weightFeature.getAttribute(weightByAttribute);
-
-							// figure out how much of this weight should be assigned to the original geometry
-							double weightArea = GeoUtils.getArea(weightGeom);
-							
-							// don't divide by zeroish
-							if (weightArea < 0.0000000001)
-								return 0;
-
-							Geometry overlap = weightGeom.intersection(matchGeom);
-							if (overlap.isEmpty())
-								return 0;
-							
-							double overlapArea = GeoUtils.getArea(overlap);
-							
-							return totalWeight * (overlapArea / weightArea);
-						}).sum();
-					}
-
-                    if (!match.feature.geom.within(aggregateFeature.geom)) {
-                        // this aggregate geography does not completely contain the original geography.
-                        // discount weight to account for that.
-
-                        double matchArea = GeoUtils.getArea(matchGeom);
-
-                        if (matchArea < 0.0000000001)
-                            continue;
-
-                        Geometry overlap = matchGeom.intersection(aggregateFeature.geom);
-
-                        if (overlap.isEmpty())
-                            continue;
-
-                        weight *= GeoUtils.getArea(overlap) / matchArea;
-                    }
-					
-					weightedVal += match.value * weight;
-					sumOfWeights += weight;
-				}
-				
-				// add this feature to the new query result
-				QueryResultItem item = new QueryResultItem();
-				// don't divide by zero
-				item.value = sumOfWeights > 0.0000001 ? weightedVal / sumOfWeights : 0;
-				item.feature = aggregateFeature;
-				out.items.put(aggregateFeature.id, item);
-				out.shapeFileId = aggregateTo.id;
-				
-				if (out.maxValue == null || item.value > out.maxValue)
-					out.maxValue = item.value;
-	        	
-				if (out.minValue == null || out.minValue > item.value)
-	        		out.minValue = item.value;
-        	}
-			
-			// we preserve the maxPossible from the original. It does not change under aggregation.
-			out.maxPossible = this.maxPossible;
-			
-			if (this.classifier instanceof BimodalNaturalBreaksClassifier && this.minValue < 0 && this.maxValue > 0)
-				out.classifier = new BimodalNaturalBreaksClassifier(out, nClasses, 0d,
-						new Color(.9f, .9f, .1f, .5f), new Color(.5f, .5f, .5f, .5f), new Color(0f, 0f, 1f, .5f));
-			else
-				out.classifier = new NaturalBreaksClassifier(out, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.5f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
-			
-			out.shapeFileId = aggregateTo.id;
-						
-			aggregated.put(key, out);
-			
-			// TODO: set attribute ID.
-			
-			return out;
+		return cache.get(key + AGGREGATE_KEY + aggregateTo.id + "_" + weightBy.id + "_" + weightByAttribute,
+				() -> doAggregate(aggregateTo, weightBy, weightByAttribute));
+	}
+
+	private QueryResults doAggregate (Shapefile aggregateTo, Shapefile weightBy, String weightByAttribute) {
+		// the fraction of each of our features within each aggregate feature. This depends only on the geometries, so
+		// it is computed once and shared by every aggregation between the two shapefiles.
+		Crosswalk crosswalk = Crosswalk.get(shapefile, aggregateTo);
+
+		// the weight of each of our features, indexed as the sources of the crosswalk. If the weights come from the
+		// same shapefile, just use the attribute of each feature directly. Otherwise apportion the weights
+		// pycnophylactically, in proportion to the overlap of each weight feature with each of our features.
+		double[] weights = shapeFileId.equals(weightBy.id) ?
+				Crosswalk.getAttributeValues(weightBy, weightByAttribute) :
+				Crosswalk.get(weightBy, shapefile).apportion(Crosswalk.getAttributeValues(weightBy, weightByAttribute));
+
+		// this is the weighted value of all of the original geographies within each aggregate geography
+		double[] weightedVals = new double[crosswalk.targetSize()];
+
+		// This is the sum of the weights of all of the original geographies within each aggregate geography
+		double[] sumsOfWeights = new double[crosswalk.targetSize()];
+
+		for (int i = 0; i < ids.length; i++) {
+			int source = crosswalk.getSourceIndex(ids[i]);
+
+			if (source == -1)
+				continue;
+
+			crosswalk.apportion(source, values[i] * weights[source], weightedVals);
+			crosswalk.apportion(source, weights[source], sumsOfWeights);
 		}
+
+		String[] outIds = new String[crosswalk.targetSize()];
+		double[] outValues = new double[crosswalk.targetSize()];
+
+		for (int target = 0; target < outIds.length; target++) {
+			outIds[target] = crosswalk.getTargetId(target);
+			// don't divide by zero
+			outValues[target] = sumsOfWeights[target] > 0.0000001 ? weightedVals[target] / sumsOfWeights[target] : 0;
+		}
+
+		QueryResults out = new QueryResults();
+		out.setValues(outIds, null, outValues);
+		
+		// we preserve the maxPossible from the original. It does not change under aggregation.
+		out.maxPossible = this.maxPossible;
+		
+		boolean bimodal = this.classifier instanceof BimodalNaturalBreaksClassifier ||
+				this.classifier instanceof QuantileClassifier && ((QuantileClassifier) this.classifier).centered;
+
+		// too many values to classify by natural breaks quickly
+		if (out.size() > QuantileClassifier.THRESHOLD && bimodal && this.minValue < 0 && this.maxValue > 0)
+			out.classifier = new QuantileClassifier(out, nClasses, 0d,
+					new Color(.9f, .9f, .1f, .5f), new Color(.5f, .5f, .5f, .5f), new Color(0f, 0f, 1f, .5f));
+		else if (out.size() > QuantileClassifier.THRESHOLD)
+			out.classifier = new QuantileClassifier(out, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.5f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
+		else if (bimodal && this.minValue < 0 && this.maxValue > 0)
+			out.classifier = new BimodalNaturalBreaksClassifier(out, nClasses, 0d,
+					new Color(.9f, .9f, .1f, .5f), new Color(.5f, .5f, .5f, .5f), new Color(0f, 0f, 1f, .5f));
+		else
+			out.classifier = new NaturalBreaksClassifier(out, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.5f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
+		
+		out.shapeFileId = aggregateTo.id;
+		out.shapefile = aggregateTo;
+		
+		// TODO: set attribute ID.
+		
+		return out;
 	}
 	
 	/**
@@ -302,92 +321,91 @@ public class QueryResults {
 	 * The other queryresults must have come from or been aggregated to the same shapefile.
 	 */
 	public QueryResults subtract(QueryResults otherQr) {
-		synchronized (subtracted) {
-			if (subtracted.containsKey(otherQr.id))
-				return subtracted.get(otherQr.id);
-			
-			// TODO: check that indicator is same also
-			if (!shapeFileId.equals(otherQr.shapeFileId) || !attributeId.equals(otherQr.attributeId)) {
-				throw new IllegalArgumentException("Query results in difference operation do not come from same attribute of same shapefile!");
-			}
-			
-			QueryResults ret = new QueryResults();
-			
-			ret.shapeFileId = this.shapeFileId;
+		// TODO: check that indicator is same also
+		if (!shapeFileId.equals(otherQr.shapeFileId) || !attributeId.equals(otherQr.attributeId)) {
+			throw new IllegalArgumentException("Query results in difference operation do not come from same attribute of same shapefile!");
+		}
+
+		if (key == null || otherQr.key == null)
+			return doSubtract(otherQr);
 
-			// count how many values are above and below zero so we don't request a bimodal classifier with insufficient data
-			int gtZero = 0, ltZero = 0;
+		return cache.get(key + SUBTRACT_KEY + otherQr.key, () -> doSubtract(otherQr));
+	}
+
+	private QueryResults doSubtract(QueryResults otherQr) {
+		QueryResults ret = new QueryResults();
+		
+		ret.shapeFileId = this.shapeFileId;
+		ret.shapefile = this.shapefile;
+
+		// count how many values are above and below zero so we don't request a bimodal classifier with insufficient data
+		int gtZero = 0, ltZero = 0;
+		
+		List<String> retIds = new ArrayList<>();
+		TDoubleArrayList retValues = new TDoubleArrayList();
+
+		for (int i = 0; i < ids.length; i++) {
+			int j = otherQr.indexOf(ids[i]);
 			
-			for (String id : items.keySet()) {
-				QueryResultItem item1 = this.items.get(id);
-				QueryResultItem item2 = otherQr.items.get(id);
-				
-				if (item2 == null)
-					// if it's unreachable in either leave it out of the difference
-					continue;
-				
-				QueryResultItem newItem = new QueryResultItem();
-				newItem.feature = item1.feature;
-				newItem.value = item1.value - item2.value;
-				
-				if (ret.maxValue == null || newItem.value > ret.maxValue)
-					ret.maxValue = newItem.value;
-	        	
-				if (ret.minValue == null || ret.minValue > newItem.value)
-	        		ret.minValue = newItem.value;
-
-				if (newItem.value > 0) gtZero++;
-				if (newItem.value < 0) ltZero++;
-
-				ret.items.put(id, newItem);
-			}
+			if (j == -1)
+				// if it's unreachable in either leave it out of the difference
+				continue;
 			
-			// we preserve the maxPossible from the original. This is because we want to represent percentages as
-			// a percentage of total possible still, not a percent change.
-			ret.maxPossible = this.maxPossible;
+			double value = values[i] - otherQr.values[j];
 
-			// don't use a bimodal classifier if there are only a few values above or below zero.
-			if (ret.minValue < 0 && ret.maxValue > 0 && ltZero > 5 && gtZero > 5)
-				ret.classifier = new BimodalNaturalBreaksClassifier(ret, nClasses, 0d,
-					new Color(.9f, .9f, .1f, .5f), new Color(.5f, .5f, .5f, .5f), new Color(0f, 0f, 1f, .5f));
-			else 
-				ret.classifier = new NaturalBreaksClassifier(ret, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.5f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
-			
-			subtracted.put(otherQr.id, ret);
+			if (value > 0) gtZero++;
+			if (value < 0) ltZero++;
 
-			return ret;
+			retIds.add(ids[i]);
+			retValues.add(value);
 		}
+
+		ret.setValues(retIds, retValues);
+		
+		// we preserve the maxPossible from the original. This is because we want to represent percentages as
+		// a percentage of total possible still, not a percent change.
+		ret.maxPossible = this.maxPossible;
+
+		// too many values to classify by natural breaks quickly
+		if (ret.size() > QuantileClassifier.THRESHOLD && ret.minValue < 0 && ret.maxValue > 0)
+			ret.classifier = new QuantileClassifier(ret, nClasses, 0d,
+					new Color(.9f, .9f, .1f, .5f), new Color(.5f, .5f, .5f, .5f), new Color(0f, 0f, 1f, .5f));
+		else if (ret.size() > QuantileClassifier.THRESHOLD)
+			ret.classifier = new QuantileClassifier(ret, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.5f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
+		// don't use a bimodal classifier if there are only a few values above or below zero.
+		else if (ret.minValue < 0 && ret.maxValue > 0 && ltZero > 5 && gtZero > 5)
+			ret.classifier = new BimodalNaturalBreaksClassifier(ret, nClasses, 0d,
+				new Color(.9f, .9f, .1f, .5f), new Color(.5f, .5f, .5f, .5f), new Color(0f, 0f, 1f, .5f));
+		else 
+			ret.classifier = new NaturalBreaksClassifier(ret, nClasses, new Color(1.0f, 1.0f, 1.0f, 0.5f), new Color(0.0f, 0.0f, 1.0f, 0.5f));
+		
+		return ret;
 	}
     
-	/** Get a spatial index for the items of this queryresults */
+	/** Get a spatial index of the indices of the features of this queryresults */
 	public SpatialIndex getSpatialIndex () {
 		return getSpatialIndex(false);
 	}
 	
 	/**
-	 * Get a spatial index for the items of this queryresults.
+	 * Get a spatial index of the indices of the features of this queryresults.
 	 * @param forceRebuild force the spatial index to be rebuilt.
 	 * Should be set to true if the items of the result have changed in number or
 	 * geography (if they've changed in value there is no need to rebuild).
 	 */
-	public SpatialIndex getSpatialIndex (boolean forceRebuild) {
+	public synchronized SpatialIndex getSpatialIndex (boolean forceRebuild) {
 		if (forceRebuild || spIdx == null) {
-			// we can't build an STRtree with only one node, so we make sure we make a minimum of
-			// two nodes even if we leave one empty
-			spIdx = new STRtree(Math.max(items.size(), 2));
-			
-			for (QueryResultItem i : this.items.values()) {
-				spIdx.insert(i.feature.geom.getEnvelopeInternal(), i);
-			}
+			spIdx = SpatialIndexes.build(tree -> {
+				for (int i = 0; i < ids.length; i++) {
+					ShapeFeature feature = getFeature(i);
+
+					// the index holds the indices of the features, not the features, so geometries are not retained
+					if (feature != null)
+						tree.insert(feature.geom.getEnvelopeInternal(), i);
+				}
+			});
 		}
 		
 		return spIdx;
 	}
-
-	public static class QueryResultItem {
-		public ShapeFeature feature;
-		public Double value = 0.0;
-		public Double normalizedTotal = 0.0;
-		public Double original = 0.0;
-	}
 }
@@ -0,0 +1,97 @@
+package com.conveyal.analyst.server.utils;
+
+import com.conveyal.analyst.server.AnalystMain;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.common.cache.RemovalCause;
+import com.google.common.util.concurrent.UncheckedExecutionException;
+import models.Query;
+import org.opentripplanner.analyst.cluster.ResultEnvelope;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+
+/**
+ * Caches QueryResults, and the results derived from them by aggregation and subtraction, bounded by their approximate
+ * size in memory (application.query-results-cache-mb, by default a quarter of the heap).
+ *
+ * Loading is single-flight: if several requests (e.g. all the tiles of a map) need the same results at once, one of
+ * them builds the results and the others wait for it. Requests for different results do not wait for each other.
+ */
+public class QueryResultsCache {
+	private static final Logger LOG = LoggerFactory.getLogger(QueryResultsCache.class);
+
+	private static final long MAX_WEIGHT = Long.parseLong(AnalystMain.config.getProperty(
+			"application.query-results-cache-mb", "" + Runtime.getRuntime().maxMemory() / 4 / 1024 / 1024)) * 1024 * 1024;
+
+	private final Cache<String, QueryResults> cache;
+
+	public QueryResultsCache () {
+		this(MAX_WEIGHT);
+	}
+
+	/** Create a cache holding at most approximately maxBytes of results */
+	public QueryResultsCache (long maxBytes) {
+		// Guava divides the maximum weight between the segments of the cache, so with more than one segment, results
+		// approaching the budget would be evicted as soon as they were loaded
+		cache = CacheBuilder.newBuilder()
+				.concurrencyLevel(1)
+				.maximumWeight(maxBytes)
+				.weigher((String key, QueryResults qr) -> (int) Math.min(qr.getWeight(), Integer.MAX_VALUE))
+				.removalListener(n -> {
+					if (n.getCause() == RemovalCause.SIZE)
+						LOG.info("Evicted query results {} from cache, {}", n.getKey(), stats());
+				})
+				.recordStats()
+				.build();
+	}
+
+	/** Get the results of a query, building them if they are not cached */
+	public QueryResults get (Query query, int timeLimit, ResultEnvelope.Which which, String attributeId) {
+		return get(getKey(query.id, timeLimit, which, attributeId),
+				() -> new QueryResults(query, timeLimit, which, attributeId));
+	}
+
+	/** Get the results with the given key, building them with the loader if they are not cached */
+	public QueryResults get (String key, Callable<QueryResults> loader) {
+		try {
+			return cache.get(key, () -> {
+				QueryResults qr = loader.call();
+				qr.key = key;
+				return qr;
+			});
+		} catch (ExecutionException | UncheckedExecutionException e) {
+			throw new RuntimeException(e.getCause());
+		}
+	}
+
+	/**
+	 * Remove the cached results of a query, e.g. because more results have become available, along with everything
+	 * derived from them.
+	 */
+	public void invalidate (String queryId) {
+		cache.asMap().keySet().removeIf(key -> key.startsWith(queryId + "_") ||
+				key.contains(QueryResults.SUBTRACT_KEY + queryId + "_"));
+	}
+
+	public void clear () {
+		cache.invalidateAll();
+	}
+
+	/** hit, miss, load and eviction statistics */
+	public CacheStats stats () {
+		return cache.stats();
+	}
+
+	/** the total approximate size of the cached results, in bytes */
+	public long getWeight () {
+		return cache.asMap().values().stream().mapToLong(QueryResults::getWeight).sum();
+	}
+
+	public static String getKey (String queryId, int timeLimit, ResultEnvelope.Which which, String attributeId) {
+		return queryId + "_" + timeLimit + "_" + which + "_" + attributeId;
+	}
+}
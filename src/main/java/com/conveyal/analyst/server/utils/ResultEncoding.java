@@ -0,0 +1,192 @@
+package com.conveyal.analyst.server.utils;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * How histogram counts and sums are encoded in query result files. The encoding is chosen when a store is written and
+ * recorded in the header of each columnar file, so readers detect it automatically.
+ *
+ * Histograms are marginals, so they are effectively already delta-coded: most bins are zero or small. The varint
+ * encodings take advantage of this, at the cost of rows no longer being fixed-width.
+ */
+public enum ResultEncoding {
+	/** four-byte big-endian ints */
+	RAW {
+		@Override
+		public void write (DataOutput out, int[] values, int length) throws IOException {
+			for (int i = 0; i < length; i++) {
+				out.writeInt(values[i]);
+			}
+		}
+
+		@Override
+		public void read (DataInput in, int[] values, int length) throws IOException {
+			for (int i = 0; i < length; i++) {
+				values[i] = in.readInt();
+			}
+		}
+
+		@Override
+		public void read (ByteBuffer in, int[] values, int length) {
+			for (int i = 0; i < length; i++) {
+				values[i] = in.getInt();
+			}
+		}
+	},
+
+	/** zigzag varints, so small values of either sign take a single byte */
+	VARINT {
+		@Override
+		public void write (DataOutput out, int[] values, int length) throws IOException {
+			for (int i = 0; i < length; i++) {
+				writeVarint(out, zigzag(values[i]));
+			}
+		}
+
+		@Override
+		public void read (DataInput in, int[] values, int length) throws IOException {
+			for (int i = 0; i < length; i++) {
+				values[i] = unzigzag(readVarint(in));
+			}
+		}
+
+		@Override
+		public void read (ByteBuffer in, int[] values, int length) {
+			for (int i = 0; i < length; i++) {
+				values[i] = unzigzag(readVarint(in));
+			}
+		}
+	},
+
+	/**
+	 * zigzag varints, with runs of zeros written as a zero followed by the length of the run. Zigzag encoding only maps
+	 * zero to zero, so a zero always introduces a run.
+	 */
+	VARINT_ZERO_RUNS {
+		@Override
+		public void write (DataOutput out, int[] values, int length) throws IOException {
+			for (int i = 0; i < length; i++) {
+				if (values[i] == 0) {
+					int run = 1;
+					while (i + run < length && values[i + run] == 0)
+						run++;
+
+					writeVarint(out, 0);
+					writeVarint(out, run);
+					i += run - 1;
+				}
+				else {
+					writeVarint(out, zigzag(values[i]));
+				}
+			}
+		}
+
+		@Override
+		public void read (DataInput in, int[] values, int length) throws IOException {
+			for (int i = 0; i < length; i++) {
+				int value = readVarint(in);
+
+				if (value == 0) {
+					int run = readVarint(in);
+					checkRun(i, run, length);
+
+					for (int end = i + run; i < end; i++) {
+						values[i] = 0;
+					}
+
+					// compensate for the loop increment
+					i--;
+				}
+				else {
+					values[i] = unzigzag(value);
+				}
+			}
+		}
+
+		@Override
+		public void read (ByteBuffer in, int[] values, int length) {
+			for (int i = 0; i < length; i++) {
+				int value = readVarint(in);
+
+				if (value == 0) {
+					int run = readVarint(in);
+					checkRun(i, run, length);
+
+					for (int end = i + run; i < end; i++) {
+						values[i] = 0;
+					}
+
+					i--;
+				}
+				else {
+					values[i] = unzigzag(value);
+				}
+			}
+		}
+	};
+
+	/** the encoding used for new stores unless otherwise specified */
+	public static final ResultEncoding DEFAULT = VARINT_ZERO_RUNS;
+
+	/** Write the first length values */
+	public abstract void write (DataOutput out, int[] values, int length) throws IOException;
+
+	/** Read length values into the start of the given array */
+	public abstract void read (DataInput in, int[] values, int length) throws IOException;
+
+	/** Read length values into the start of the given array, from the current position of the buffer */
+	public abstract void read (ByteBuffer in, int[] values, int length);
+
+	private static int zigzag (int value) {
+		return (value << 1) ^ (value >> 31);
+	}
+
+	private static int unzigzag (int value) {
+		return (value >>> 1) ^ -(value & 1);
+	}
+
+	private static void writeVarint (DataOutput out, int value) throws IOException {
+		while ((value & ~0x7f) != 0) {
+			out.writeByte((value & 0x7f) | 0x80);
+			value >>>= 7;
+		}
+
+		out.writeByte(value);
+	}
+
+	private static int readVarint (DataInput in) throws IOException {
+		int value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			b = in.readByte();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		return value;
+	}
+
+	private static int readVarint (ByteBuffer in) {
+		int value = 0;
+		int shift = 0;
+		byte b;
+
+		do {
+			b = in.get();
+			value |= (b & 0x7f) << shift;
+			shift += 7;
+		} while (b < 0);
+
+		return value;
+	}
+
+	private static void checkRun (int i, int run, int length) {
+		if (run <= 0 || i + run > length)
+			throw new IllegalArgumentException("Invalid run of zeros in encoded histogram");
+	}
+}
@@ -0,0 +1,119 @@
+package com.conveyal.analyst.server.utils;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import gnu.trove.list.array.TIntArrayList;
+import org.opentripplanner.analyst.cluster.ResultEnvelope;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Parses a JSON result envelope with the Jackson streaming API, straight into the arrays that QueryResultStore writes,
+ * rather than binding a ResultEnvelope with its result sets, maps and histograms. Unknown fields are skipped.
+ */
+public class ResultEnvelopeParser {
+	private static final JsonFactory jsonFactory = new JsonFactory();
+
+	/** the JSON fields of ResultEnvelope that hold each envelope parameter */
+	private static final Map<String, ResultEnvelope.Which> FIELDS = new HashMap<>();
+
+	static {
+		FIELDS.put("bestCase", ResultEnvelope.Which.BEST_CASE);
+		FIELDS.put("avgCase", ResultEnvelope.Which.AVERAGE);
+		FIELDS.put("worstCase", ResultEnvelope.Which.WORST_CASE);
+		FIELDS.put("pointEstimate", ResultEnvelope.Which.POINT_ESTIMATE);
+		FIELDS.put("spread", ResultEnvelope.Which.SPREAD);
+	}
+
+	/** Parse an envelope. The stream is not closed. */
+	public static QueryResultStore.FeatureResults parse (InputStream is) throws IOException {
+		QueryResultStore.FeatureResults ret = new QueryResultStore.FeatureResults();
+
+		JsonParser parser = jsonFactory.createParser(is);
+		expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if ("id".equals(field))
+				ret.id = parser.getValueAsString();
+			else if (FIELDS.containsKey(field) && value == JsonToken.START_OBJECT)
+				readResultSet(parser, FIELDS.get(field), ret);
+			else
+				// also skips null result sets
+				parser.skipChildren();
+		}
+
+		if (ret.id == null)
+			throw new JsonParseException("Result envelope has no ID", parser.getCurrentLocation());
+
+		return ret;
+	}
+
+	/** read a result set, positioned at its start */
+	private static void readResultSet (JsonParser parser, ResultEnvelope.Which which,
+			QueryResultStore.FeatureResults ret) throws IOException {
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if ("histograms".equals(field) && value == JsonToken.START_OBJECT) {
+				while (parser.nextToken() == JsonToken.FIELD_NAME) {
+					String variable = parser.getCurrentName();
+					expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+					readHistogram(parser, which, variable, ret);
+				}
+			}
+			else {
+				parser.skipChildren();
+			}
+		}
+	}
+
+	/** read a histogram, positioned at its start */
+	private static void readHistogram (JsonParser parser, ResultEnvelope.Which which, String variable,
+			QueryResultStore.FeatureResults ret) throws IOException {
+		int[] counts = null;
+		int[] sums = null;
+
+		while (parser.nextToken() == JsonToken.FIELD_NAME) {
+			String field = parser.getCurrentName();
+			JsonToken value = parser.nextToken();
+
+			if ("counts".equals(field) && value == JsonToken.START_ARRAY)
+				counts = readInts(parser);
+			else if ("sums".equals(field) && value == JsonToken.START_ARRAY)
+				sums = readInts(parser);
+			else
+				parser.skipChildren();
+		}
+
+		if (counts == null || sums == null)
+			throw new JsonParseException("Histogram " + variable + " is missing counts or sums",
+					parser.getCurrentLocation());
+
+		ret.add(which, variable, counts, sums);
+	}
+
+	/** read an array of ints, positioned at its start */
+	private static int[] readInts (JsonParser parser) throws IOException {
+		TIntArrayList ret = new TIntArrayList();
+
+		while (parser.nextToken() != JsonToken.END_ARRAY) {
+			ret.add(parser.getIntValue());
+		}
+
+		return ret.toArray();
+	}
+
+	private static void expect (JsonParser parser, JsonToken actual, JsonToken expected) throws JsonParseException {
+		if (actual != expected)
+			throw new JsonParseException("Expected " + expected + " but found " + actual, parser.getCurrentLocation());
+	}
+}
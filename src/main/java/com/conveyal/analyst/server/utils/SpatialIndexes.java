@@ -0,0 +1,20 @@
+package com.conveyal.analyst.server.utils;
+
+import com.vividsolutions.jts.index.strtree.STRtree;
+
+import java.util.function.Consumer;
+
+/** Builds the spatial indices of shapefiles, bundles and query results */
+public class SpatialIndexes {
+	/**
+	 * Make an STRtree, insert items into it and build it. It has the default node capacity; a node for all the items
+	 * would make every query scan them all. It is built now rather than on the first query, so that it can be queried
+	 * from many threads at once.
+	 */
+	public static STRtree build (Consumer<STRtree> insert) {
+		STRtree tree = new STRtree();
+		insert.accept(tree);
+		tree.build();
+		return tree;
+	}
+}
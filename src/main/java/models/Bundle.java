@@ -2,8 +2,10 @@ package models;
 
 import com.conveyal.analyst.server.AnalystMain;
 import com.conveyal.analyst.server.jobs.ProcessTransitBundleJob;
+import com.conveyal.analyst.server.tiles.TileCache;
 import com.conveyal.analyst.server.utils.DataStore;
 import com.conveyal.analyst.server.utils.HashUtils;
+import com.conveyal.analyst.server.utils.SpatialIndexes;
 import com.conveyal.gtfs.GTFSFeed;
 import com.conveyal.gtfs.model.*;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -88,6 +90,9 @@ public class Bundle implements Serializable {
 	
 	public Bounds bounds;
 	
+	/** when this bundle was last saved, in milliseconds since the epoch; see Controller.checkCache */
+	public long lastModified;
+	
 	public List<RouteSummary> routes = Lists.newArrayList();
 	
 	/** spatial index of transit layer. */
@@ -115,13 +120,11 @@ public class Bundle implements Serializable {
 		
 		Collection<TransitSegment> shapes = getSegments();
 		
-		STRtree spIdx = new STRtree(Math.max(shapes.size(), 2));
-		
-		for (TransitSegment seg : shapes) {
-			spIdx.insert(seg.geom.getEnvelopeInternal(), seg);
-		}
-
-		this.spIdx = spIdx;
+		this.spIdx = SpatialIndexes.build(tree -> {
+			for (TransitSegment seg : shapes) {
+				tree.insert(seg.geom.getEnvelopeInternal(), seg);
+			}
+		});
 	}
 	
 	public Bundle() {}
@@ -173,7 +176,9 @@ public class Bundle implements Serializable {
 			LOG.info("created bundle " + id);
 		}
 		
+		lastModified = System.currentTimeMillis();
 		bundleData.save(id, this);
+		TileCache.cache.invalidate(id);
 		
 		LOG.info("Saved bundle {} and committed data.", id);
 	}
@@ -199,6 +204,7 @@ public class Bundle implements Serializable {
 	
 	public void delete() throws IOException {
 		bundleData.delete(id);
+		TileCache.cache.invalidate(id);
 		
 		FileUtils.deleteDirectory(getBundleDataPath());
 		
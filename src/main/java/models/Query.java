@@ -1,15 +1,20 @@
 package models;
 
+import com.amazonaws.ClientConfiguration;
 import com.amazonaws.services.s3.AmazonS3;
 import com.amazonaws.services.s3.AmazonS3Client;
 import com.amazonaws.services.s3.model.ObjectListing;
 import com.amazonaws.services.s3.model.S3Object;
+import com.amazonaws.services.s3.model.S3ObjectSummary;
 import com.conveyal.analyst.server.AnalystMain;
 import com.conveyal.analyst.server.otp.Analyst;
+import com.conveyal.analyst.server.tiles.TileCache;
 import com.conveyal.analyst.server.utils.*;
 import com.fasterxml.jackson.annotation.JsonIgnore;
 import com.fasterxml.jackson.annotation.JsonIgnoreProperties;
 import com.google.common.collect.Lists;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import org.joda.time.LocalDate;
 import org.opentripplanner.analyst.PointFeature;
 import org.opentripplanner.analyst.PointSet;
@@ -28,6 +33,9 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.stream.Collectors;
 import java.util.zip.GZIPInputStream;
 
@@ -56,7 +64,9 @@ public class Query implements Serializable {
 
 	public RaptorWorkerTimetable.BoardingAssumption boardingAssumption;
 
-	private static final AmazonS3 s3 = new AmazonS3Client();
+	/** S3 client for retrieving results, with a connection for each ingest thread */
+	private static final AmazonS3 s3 = new AmazonS3Client(new ClientConfiguration()
+			.withMaxConnections(QueryResultIngester.THREADS));
 
 	/** The mode. Can be left null if both graphId and profileRequest or routingRequest are set */
 	public String mode;
@@ -129,6 +139,21 @@ public class Query implements Serializable {
 	@JsonIgnore
 	transient private QueryResultStore results;
 
+	/** Stores results in the result store, and keeps track of which have been retrieved so far */
+	@JsonIgnore
+	transient private QueryResultIngester ingester;
+
+	/** The pass retrieving results in the background while the query is running, if any */
+	@JsonIgnore
+	transient private Future<?> backgroundIngest;
+
+	/** The result stores of queries that are still running, by query ID */
+	private static final Map<String, QueryResultStore> openResults = Maps.newConcurrentMap();
+
+	/** Runs background ingest passes, which mostly wait on the ingest pool */
+	private static final ExecutorService backgroundIngestExecutor = Executors.newCachedThreadPool(
+			new ThreadFactoryBuilder().setNameFormat("background-ingest-%d").setDaemon(true).build());
+
 	public Query() {
 		
 	}
@@ -347,49 +372,102 @@ public class Query implements Serializable {
 		this.completePoints = jobStatus.complete;
 		this.save();
 
-		if (this.completePoints.equals(this.totalPoints)) {
-			// retrieve results from S3
-			QueryResultStore results = getResults();
+		QueryResultStore results = getResults();
 
-			String resultBucket = AnalystMain.config.getProperty("cluster.results-bucket");
+		if (ingester == null)
+			ingester = new QueryResultIngester(results);
 
-			ObjectListing listing = null;
-			try {
-				do {
-					listing = listing == null ? s3.listObjects(resultBucket, this.id + "/") : s3.listNextBatchOfObjects(listing);
-
-					// safe to do gets in parallel because the storage mechanism is synchronized
-					listing.getObjectSummaries().parallelStream().forEach(os -> {
-						S3Object obj = s3.getObject(os.getBucketName(), os.getKey());
+		QueryResultIngester ingester = this.ingester;
 
-						ResultEnvelope env;
-						try {
-							InputStream is = new GZIPInputStream(new BufferedInputStream(obj.getObjectContent()));
-							env = JsonUtil.getObjectMapper().readValue(is, ResultEnvelope.class);
-							is.close();
-						} catch (IOException e) {
-							throw new S3IOException(e);
-						}
-
-						results.store(env);
-					});
+		if (this.completePoints.equals(this.totalPoints)) {
+			// Don't wait for a background pass to finish, as we hold the lock on this query and the background pass
+			// may need it indirectly (e.g. via QueryResults); we'll be called again.
+			if (backgroundIngest != null && !backgroundIngest.isDone())
+				return true;
 
-				} while (listing.isTruncated());
+			// retrieve the remaining results from S3
+			try {
+				ingestResults(ingester);
 
-				this.closeResults();
+				// closing the store merges the segments into columnar result files, including the precomputed
+				// cumulative sums
+				results.close();
 			} catch (Exception e) {
 				LOG.error("exception caught, retrying result retrieval", e);
 				return true;
 			}
 
+			// save the query as complete before other copies of it stop sharing the store, so that they open the
+			// final results read-only
 			this.complete = true;
 			this.save();
+			this.releaseResults();
+
+			// drop anything computed from partial results
+			QueryResults.cache.invalidate(this.id);
+			TileCache.cache.invalidate(this.id);
 			return false;
 		}
 
+		// retrieve the results computed so far in the background, so that partial results can be displayed and there
+		// is less to retrieve once the query completes
+		if (backgroundIngest == null || backgroundIngest.isDone()) {
+			backgroundIngest = backgroundIngestExecutor.submit(() -> {
+				int before = ingester.size();
+
+				try {
+					ingestResults(ingester);
+				} catch (Exception e) {
+					// the results that were stored are kept, and the rest will be retrieved on the next pass
+					LOG.warn("exception caught retrieving partial results for query {}", id, e);
+				}
+
+				if (ingester.size() > before) {
+					ingester.checkpoint();
+					QueryResults.cache.invalidate(id);
+					TileCache.cache.invalidate(id);
+				}
+			});
+		}
+
 		return true;
 	}
 
+	/**
+	 * Retrieve all the results in S3 that have not yet been stored. Gets and stores happen in parallel on a bounded
+	 * pool; the store shards its writers by thread. Each result is streamed from S3 through the parser, and retried
+	 * individually if it fails.
+	 */
+	private void ingestResults (QueryResultIngester ingester) throws Exception {
+		String resultBucket = AnalystMain.config.getProperty("cluster.results-bucket");
+
+		ObjectListing listing = null;
+		try {
+			do {
+				listing = listing == null ? s3.listObjects(resultBucket, this.id + "/") : s3.listNextBatchOfObjects(listing);
+
+				for (S3ObjectSummary os : listing.getObjectSummaries()) {
+					ingester.submit(os.getKey(), () -> {
+						S3Object obj = s3.getObject(os.getBucketName(), os.getKey());
+
+						try (InputStream is = new GZIPInputStream(new BufferedInputStream(obj.getObjectContent()))) {
+							return ResultEnvelopeParser.parse(is);
+						} catch (IOException e) {
+							throw new S3IOException(e);
+						}
+					});
+				}
+
+			} while (listing.isTruncated());
+
+			ingester.finish();
+		} catch (Exception e) {
+			// make sure nothing is still writing to the store when we retry
+			ingester.cancel();
+			throw e;
+		}
+	}
+
 	public String getGraphId () {
 		if (this.graphId != null)
 			return this.graphId;
@@ -402,6 +480,8 @@ public class Query implements Serializable {
 
 	/** delete or archive this query */
 	public void delete() throws IOException {
+		TileCache.cache.invalidate(id);
+
 		if (!complete) {
 			queryData.delete(id);
 			LOG.info("delete query q" + id);
@@ -415,7 +495,13 @@ public class Query implements Serializable {
 
 	private synchronized void makeResultDb() {
 		if (results == null) {
-			results = new QueryResultStore(this);
+			// Share the store of a running query between all copies of it, so that partial results written by the
+			// copy receiving status updates can be read by the others.
+			results = complete ? new QueryResultStore(this) : openResults.computeIfAbsent(id, k -> new QueryResultStore(this));
+
+			// a stale copy of a query that has just completed opens the final results, which are not shared
+			if (results.readOnly)
+				openResults.remove(id, results);
 		}
 	}
 	
@@ -429,11 +515,12 @@ public class Query implements Serializable {
 		return results;
 	}
 	
-	/** close the results database, ensuring it is written to disk */
-	public synchronized void closeResults () {
+	/** stop sharing the results database, which has been closed, with other copies of this query */
+	private synchronized void releaseResults () {
 		if (results != null) {
-			results.close();
+			openResults.remove(id);
 			results = null;
+			ingester = null;
 		}
 	}
 
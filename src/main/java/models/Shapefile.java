@@ -1,10 +1,15 @@
 package models;
 
 import com.conveyal.analyst.server.AnalystMain;
+import com.conveyal.analyst.server.tiles.TileCache;
+import com.conveyal.analyst.server.utils.Crosswalk;
 import com.conveyal.analyst.server.utils.DataStore;
 import com.conveyal.analyst.server.utils.GeoUtils;
+import com.conveyal.analyst.server.utils.GeometryPyramid;
 import com.conveyal.analyst.server.utils.HaltonPoints;
+import com.conveyal.analyst.server.utils.MercatorGeometry;
 import com.conveyal.analyst.server.utils.PointSetDatastore;
+import com.conveyal.analyst.server.utils.SpatialIndexes;
 import com.conveyal.data.geobuf.GeobufDecoder;
 import com.conveyal.data.geobuf.GeobufFeature;
 import com.fasterxml.jackson.annotation.JsonIgnore;
@@ -46,6 +51,7 @@ import java.io.*;
 import java.lang.ref.SoftReference;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.stream.Collectors;
 import java.util.zip.ZipEntry;
 import java.util.zip.ZipException;
@@ -97,6 +103,9 @@ public class Shapefile implements Serializable {
 
 	public Integer featureCount;
 
+	/** when this shapefile was last saved, in milliseconds since the epoch; see Controller.checkCache */
+	public long lastModified;
+
 	@JsonIgnore
 	public HashMap<String,Attribute> attributes = new HashMap<String,Attribute>();
 
@@ -113,6 +122,9 @@ public class Shapefile implements Serializable {
 	@JsonIgnore
 	transient private SoftReference<STRtree> spatialIndex;
 
+	/** whether the areas of all the features are known to be in the feature store */
+	transient boolean areasStored;
+
 	public Shapefile() {
 		
 	}
@@ -122,12 +134,21 @@ public class Shapefile implements Serializable {
 		public String id;
 		public Geometry geom;
 
+		/**
+		 * area of the geometry in an equal-area projection (see GeoUtils.getArea), computed when the shapefile is
+		 * imported. Null for features stored before areas were, until they are backfilled.
+		 */
+		Double area;
+
 		@JsonIgnore
 		transient private List<PreparedPolygon> preparedPolygons;
 
 		@JsonIgnore
 		transient private Map<String,HaltonPoints> haltonPointMap;
 
+		@JsonIgnore
+		transient private MercatorGeometry mercatorGeometry;
+
 		@JsonIgnore
 		public List<PreparedPolygon> getPreparedPolygons() {
 
@@ -155,6 +176,15 @@ public class Shapefile implements Serializable {
 			return preparedPolygons;
 		}
 
+		/** the geometry projected to web mercator, for drawing tiles; projected once and kept with the feature */
+		@JsonIgnore
+		public MercatorGeometry getMercatorGeometry() {
+			if(mercatorGeometry == null)
+				mercatorGeometry = new MercatorGeometry(geom);
+
+			return mercatorGeometry;
+		}
+
 		@JsonIgnore
 		public HaltonPoints getHaltonPoints(String attributeId) {
 			if(haltonPointMap == null)
@@ -174,6 +204,15 @@ public class Shapefile implements Serializable {
 
 		}
 
+		/** Get the equal-area area of this feature, computing it if it was not stored */
+		@JsonIgnore
+		public double getArea() {
+			if (area == null)
+				area = GeoUtils.getArea(geom);
+
+			return area;
+		}
+
 		@JsonIgnore
 		public Integer getAttribute(String attributeId) {
 			// TODO: don't assume everything is numeric, and don't cast everything to int (bad for e.g. synthetic populations with fractional people)
@@ -314,6 +353,11 @@ public class Shapefile implements Serializable {
 	@JsonIgnore
 	public void setShapeFeatureStore(List<Fun.Tuple2<String,ShapeFeature>> features) {
 
+		// compute the areas up front so that they are stored with the features and never reprojected again
+		features.parallelStream().forEach(feature -> feature.b.getArea());
+
+		areasStored = true;
+
 		shapeFeatures = new DataStore<ShapeFeature>(getShapeDataPath(), id, features);
 
 	}
@@ -330,7 +374,7 @@ public class Shapefile implements Serializable {
 	}
 
 	@JsonIgnore
-	private static File getShapeDataPath() {
+	public static File getShapeDataPath() {
 		File shapeDataPath = new File(AnalystMain.config.getProperty("application.data"), "shape_data");
 
 		shapeDataPath.mkdirs();
@@ -357,14 +401,40 @@ public class Shapefile implements Serializable {
 		return featureCount;
 	}
 
+	/**
+	 * Store the areas of any features that were imported before areas were stored with them. This only does any work
+	 * the first time it is called for an old shapefile.
+	 */
+	public synchronized void storeAreas() {
+		if (areasStored)
+			return;
+
+		DataStore<ShapeFeature> store = getShapeFeatureStore();
+		AtomicInteger count = new AtomicInteger();
+
+		store.getAll().parallelStream()
+				.filter(feature -> feature.area == null)
+				.forEach(feature -> {
+					feature.getArea();
+					store.saveWithoutCommit(feature.id, feature);
+					count.incrementAndGet();
+				});
+
+		if (count.get() > 0) {
+			store.commit();
+			LOG.info("Stored areas of {} features of shapefile {}", count.get(), id);
+		}
+
+		areasStored = true;
+	}
+
 	private STRtree buildIndex() {
 		LOG.info("Building index for shapefile " + this.id);
-		// it's not possible to make an R-tree with only one node, so we make an r-tree with two
-		// nodes and leave one empty.
-		STRtree spatialIndex = new STRtree(Math.max(getShapeFeatureStore().size(), 2));
-		for(ShapeFeature feature : getShapeFeatureStore().getAll()) {
-			spatialIndex.insert(feature.geom.getEnvelopeInternal(), feature);
-		}
+		STRtree spatialIndex = SpatialIndexes.build(tree -> {
+			for(ShapeFeature feature : getShapeFeatureStore().getAll()) {
+				tree.insert(feature.geom.getEnvelopeInternal(), feature);
+			}
+		});
 		LOG.info("Done building index for shapefile " + this.id);
 		return spatialIndex;
 	}
@@ -374,6 +444,19 @@ public class Shapefile implements Serializable {
 		return getSpatialIndex().query(env);
 
 	}
+
+	/**
+	 * Get the features to draw in the envelope at the given zoom. At low zooms these are copies of the features with
+	 * generalized geometries, and features smaller than a pixel are culled (see GeometryPyramid).
+	 */
+	public List<ShapeFeature> query(Envelope env, int zoom) {
+		int level = GeometryPyramid.getLevel(zoom);
+
+		if (level == -1)
+			return query(env);
+
+		return GeometryPyramid.get(this).query(env, level);
+	}
 	
 	public List<Attribute> getShapeAttributes() {
 		return new ArrayList(attributes.values());
@@ -446,6 +529,9 @@ public class Shapefile implements Serializable {
 			// we have a sorted list but it needs to be reverse-sorted for MapDB.
 	    	shapefile.setShapeFeatureStore(Lists.reverse(features));
 
+	    	// generalize the geometries for drawing at low zooms now, rather than when the first tiles are requested
+	    	GeometryPyramid.get(shapefile);
+
 	    	shapefile.save();
 
 			// NB using forward-sorted iterator here not the reverse-sorted iterator that is used in the MapDB
@@ -494,6 +580,8 @@ public class Shapefile implements Serializable {
 			// GeoBuf files generally come from the Census, so one would hope they are already valid. But it won't hurt to
 			// double-check.
 			sf.geom = GeoUtils.makeValid(feature.geometry);
+			// store the area so that it is never reprojected again
+			sf.getArea();
 			featureStore.saveWithoutCommit(sf.id, sf);
 
 			for (Map.Entry<String, Object> prop : feature.properties.entrySet()) {
@@ -502,6 +590,10 @@ public class Shapefile implements Serializable {
 		}
 
  		featureStore.commit();
+
+		// generalize the geometries for drawing at low zooms now, rather than when the first tiles are requested
+		GeometryPyramid.get(shapefile);
+
 		shapefile.save();
 		return shapefile;
 	}
@@ -685,7 +777,9 @@ public class Shapefile implements Serializable {
 	}
 
 	public void save() {
+		lastModified = System.currentTimeMillis();
 		shapefilesData.save(id, this);
+		TileCache.cache.invalidate(id);
 		LOG.info("saved shapefile " +id);
 	}
 
@@ -695,6 +789,10 @@ public class Shapefile implements Serializable {
 		if(file != null && file.exists())
 			file.delete();
 
+		Crosswalk.delete(id);
+		GeometryPyramid.delete(id);
+		TileCache.cache.invalidate(id);
+
 		try {
 			cleanupUnzippedShapefile();
 		} catch (IOException e) {
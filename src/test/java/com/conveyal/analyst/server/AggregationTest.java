@@ -32,7 +32,7 @@ public class AggregationTest extends TestCase {
      * Get a grid shapefile, with the given origin, resolution and size. The IntFunction will receive a single number that is
      * the feature position in the file (rows first) and should return the attributes for that feature.
      */
-    private static Shapefile getGrid (double originX, double originY, double resolutionX, double resolutionY, int countX, int countY, IntFunction<Map<String, Object>> attributeProducer) {
+    public static Shapefile getGrid (double originX, double originY, double resolutionX, double resolutionY, int countX, int countY, IntFunction<Map<String, Object>> attributeProducer) {
         List<Polygon> ret = new ArrayList<>();
 
         for (int y = 0; y < countY; y++) {
@@ -82,19 +82,20 @@ public class AggregationTest extends TestCase {
     }
 
     /** Create query results from a shapefile. The function returns the value for a particular feature. */
-    public QueryResults getQueryResultsForShapefile (Shapefile shp, Function<Shapefile.ShapeFeature, Double> getValue) {
-        QueryResults qr = new QueryResults();
-        qr.shapeFileId = shp.id;
-        qr.minValue = qr.maxPossible = Double.MAX_VALUE;
-        qr.maxValue = Double.MIN_VALUE;
-
-        for (Shapefile.ShapeFeature sf : shp.getShapeFeatureStore().getAll()) {
-            QueryResults.QueryResultItem queryResultItem = new QueryResults.QueryResultItem();
-            queryResultItem.feature = sf;
-            queryResultItem.value = getValue.apply(sf);
-            qr.items.put(sf.id, queryResultItem);
+    public static QueryResults getQueryResultsForShapefile (Shapefile shp, Function<Shapefile.ShapeFeature, Double> getValue) {
+        Collection<Shapefile.ShapeFeature> features = shp.getShapeFeatureStore().getAll();
+        String[] ids = new String[features.size()];
+        double[] values = new double[features.size()];
+
+        int i = 0;
+        for (Shapefile.ShapeFeature sf : features) {
+            ids[i] = sf.id;
+            values[i++] = getValue.apply(sf);
         }
 
+        QueryResults qr = new QueryResults(shp, ids, values);
+        qr.maxPossible = Double.MAX_VALUE;
+
         return qr;
     }
 
@@ -116,7 +117,6 @@ public class AggregationTest extends TestCase {
         QueryResults qr = getQueryResultsForShapefile(shp, sf -> sf.getAttribute("value").doubleValue());
 
         QueryResults aggregated = qr.aggregate(contour, shp, "weight");
-        QueryResults.QueryResultItem aggItem = aggregated.items.values().stream().findFirst().orElse(null);
 
         // Independently verify the calculated values.
         // The aggregate shapefile overlaps the first 50.5 features of the first fifty rows.
@@ -146,7 +146,7 @@ public class AggregationTest extends TestCase {
             }
         }
 
-        assertEquals(expected / wsum, aggItem.value, 1e-6);
+        assertEquals(expected / wsum, aggregated.values[0], 1e-6);
     }
 
     /** Test weighting by a different shapefile */
@@ -184,9 +184,8 @@ public class AggregationTest extends TestCase {
         QueryResults qr = getQueryResultsForShapefile(shp, sf -> sf.getAttribute("value").doubleValue());
 
         QueryResults aggregated = qr.aggregate(contour, weights, "weight");
-        QueryResults.QueryResultItem item = aggregated.items.values().stream().findFirst().orElse(null);
 
         // see comment above for why the correct answer is 6.5 / 4.
-        assertEquals(6.5 / 4, item.value, 1e-6);
+        assertEquals(6.5 / 4, aggregated.values[0], 1e-6);
     }
 }
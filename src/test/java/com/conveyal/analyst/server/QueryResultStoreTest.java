@@ -1,6 +1,12 @@
 package com.conveyal.analyst.server;
 
+import com.conveyal.analyst.server.utils.QueryResultColumns;
+import com.conveyal.analyst.server.utils.QueryResultIngester;
 import com.conveyal.analyst.server.utils.QueryResultStore;
+import com.conveyal.analyst.server.utils.QueryResultStore.FeatureResults;
+import com.conveyal.analyst.server.utils.ResultEnvelopeParser;
+import com.conveyal.analyst.server.utils.ResultEncoding;
+import com.google.common.collect.Sets;
 import com.google.common.io.Files;
 import junit.framework.TestCase;
 import org.junit.Test;
@@ -8,9 +14,17 @@ import org.opentripplanner.analyst.Histogram;
 import org.opentripplanner.analyst.ResultSet;
 import org.opentripplanner.analyst.cluster.ResultEnvelope;
 
+import java.io.ByteArrayInputStream;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.IntBuffer;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPOutputStream;
 
 /**
  * Test that query result stores work.
@@ -126,12 +140,383 @@ public class QueryResultStoreTest extends TestCase{
         assertFalse(twoBest.hasNext());
     }
 
+    /** Test random access to the columnar format */
+    @Test
+    public void testColumns () {
+        Histogram h1 = new Histogram();
+        h1.counts = new int[] { 1, 2, 3, 4 };
+        h1.sums = new int[] { 10, 20, 30, 40 };
+
+        // shorter than the other histogram, so it is padded in the file
+        Histogram h2 = new Histogram();
+        h2.counts = new int[] { 5, 6 };
+        h2.sums = new int[] { 50, 60 };
+
+        File tempDir = Files.createTempDir();
+        QueryResultStore qrs = new QueryResultStore("test", false, tempDir);
+
+        qrs.store(envelope("a", "var", h1));
+        qrs.store(envelope("b", "var", h2));
+        qrs.close();
+
+        // feature IDs are stored once, in the dictionary, and the segment files are removed
+        assertTrue(new File(tempDir, "test.features").exists());
+        assertEquals(0, tempDir.listFiles((dir, name) -> name.endsWith(".tmp")).length);
+
+        qrs = new QueryResultStore("test", true, tempDir);
+        QueryResultColumns columns = qrs.getColumns("var", ResultEnvelope.Which.AVERAGE);
+
+        assertNotNull(columns);
+        assertEquals(2, columns.size());
+        assertEquals(-1, columns.getRow("nonexistent"));
+
+        int a = columns.getRow("a");
+        int b = columns.getRow("b");
+        assertEquals("a", columns.getId(a));
+        assertEquals("b", columns.getId(b));
+
+        // lengths are preserved
+        assertEquals(4, columns.getSums(a).remaining());
+        assertEquals(2, columns.getCounts(b).remaining());
+        histogramEquals(h2, columns.getResultSet(b).histograms.get("var"));
+
+        // bins are included if they start before the time limit
+        assertEquals(0, columns.sum(a, 0));
+        assertEquals(10, columns.sum(a, 60));
+        assertEquals(30, columns.sum(a, 61));
+        assertEquals(100, columns.sum(a, 3600));
+        assertEquals(110, columns.sum(b, 3600));
+
+        IntBuffer slice = columns.getSums(a, 120);
+        assertEquals(2, slice.remaining());
+        assertEquals(20, slice.get(1));
+
+        // precomputed values for every feature at a time limit
+        IntBuffer values = columns.getCumulativeSums(90);
+        assertEquals(2, values.remaining());
+        assertEquals(30, values.get(a));
+        assertEquals(110, values.get(b));
+
+        // past the end of the longest histogram
+        values = columns.getCumulativeSums(7200);
+        assertEquals(100, values.get(a));
+        assertEquals(110, values.get(b));
+    }
+
+    /** Make sure every encoding round-trips, including negative values and runs of zeros at either end */
+    @Test
+    public void testEncodings () {
+        Histogram h1 = new Histogram();
+        h1.counts = new int[] { 0, 0, 3, 0, 0, 0, 1000000, -7, 0 };
+        h1.sums = new int[] { 0, 0, 30, 0, 0, 0, Integer.MAX_VALUE - 30, Integer.MIN_VALUE, 0 };
+
+        Histogram h2 = new Histogram();
+        h2.counts = new int[] { 1, 0 };
+        h2.sums = new int[] { 0, 0 };
+
+        long rawSize = 0;
+
+        for (ResultEncoding encoding : ResultEncoding.values()) {
+            File tempDir = Files.createTempDir();
+            QueryResultStore qrs = new QueryResultStore("test", false, tempDir, encoding);
+            qrs.store(envelope("a", "var", h1));
+            qrs.store(envelope("b", "var", h2));
+            qrs.close();
+
+            qrs = new QueryResultStore("test", true, tempDir);
+            QueryResultColumns columns = qrs.getColumns("var", ResultEnvelope.Which.AVERAGE);
+            assertEquals(encoding, columns.encoding);
+
+            int a = columns.getRow("a");
+            int b = columns.getRow("b");
+
+            histogramEquals(h1, columns.getResultSet(a).histograms.get("var"));
+            histogramEquals(h2, columns.getResultSet(b).histograms.get("var"));
+
+            assertEquals(9, columns.getCounts(a).remaining());
+            assertEquals(-7, columns.getCounts(a).get(7));
+            assertEquals(3, columns.getSums(a, 180).remaining());
+            assertEquals(30, columns.getSums(a, 180).get(2));
+            assertEquals(Integer.MAX_VALUE, columns.sum(a, 420));
+
+            long size = new File(tempDir, "test_var_AVERAGE.results").length();
+
+            if (encoding == ResultEncoding.RAW)
+                rawSize = size;
+            else
+                assertTrue(size < rawSize);
+        }
+    }
+
+    /** Store results from many threads at once, which are written to separate segments and merged at close */
+    @Test
+    public void testParallelIngest () throws InterruptedException {
+        File tempDir = Files.createTempDir();
+        QueryResultStore qrs = new QueryResultStore("test", false, tempDir);
+
+        // allow only a few envelopes in flight to exercise the back-pressure
+        QueryResultIngester ingester = new QueryResultIngester(qrs, 4, 0);
+
+        for (int i = 0; i < 1000; i++) {
+            String id = "feature" + i;
+            int value = i;
+
+            ingester.submit(id, () -> {
+                Histogram h = new Histogram();
+                h.counts = new int[] { 1, value };
+                h.sums = new int[] { value, 1 };
+                return FeatureResults.of(envelope(id, "var", h));
+            });
+        }
+
+        ingester.finish();
+        qrs.close();
+
+        assertEquals(0, tempDir.listFiles((dir, name) -> name.endsWith(".tmp")).length);
+
+        qrs = new QueryResultStore("test", true, tempDir);
+        QueryResultColumns columns = qrs.getColumns("var", ResultEnvelope.Which.BEST_CASE);
+        assertEquals(1000, columns.size());
+
+        for (int i = 0; i < 1000; i++) {
+            int row = columns.getRow("feature" + i);
+            assertTrue(row >= 0);
+            assertEquals(i, columns.getCounts(row).get(1));
+            assertEquals(i + 1, columns.sum(row, 120));
+        }
+    }
+
+    /** A failure to retrieve one envelope fails the whole ingest */
+    @Test
+    public void testIngestFailure () throws InterruptedException {
+        QueryResultStore qrs = new QueryResultStore("test", false, Files.createTempDir());
+        QueryResultIngester ingester = new QueryResultIngester(qrs, 4, 0);
+
+        ingester.submit("key", () -> {
+            throw new IOException("S3 is down");
+        });
+
+        try {
+            ingester.finish();
+            fail("Ingest failure was not reported");
+        } catch (RuntimeException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    /** Results stored in several passes are readable after each flush, and keys already stored are skipped */
+    @Test
+    public void testIncrementalIngest () throws InterruptedException {
+        Histogram h = new Histogram();
+        h.counts = new int[] { 1, 2 };
+        h.sums = new int[] { 3, 4 };
+
+        File tempDir = Files.createTempDir();
+        QueryResultStore qrs = new QueryResultStore("test", false, tempDir);
+        QueryResultIngester ingester = new QueryResultIngester(qrs, 4, 0);
+
+        // nothing is readable before the first flush
+        assertNull(qrs.getColumns("var", ResultEnvelope.Which.AVERAGE));
+        assertFalse(qrs.getAll("var", ResultEnvelope.Which.AVERAGE).hasNext());
+
+        ingester.submit("a", () -> FeatureResults.of(envelope("a", "var", h)));
+        ingester.finish();
+        ingester.checkpoint();
+
+        QueryResultColumns columns = qrs.getColumns("var", ResultEnvelope.Which.AVERAGE);
+        assertEquals(1, columns.size());
+        assertEquals(7, columns.sum(columns.getRow("a"), 3600));
+
+        // the second pass sees a again, which should not be stored twice
+        ingester.submit("a", () -> FeatureResults.of(envelope("a", "var", h)));
+        ingester.submit("b", () -> FeatureResults.of(envelope("b", "var", h)));
+        ingester.finish();
+        assertEquals(2, ingester.size());
+
+        // results mapped before the flush are unchanged
+        assertEquals(1, columns.size());
+
+        ingester.checkpoint();
+        assertEquals(2, qrs.getColumns("var", ResultEnvelope.Which.AVERAGE).size());
+
+        qrs.close();
+        assertEquals(0, tempDir.listFiles((dir, name) -> name.endsWith(".tmp") || name.endsWith(".partial")).length);
+
+        qrs = new QueryResultStore("test", true, tempDir);
+        columns = qrs.getColumns("var", ResultEnvelope.Which.AVERAGE);
+        assertEquals(2, columns.size());
+        histogramEquals(h, columns.getResultSet(columns.getRow("b")).histograms.get("var"));
+    }
+
+    /** Failed retrievals are retried */
+    @Test
+    public void testIngestRetry () throws InterruptedException {
+        Histogram h = new Histogram();
+        h.counts = new int[] { 1 };
+        h.sums = new int[] { 2 };
+
+        QueryResultStore qrs = new QueryResultStore("test", false, Files.createTempDir());
+        QueryResultIngester ingester = new QueryResultIngester(qrs, 4, 2);
+
+        AtomicInteger attempts = new AtomicInteger();
+
+        ingester.submit("a", () -> {
+            if (attempts.incrementAndGet() < 3)
+                throw new IOException("Connection reset");
+
+            return FeatureResults.of(envelope("a", "var", h));
+        });
+
+        ingester.finish();
+        assertEquals(3, attempts.get());
+        assertEquals(1, ingester.size());
+    }
+
+    /** A store that is reopened before it is closed resumes from its last checkpoint */
+    @Test
+    public void testResume () throws InterruptedException {
+        Histogram h = new Histogram();
+        h.counts = new int[] { 1, 2 };
+        h.sums = new int[] { 3, 4 };
+
+        File tempDir = Files.createTempDir();
+        QueryResultStore qrs = new QueryResultStore("test", false, tempDir, ResultEncoding.VARINT);
+        QueryResultIngester ingester = new QueryResultIngester(qrs, 4, 0);
+
+        ingester.submit("a", () -> FeatureResults.of(envelope("a", "var", h)));
+        ingester.finish();
+        ingester.checkpoint();
+
+        // stored after the checkpoint, so lost when the server "crashes"
+        ingester.submit("b", () -> FeatureResults.of(envelope("b", "var", h)));
+        ingester.finish();
+
+        // reopen without closing; the encoding of the checkpoint wins
+        qrs = new QueryResultStore("test", false, tempDir, ResultEncoding.RAW);
+        assertEquals(Collections.singleton("a"), qrs.getCheckpointKeys());
+
+        ingester = new QueryResultIngester(qrs, 4, 0);
+        AtomicInteger retrieved = new AtomicInteger();
+
+        for (String id : new String[] { "a", "b", "c" }) {
+            ingester.submit(id, () -> {
+                retrieved.incrementAndGet();
+                return FeatureResults.of(envelope(id, "var", h));
+            });
+        }
+
+        ingester.finish();
+        assertEquals(2, retrieved.get());
+
+        // check that checkpointing the resumed store appends to the journal correctly
+        ingester.checkpoint();
+        qrs = new QueryResultStore("test", false, tempDir);
+        assertEquals(Sets.newHashSet("a", "b", "c"), qrs.getCheckpointKeys());
+        qrs.close();
+
+        assertEquals(0, tempDir.listFiles((dir, name) -> name.endsWith(".tmp") || name.endsWith(".checkpoint")).length);
+
+        qrs = new QueryResultStore("test", true, tempDir);
+        QueryResultColumns columns = qrs.getColumns("var", ResultEnvelope.Which.WORST_CASE);
+        assertEquals(3, columns.size());
+        assertEquals(ResultEncoding.VARINT, columns.encoding);
+        histogramEquals(h, columns.getResultSet(columns.getRow("c")).histograms.get("var"));
+
+        // a closed store is not wiped by opening it for writing again, e.g. from a stale copy of a completed query
+        qrs = new QueryResultStore("test", false, tempDir);
+        assertTrue(qrs.readOnly);
+        assertEquals(3, qrs.getColumns("var", ResultEnvelope.Which.WORST_CASE).size());
+    }
+
+    /** Result envelopes can be parsed without binding them */
+    @Test
+    public void testParseEnvelope () throws IOException {
+        String json = "{\"worstCase\":null,\"bestCase\":{\"id\":\"f\",\"histograms\":{\"a\":{\"counts\":[1,2]," +
+                "\"sums\":[3,4]},\"b\":{\"sums\":[],\"counts\":[]}},\"times\":null},\"id\":\"f\"," +
+                "\"jobId\":\"job\",\"extra\":{\"nested\":[1,{\"x\":2}]}}";
+
+        FeatureResults res = ResultEnvelopeParser.parse(new ByteArrayInputStream(json.getBytes("UTF-8")));
+
+        assertEquals("f", res.id);
+        assertEquals(2, res.size());
+
+        int a = res.variables.indexOf("a");
+        assertEquals(ResultEnvelope.Which.BEST_CASE, res.which.get(a));
+        assertTrue(Arrays.equals(new int[] { 1, 2 }, res.counts.get(a)));
+        assertTrue(Arrays.equals(new int[] { 3, 4 }, res.sums.get(a)));
+
+        assertEquals(0, res.counts.get(res.variables.indexOf("b")).length);
+    }
+
+    /** Make sure that files in the old, gzipped format can still be read */
+    @Test
+    public void testLegacyFormat () throws IOException {
+        Histogram h = new Histogram();
+        h.counts = new int[] { 1, 2, 3 };
+        h.sums = new int[] { 4, 5, 6 };
+
+        File tempDir = Files.createTempDir();
+
+        DataOutputStream out = new DataOutputStream(new GZIPOutputStream(
+                new FileOutputStream(new File(tempDir, "test_var_AVERAGE.results.gz"))));
+        out.writeUTF("QUERYRESULT");
+        out.writeUTF("test");
+        out.writeUTF("var");
+        out.writeUTF("AVERAGE");
+
+        for (String id : new String[] { "a", "b" }) {
+            out.writeUTF(id);
+            out.writeInt(h.counts.length);
+
+            for (int c : h.counts) {
+                out.writeInt(c);
+            }
+
+            for (int s : h.sums) {
+                out.writeInt(s);
+            }
+        }
+
+        out.close();
+
+        QueryResultStore qrs = new QueryResultStore("test", true, tempDir);
+
+        assertNull(qrs.getColumns("var", ResultEnvelope.Which.AVERAGE));
+
+        Iterator<ResultSet> it = qrs.getAll("var", ResultEnvelope.Which.AVERAGE);
+
+        ResultSet res = it.next();
+        assertEquals("a", res.id);
+        histogramEquals(h, res.histograms.get("var"));
+
+        res = it.next();
+        assertEquals("b", res.id);
+        histogramEquals(h, res.histograms.get("var"));
+
+        assertFalse(it.hasNext());
+        qrs.close();
+    }
+
+    /** Make a result envelope with the same single-variable result set for every envelope parameter */
+    private static ResultEnvelope envelope (String id, String variable, Histogram h) {
+        ResultSet rs = new ResultSet();
+        rs.id = id;
+        rs.histograms.put(variable, h);
+
+        ResultEnvelope env = new ResultEnvelope();
+        env.worstCase = rs;
+        env.avgCase = rs;
+        env.bestCase = rs;
+        env.id = id;
+        return env;
+    }
+
     public static void histogramEquals (Histogram expected, Histogram actual) {
             assertNotNull(expected);
             assertNotNull(actual);
 
-            assertTrue(Arrays.equals(expected.counts, expected.counts));
-            assertTrue(Arrays.equals(actual.sums, actual.sums));
+            assertTrue(Arrays.equals(expected.counts, actual.counts));
+            assertTrue(Arrays.equals(expected.sums, actual.sums));
 
     }
 }
@@ -0,0 +1,119 @@
+package com.conveyal.analyst.server.benchmarks;
+
+import com.conveyal.analyst.server.AggregationTest;
+import com.conveyal.analyst.server.utils.Crosswalk;
+import com.conveyal.analyst.server.utils.QueryResults;
+import models.Shapefile;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Aggregate a grid of blocks to a coarser grid of counties, using the grid fixtures of AggregationTest. The county grid
+ * is offset from the blocks so that many blocks straddle county lines, and the weights come either from the blocks
+ * themselves or from a third, offset grid. Aggregation runs in a fork-join pool of the given parallelism, so the
+ * parallelism of 1 is the serial baseline. Aggregations reuse the crosswalks between the shapefiles after the first,
+ * so computing a crosswalk is measured separately. Run with mvn test-compile, then run main() with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class AggregationBenchmark {
+    /** number of blocks along each side of the grid */
+    @Param("200")
+    public int blocks;
+
+    /** number of counties along each side of the grid */
+    @Param("10")
+    public int counties;
+
+    @Param({ "1", "8" })
+    public int parallelism;
+
+    private Shapefile blockShapefile;
+
+    private Shapefile weightShapefile;
+
+    private Shapefile countyShapefile;
+
+    private QueryResults qr;
+
+    private ForkJoinPool pool;
+
+    @Setup
+    public void setUp () {
+        // roughly 100m blocks at 45 degrees latitude
+        double resolution = 1e-3;
+
+        blockShapefile = AggregationTest.getGrid(0, 45, resolution, resolution, blocks, blocks, i -> {
+            Map<String, Object> ret = new HashMap<>();
+            ret.put("value", i % 97);
+            ret.put("weight", 1 + i % 13);
+            return ret;
+        });
+
+        // offset by half a block so that each weight feature overlaps four blocks
+        weightShapefile = AggregationTest.getGrid(resolution / 2, 45 + resolution / 2, resolution, resolution,
+                blocks, blocks, i -> {
+                    Map<String, Object> ret = new HashMap<>();
+                    ret.put("weight", 1 + i % 7);
+                    return ret;
+                });
+
+        // offset by a third of a block so county lines cut through blocks
+        double countySize = resolution * blocks / counties;
+        countyShapefile = AggregationTest.getGrid(resolution / 3, 45 + resolution / 3, countySize, countySize,
+                counties, counties, i -> new HashMap<>());
+
+        qr = AggregationTest.getQueryResultsForShapefile(blockShapefile, sf -> sf.getAttribute("value").doubleValue());
+
+        // build the spatial indices up front, they are cached between crosswalks
+        blockShapefile.getSpatialIndex();
+        weightShapefile.getSpatialIndex();
+
+        pool = new ForkJoinPool(parallelism);
+    }
+
+    @TearDown
+    public void tearDown () {
+        pool.shutdown();
+    }
+
+    /** Compute the crosswalk from the blocks to the counties, as the first aggregation between them does */
+    @Benchmark
+    public Crosswalk computeCrosswalk () throws ExecutionException, InterruptedException {
+        return pool.submit(() -> Crosswalk.compute(blockShapefile, countyShapefile)).get();
+    }
+
+    /** Aggregate, weighting by an attribute of the blocks themselves */
+    @Benchmark
+    public QueryResults sameShapefile () throws ExecutionException, InterruptedException {
+        // parallel streams run in the pool that they are started from
+        return pool.submit(() -> qr.aggregate(countyShapefile, blockShapefile, "weight")).get();
+    }
+
+    /** Aggregate, weighting by the area-weighted attribute of another shapefile */
+    @Benchmark
+    public QueryResults differentShapefile () throws ExecutionException, InterruptedException {
+        return pool.submit(() -> qr.aggregate(countyShapefile, weightShapefile, "weight")).get();
+    }
+
+    public static void main (String... args) throws RunnerException {
+        Options opts = new OptionsBuilder()
+                .include(AggregationBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,64 @@
+package com.conveyal.analyst.server.benchmarks;
+
+import com.conveyal.analyst.server.utils.NaturalBreaksClassifier;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compare the exact natural breaks, computed from all the values, with the classic Jenks algorithm on a sample of about
+ * 2000 values. The values are skewed, like accessibility, and are sorted beforehand as the classifiers sort them.
+ * Run with mvn test-compile, then run main() with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class NaturalBreaksBenchmark {
+    @Param({ "10000", "1000000", "3000000" })
+    public int values;
+
+    @Param("6")
+    public int classes;
+
+    private double[] sorted;
+
+    @Setup
+    public void setUp () {
+        Random random = new Random(42);
+
+        sorted = new double[values];
+
+        for (int i = 0; i < values; i++) {
+            sorted[i] = Math.floor(Math.abs(random.nextGaussian()) * 50000);
+        }
+
+        Arrays.sort(sorted);
+    }
+
+    @Benchmark
+    public double[] exact () {
+        return NaturalBreaksClassifier.buildJenksBreaks(sorted, classes);
+    }
+
+    @Benchmark
+    public double[] sampled () {
+        return NaturalBreaksClassifier.buildSampledJenksBreaks(sorted, classes);
+    }
+
+    public static void main (String... args) throws RunnerException {
+        Options opts = new OptionsBuilder()
+                .include(NaturalBreaksBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,317 @@
+package com.conveyal.analyst.server.benchmarks;
+
+import com.conveyal.analyst.server.utils.QueryResultColumns;
+import com.conveyal.analyst.server.utils.QueryResultStore;
+import com.conveyal.analyst.server.utils.ResultEncoding;
+import com.google.common.io.Files;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.opentripplanner.analyst.Histogram;
+import org.opentripplanner.analyst.ResultSet;
+import org.opentripplanner.analyst.cluster.ResultEnvelope;
+
+import java.io.*;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Compare reading a query result file in the legacy gzipped format, with the original reader and the current one, with
+ * reading the same results from a segment file (the length-prefixed spill format) and from the columnar format. Run
+ * with mvn test-compile, then run main() with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class QueryResultStoreBenchmark {
+    private static final String VARIABLE = "var";
+
+    private static final ResultEnvelope.Which WHICH = ResultEnvelope.Which.AVERAGE;
+
+    @Param("1000000")
+    public int features;
+
+    @Param("120")
+    public int minutes;
+
+    /** encoding of the columnar store */
+    @Param({ "RAW", "VARINT_ZERO_RUNS" })
+    public ResultEncoding encoding;
+
+    private File legacyDir;
+
+    private File columnarDir;
+
+    /** a segment file, as written by a single shard of a store before merging */
+    private File segmentFile;
+
+    private QueryResultStore columnar;
+
+    @Setup
+    public void setUp () throws IOException {
+        Random random = new Random(42);
+
+        legacyDir = Files.createTempDir();
+        columnarDir = Files.createTempDir();
+
+        File legacyFile = new File(legacyDir, String.format("legacy_%s_%s.results.gz", VARIABLE, WHICH));
+        segmentFile = new File(legacyDir, "segment.results.tmp");
+
+        QueryResultStore writer = new QueryResultStore("columnar", false, columnarDir, encoding);
+
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(
+                new GZIPOutputStream(new FileOutputStream(legacyFile))));
+             DataOutputStream segment = new DataOutputStream(new BufferedOutputStream(
+                new FileOutputStream(segmentFile)))) {
+            out.writeUTF("QUERYRESULT");
+            out.writeUTF("legacy");
+            out.writeUTF(VARIABLE);
+            out.writeUTF(WHICH.toString());
+
+            for (int feature = 0; feature < features; feature++) {
+                Histogram h = new Histogram();
+                h.counts = new int[minutes];
+                h.sums = new int[minutes];
+
+                // most bins of real histograms are zero
+                for (int i = 0; i < minutes; i++) {
+                    h.counts[i] = random.nextInt(4) == 0 ? random.nextInt(10) : 0;
+                    h.sums[i] = h.counts[i] * random.nextInt(100);
+                }
+
+                String id = "feature" + feature;
+
+                out.writeUTF(id);
+                out.writeInt(minutes);
+
+                for (int i = 0; i < minutes; i++) {
+                    out.writeInt(h.counts[i]);
+                }
+
+                for (int i = 0; i < minutes; i++) {
+                    out.writeInt(h.sums[i]);
+                }
+
+                segment.writeInt(feature);
+                segment.writeInt(minutes);
+                encoding.write(segment, h.counts, minutes);
+                encoding.write(segment, h.sums, minutes);
+
+                ResultSet rs = new ResultSet();
+                rs.id = id;
+                rs.histograms.put(VARIABLE, h);
+
+                ResultEnvelope env = new ResultEnvelope();
+                env.avgCase = rs;
+                env.id = id;
+                writer.store(env);
+            }
+
+            segment.writeInt(-1);
+        }
+
+        writer.close();
+
+        columnar = new QueryResultStore("columnar", true, columnarDir);
+    }
+
+    @TearDown
+    public void tearDown () {
+        columnar.close();
+
+        for (File dir : new File[] { legacyDir, columnarDir }) {
+            for (File file : dir.listFiles()) {
+                file.delete();
+            }
+
+            dir.delete();
+        }
+    }
+
+    /** Iterate over every result set in the legacy gzipped file, with the original reader */
+    @Benchmark
+    public void baselineIterate (Blackhole bh) throws IOException {
+        try (BaselineReader it = new BaselineReader(new File(legacyDir,
+                String.format("legacy_%s_%s.results.gz", VARIABLE, WHICH)))) {
+            while (it.hasNext()) {
+                bh.consume(it.next());
+            }
+        }
+    }
+
+    /** Iterate over every result set in the legacy gzipped file */
+    @Benchmark
+    public void legacyIterate (Blackhole bh) {
+        QueryResultStore legacy = new QueryResultStore("legacy", true, legacyDir);
+
+        Iterator<ResultSet> it = legacy.getAll(VARIABLE, WHICH);
+
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+
+        legacy.close();
+    }
+
+    /** Read every record of the segment file, each decoded once into reused buffers */
+    @Benchmark
+    public void segmentIterate (Blackhole bh) throws IOException {
+        try (QueryResultStore.SegmentReader in = new QueryResultStore.SegmentReader(segmentFile, encoding)) {
+            while (in.next()) {
+                bh.consume(in.feature);
+                bh.consume(in.counts);
+                bh.consume(in.sums);
+            }
+        }
+    }
+
+    /** Iterate over every result set in the columnar file */
+    @Benchmark
+    public void columnarIterate (Blackhole bh) {
+        Iterator<ResultSet> it = columnar.getAll(VARIABLE, WHICH);
+
+        while (it.hasNext()) {
+            bh.consume(it.next());
+        }
+    }
+
+    /** Compute accessibility at a time limit for every feature from the legacy file, with the original reader */
+    @Benchmark
+    public void baselineSum (Blackhole bh) throws IOException {
+        try (BaselineReader it = new BaselineReader(new File(legacyDir,
+                String.format("legacy_%s_%s.results.gz", VARIABLE, WHICH)))) {
+            while (it.hasNext()) {
+                bh.consume(it.next().sum(3600, VARIABLE));
+            }
+        }
+    }
+
+    /** Compute accessibility at a time limit for every feature from the legacy file, as QueryResults used to */
+    @Benchmark
+    public void legacySum (Blackhole bh) {
+        QueryResultStore legacy = new QueryResultStore("legacy", true, legacyDir);
+
+        Iterator<ResultSet> it = legacy.getAll(VARIABLE, WHICH);
+
+        while (it.hasNext()) {
+            bh.consume(it.next().sum(3600, VARIABLE));
+        }
+
+        legacy.close();
+    }
+
+    /** Compute accessibility at a time limit for every feature from the columnar file */
+    @Benchmark
+    public void columnarSum (Blackhole bh) {
+        QueryResultColumns columns = columnar.getColumns(VARIABLE, WHICH);
+        IntBuffer values = columns.getCumulativeSums(3600);
+
+        for (int row = 0; row < columns.size(); row++) {
+            bh.consume(columns.getId(row));
+            bh.consume(values.get(row));
+        }
+    }
+
+    /**
+     * A copy of the reader of legacy files before records had framing: hasNext() marks the stream, decodes the ID of
+     * the next record and resets, so every ID is decoded twice and the end of the file is found by an exception.
+     */
+    private static class BaselineReader implements Iterator<ResultSet>, Closeable {
+        private final DataInputStream in;
+
+        private final String var;
+
+        public BaselineReader (File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+
+            if (!"QUERYRESULT".equals(in.readUTF()))
+                throw new IllegalArgumentException("Attempt to read non-query-result file");
+
+            // query ID
+            in.readUTF();
+            var = in.readUTF();
+            // envelope parameter
+            in.readUTF();
+        }
+
+        @Override
+        public boolean hasNext () {
+            in.mark(8192);
+
+            try {
+                in.readUTF();
+            } catch (EOFException e) {
+                return false;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            try {
+                in.reset();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+
+            return true;
+        }
+
+        @Override
+        public ResultSet next () {
+            if (!hasNext())
+                throw new NoSuchElementException();
+
+            try {
+                ResultSet rs = new ResultSet();
+                rs.id = in.readUTF();
+
+                int size = in.readInt();
+
+                int[] counts = new int[size];
+
+                for (int i = 0; i < size; i++) {
+                    counts[i] = in.readInt();
+                }
+
+                int[] sums = new int[size];
+
+                for (int i = 0; i < size; i++) {
+                    sums[i] = in.readInt();
+                }
+
+                Histogram h = new Histogram();
+                h.sums = sums;
+                h.counts = counts;
+
+                rs.histograms.put(var, h);
+
+                return rs;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+        @Override
+        public void close () throws IOException {
+            in.close();
+        }
+    }
+
+    public static void main (String... args) throws RunnerException {
+        Options opts = new OptionsBuilder()
+                .include(QueryResultStoreBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,164 @@
+package com.conveyal.analyst.server.benchmarks;
+
+import com.conveyal.analyst.server.tiles.PngEncoder;
+import com.conveyal.analyst.server.tiles.Tile;
+import org.apache.commons.imaging.ImageFormats;
+import org.apache.commons.imaging.Imaging;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.awt.*;
+import java.awt.geom.Line2D;
+import java.awt.geom.Path2D;
+import java.awt.image.BufferedImage;
+import java.util.HashMap;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Encode synthetic tiles like those of each kind of layer: polygons colored by a classifier (query and shapefile
+ * tiles), Halton points in a few colors (spatial tiles) and translucent transit lines. Commons Imaging, which encoded
+ * tiles before PngEncoder, is the baseline. The size of each encoded tile is printed during setup, since that matters
+ * as much as the time. Run with mvn test-compile, then run main() with the test classpath.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TileEncoderBenchmark {
+    @Param({ "polygons", "points", "lines" })
+    public String tile;
+
+    private BufferedImage image;
+
+    private PngEncoder fast, standard, small, adaptive;
+
+    @Setup
+    public void setUp () throws Exception {
+        switch (tile) {
+            case "polygons":
+                image = polygons();
+                break;
+            case "points":
+                image = points();
+                break;
+            case "lines":
+                image = lines();
+                break;
+            default:
+                throw new IllegalArgumentException(tile);
+        }
+
+        fast = new PngEncoder(1, false);
+        standard = new PngEncoder(PngEncoder.COMPRESSION, false);
+        small = new PngEncoder(9, false);
+        adaptive = new PngEncoder(PngEncoder.COMPRESSION, true);
+
+        System.out.println();
+        System.out.println(tile + " tile sizes: imaging " + imaging().length + " bytes, level 1 " +
+                fast.encode(image).length + ", level " + PngEncoder.COMPRESSION + " " + standard.encode(image).length +
+                ", level 9 " + small.encode(image).length + ", adaptive filter " + adaptive.encode(image).length);
+    }
+
+    @Benchmark
+    public byte[] imaging () throws Exception {
+        return Imaging.writeImageToBytes(image, ImageFormats.PNG, new HashMap<>());
+    }
+
+    @Benchmark
+    public byte[] level1 () throws Exception {
+        return fast.encode(image);
+    }
+
+    @Benchmark
+    public byte[] defaultLevel () throws Exception {
+        return standard.encode(image);
+    }
+
+    @Benchmark
+    public byte[] level9 () throws Exception {
+        return small.encode(image);
+    }
+
+    @Benchmark
+    public byte[] adaptiveFilter () throws Exception {
+        return adaptive.encode(image);
+    }
+
+    /** a grid of irregular antialiased polygons in six translucent classes, like a tile of census blocks */
+    private static BufferedImage polygons () {
+        BufferedImage image = new BufferedImage(Tile.TILE_SIZE, Tile.TILE_SIZE, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+
+        Random random = new Random(1);
+        Color[] classes = new Color[6];
+        for (int i = 0; i < classes.length; i++) {
+            classes[i] = new Color(1 - i / 6f, 1 - i / 6f, 1, 0.5f);
+        }
+
+        for (int x = 0; x < Tile.TILE_SIZE; x += 16) {
+            for (int y = 0; y < Tile.TILE_SIZE; y += 16) {
+                Path2D path = new Path2D.Double();
+                path.moveTo(x + random.nextDouble() * 3, y);
+                path.lineTo(x + 16, y + random.nextDouble() * 3);
+                path.lineTo(x + 16, y + 16);
+                path.lineTo(x, y + 16);
+                path.closePath();
+
+                g.setColor(classes[random.nextInt(classes.length)]);
+                g.fill(path);
+            }
+        }
+
+        g.dispose();
+        return image;
+    }
+
+    /** scattered single pixels in three colors */
+    private static BufferedImage points () {
+        BufferedImage image = new BufferedImage(Tile.TILE_SIZE, Tile.TILE_SIZE, BufferedImage.TYPE_4BYTE_ABGR);
+
+        Random random = new Random(2);
+        int[] colors = { 0xffff0000, 0xff00ff00, 0xff0000ff };
+
+        for (int i = 0; i < 20000; i++) {
+            image.setRGB(random.nextInt(Tile.TILE_SIZE), random.nextInt(Tile.TILE_SIZE),
+                    colors[random.nextInt(colors.length)]);
+        }
+
+        return image;
+    }
+
+    /** translucent antialiased lines, like a transit tile */
+    private static BufferedImage lines () {
+        BufferedImage image = new BufferedImage(Tile.TILE_SIZE, Tile.TILE_SIZE, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+        g.setStroke(new BasicStroke(3));
+        g.setColor(new Color(0.6f, 0.6f, 1.0f, 0.25f));
+
+        Random random = new Random(3);
+
+        for (int i = 0; i < 40; i++) {
+            g.draw(new Line2D.Double(random.nextInt(Tile.TILE_SIZE), random.nextInt(Tile.TILE_SIZE),
+                    random.nextInt(Tile.TILE_SIZE), random.nextInt(Tile.TILE_SIZE)));
+        }
+
+        g.dispose();
+        return image;
+    }
+
+    public static void main (String... args) throws RunnerException {
+        Options opts = new OptionsBuilder()
+                .include(TileEncoderBenchmark.class.getSimpleName())
+                .build();
+
+        new Runner(opts).run();
+    }
+}
@@ -0,0 +1,69 @@
+package com.conveyal.analyst.server.tiles;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import javax.imageio.ImageIO;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+/** Test that tiles encoded as PNGs decode to the same pixels, with and without a palette */
+public class PngEncoderTest extends TestCase {
+    /** a few colors, which are encoded with a palette */
+    @Test
+    public void testIndexed () throws IOException {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(0, 0, 255, 128));
+        g.fillRect(10, 10, 100, 50);
+        g.setColor(Color.RED);
+        g.fillRect(50, 40, 100, 100);
+        g.dispose();
+
+        for (boolean adaptive : new boolean[] { false, true }) {
+            byte[] png = new PngEncoder(4, adaptive).encode(image);
+            // color type
+            assertEquals(3, png[25]);
+            assertSamePixels(image, png);
+        }
+    }
+
+    /** more than 256 colors, which are encoded as RGBA */
+    @Test
+    public void testRgba () throws IOException {
+        BufferedImage image = new BufferedImage(256, 256, BufferedImage.TYPE_4BYTE_ABGR);
+
+        for (int x = 0; x < 256; x++) {
+            for (int y = 0; y < 256; y++) {
+                image.setRGB(x, y, x << 24 | y << 16 | (x ^ y) << 8 | (x + y) & 0xff);
+            }
+        }
+
+        for (boolean adaptive : new boolean[] { false, true }) {
+            byte[] png = new PngEncoder(4, adaptive).encode(image);
+            assertEquals(6, png[25]);
+            assertSamePixels(image, png);
+        }
+    }
+
+    private static void assertSamePixels (BufferedImage image, byte[] png) throws IOException {
+        BufferedImage decoded = ImageIO.read(new ByteArrayInputStream(png));
+
+        assertEquals(image.getWidth(), decoded.getWidth());
+        assertEquals(image.getHeight(), decoded.getHeight());
+
+        for (int x = 0; x < image.getWidth(); x++) {
+            for (int y = 0; y < image.getHeight(); y++) {
+                int expected = image.getRGB(x, y), actual = decoded.getRGB(x, y);
+
+                // the color of fully transparent pixels doesn't matter
+                if (expected >>> 24 == 0)
+                    assertEquals(0, actual >>> 24);
+                else
+                    assertEquals(expected, actual);
+            }
+        }
+    }
+}
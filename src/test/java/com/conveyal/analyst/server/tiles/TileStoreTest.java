@@ -0,0 +1,104 @@
+package com.conveyal.analyst.server.tiles;
+
+import com.google.common.io.Files;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Arrays;
+
+/** Test storing, invalidating and evicting tiles in the persistent tile store */
+public class TileStoreTest extends TestCase {
+    @Test
+    public void testPutGet () {
+        TileStore store = new TileStore(new File(Files.createTempDir(), "tiles.db"), 1024);
+
+        byte[] data = new byte[] { 1, 2, 3 };
+        store.put("a", Arrays.asList("q1", "s1"), data);
+
+        assertTrue(Arrays.equals(data, store.get("a")));
+        assertNull(store.get("b"));
+        assertEquals(1, store.size());
+        assertEquals(3, store.getBytes());
+    }
+
+    /** invalidating a query, shapefile or bundle removes only the tiles rendered from it */
+    @Test
+    public void testInvalidate () {
+        TileStore store = new TileStore(new File(Files.createTempDir(), "tiles.db"), 1024);
+
+        store.put("a", Arrays.asList("q1", "s1"), new byte[10]);
+        store.put("b", Arrays.asList("q2", "s1"), new byte[20]);
+        store.put("c", Arrays.asList("q2"), new byte[30]);
+
+        store.invalidate("q1");
+        assertNull(store.get("a"));
+        assertNotNull(store.get("b"));
+        assertNotNull(store.get("c"));
+        assertEquals(50, store.getBytes());
+
+        store.invalidate("s1");
+        assertNull(store.get("b"));
+        assertNotNull(store.get("c"));
+        assertEquals(30, store.getBytes());
+
+        // nothing depends on it
+        store.invalidate("s2");
+        assertEquals(1, store.size());
+    }
+
+    /** once the tiles exceed the maximum size, the oldest are removed first */
+    @Test
+    public void testEviction () {
+        TileStore store = new TileStore(new File(Files.createTempDir(), "tiles.db"), 100);
+
+        for (String id : new String[] { "a", "b", "c" }) {
+            store.put(id, Arrays.asList("q1"), new byte[30]);
+        }
+
+        assertEquals(3, store.size());
+        assertEquals(90, store.getBytes());
+
+        store.put("d", Arrays.asList("q1"), new byte[30]);
+        assertNull(store.get("a"));
+        assertNotNull(store.get("b"));
+        assertNotNull(store.get("d"));
+        assertEquals(90, store.getBytes());
+
+        // b is now the oldest, and a tile larger than the rest evicts as many as it needs to
+        store.put("e", Arrays.asList("q1"), new byte[70]);
+        assertNull(store.get("b"));
+        assertNull(store.get("c"));
+        assertNotNull(store.get("d"));
+        assertNotNull(store.get("e"));
+        assertEquals(100, store.getBytes());
+    }
+
+    /** overwriting a tile replaces its size, its age and its dependencies */
+    @Test
+    public void testOverwrite () {
+        TileStore store = new TileStore(new File(Files.createTempDir(), "tiles.db"), 100);
+
+        store.put("a", Arrays.asList("q1"), new byte[30]);
+        store.put("b", Arrays.asList("q1"), new byte[30]);
+        store.put("a", Arrays.asList("q2"), new byte[50]);
+
+        assertEquals(2, store.size());
+        assertEquals(80, store.getBytes());
+        assertEquals(50, store.get("a").length);
+
+        // a was stored again after b, so b is evicted first
+        store.put("c", Arrays.asList("q3"), new byte[30]);
+        assertNull(store.get("b"));
+        assertNotNull(store.get("a"));
+        assertEquals(80, store.getBytes());
+
+        // a no longer depends on q1
+        store.invalidate("q1");
+        assertNotNull(store.get("a"));
+
+        store.invalidate("q2");
+        assertNull(store.get("a"));
+        assertEquals(30, store.getBytes());
+    }
+}
@@ -0,0 +1,180 @@
+package com.conveyal.analyst.server.tiles;
+
+import com.vividsolutions.jts.geom.Coordinate;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.GeometryFactory;
+import gnu.trove.list.array.TIntArrayList;
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** Test that vector tiles are projected, clipped and encoded as the specification requires */
+public class VectorTileTest extends TestCase {
+    private static final GeometryFactory GEOMETRY_FACTORY = new GeometryFactory();
+
+    /** Make sure that rings are oriented exterior clockwise and holes counterclockwise, and degenerate rings dropped */
+    @Test
+    public void testRings () {
+        Coordinate[] counterclockwise = square(0, 0, 10);
+        Coordinate[] clockwise = counterclockwise.clone();
+        Collections.reverse(Arrays.asList(clockwise));
+
+        for (Coordinate[] ring : new Coordinate[][] { clockwise, counterclockwise }) {
+            assertTrue(area(encode(ring, true)) > 0);
+            assertTrue(area(encode(ring, false)) < 0);
+        }
+
+        // collapses to a point when rounded to the grid
+        TIntArrayList commands = new TIntArrayList();
+        assertFalse(VectorTile.encodeRing(square(0.1, 0.1, 0.2), true, true, commands, new VectorTile.Cursor()));
+        assertTrue(commands.isEmpty());
+    }
+
+    /** Make sure that features are clipped to the tile and its buffer, and features outside the tile are left out */
+    @Test
+    public void testClip () {
+        VectorTile tile = new VectorTile(request(301, 385, 10));
+
+        // a polygon much larger than the tile
+        Envelope env = new Envelope(tile.envelope);
+        env.expandBy(1);
+        tile.addFeature("results", GEOMETRY_FACTORY.toGeometry(env),
+                Collections.<String, Object>singletonMap("id", "big"));
+
+        byte[] encoded = tile.encode();
+        assertTrue(encoded.length > 0);
+
+        int[] geometry = decodeGeometry(encoded);
+
+        // one ring: MoveTo, LineTo with three points, ClosePath
+        assertEquals(1 | (1 << 3), geometry[0]);
+        assertEquals(2 | (3 << 3), geometry[3]);
+        assertEquals(7 | (1 << 3), geometry[10]);
+
+        int x = 0, y = 0;
+        for (int i = 0; i < 4; i++) {
+            int offset = i == 0 ? 1 : 2 + 2 * i;
+            x += unzigzag(geometry[offset]);
+            y += unzigzag(geometry[offset + 1]);
+
+            assertTrue(x == -VectorTile.BUFFER || x == VectorTile.EXTENT + VectorTile.BUFFER);
+            assertTrue(y == -VectorTile.BUFFER || y == VectorTile.EXTENT + VectorTile.BUFFER);
+        }
+
+        // a polygon in the next tile over
+        VectorTile empty = new VectorTile(request(301, 385, 10));
+        Envelope next = new Envelope(VectorTile.tile2lon(303, 10), VectorTile.tile2lon(304, 10),
+                VectorTile.tile2lat(386, 10), VectorTile.tile2lat(385, 10));
+        empty.addFeature("results", GEOMETRY_FACTORY.toGeometry(next),
+                Collections.<String, Object>singletonMap("id", "next"));
+        assertEquals(0, empty.encode().length);
+    }
+
+    private static AnalystTileRequest request (int x, int y, int z) {
+        return new AnalystTileRequest(x, y, z, "test", "mvt") {
+            @Override
+            byte[] render() {
+                return null;
+            }
+        };
+    }
+
+    private static Coordinate[] square (double x, double y, double size) {
+        return new Coordinate[] { new Coordinate(x, y), new Coordinate(x, y + size), new Coordinate(x + size, y + size),
+                new Coordinate(x + size, y), new Coordinate(x, y) };
+    }
+
+    private static int[] encode (Coordinate[] ring, boolean exterior) {
+        TIntArrayList commands = new TIntArrayList();
+        assertTrue(VectorTile.encodeRing(ring, true, exterior, commands, new VectorTile.Cursor()));
+        return commands.toArray();
+    }
+
+    /** the area of an encoded ring in tile coordinates, by the surveyor's formula */
+    private static long area (int[] commands) {
+        int count = commands[3] >> 3;
+        List<int[]> points = new ArrayList<>();
+
+        int x = unzigzag(commands[1]), y = unzigzag(commands[2]);
+        points.add(new int[] { x, y });
+
+        for (int i = 0; i < count; i++) {
+            x += unzigzag(commands[4 + 2 * i]);
+            y += unzigzag(commands[5 + 2 * i]);
+            points.add(new int[] { x, y });
+        }
+
+        long area = 0;
+        for (int i = 0; i < points.size(); i++) {
+            int[] a = points.get(i), b = points.get((i + 1) % points.size());
+            area += (long) a[0] * b[1] - (long) b[0] * a[1];
+        }
+
+        return area;
+    }
+
+    private static int unzigzag (int n) {
+        return (n >>> 1) ^ -(n & 1);
+    }
+
+    /** decode the geometry of the first feature of the first layer of a tile */
+    private static int[] decodeGeometry (byte[] tile) {
+        byte[] layer = getField(tile, 3);
+        byte[] feature = getField(layer, 2);
+        byte[] geometry = getField(feature, 4);
+
+        TIntArrayList ret = new TIntArrayList();
+        int[] pos = { 0 };
+        while (pos[0] < geometry.length) {
+            ret.add((int) readVarint(geometry, pos));
+        }
+
+        return ret.toArray();
+    }
+
+    /** get the first length-delimited field with the given number from a protocol buffer message */
+    private static byte[] getField (byte[] message, int field) {
+        int[] pos = { 0 };
+
+        while (pos[0] < message.length) {
+            long tag = readVarint(message, pos);
+            int wireType = (int) (tag & 7);
+
+            if (wireType == 0) {
+                readVarint(message, pos);
+            } else if (wireType == 1) {
+                pos[0] += 8;
+            } else if (wireType == 2) {
+                int length = (int) readVarint(message, pos);
+
+                if (tag >> 3 == field)
+                    return Arrays.copyOfRange(message, pos[0], pos[0] + length);
+
+                pos[0] += length;
+            } else {
+                fail("unexpected wire type " + wireType);
+            }
+        }
+
+        fail("field " + field + " not found");
+        return null;
+    }
+
+    private static long readVarint (byte[] bytes, int[] pos) {
+        long value = 0;
+        int shift = 0;
+
+        while (true) {
+            byte b = bytes[pos[0]++];
+            value |= (long) (b & 0x7f) << shift;
+            shift += 7;
+
+            if ((b & 0x80) == 0)
+                return value;
+        }
+    }
+}
@@ -0,0 +1,81 @@
+package com.conveyal.analyst.server.utils;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Test that natural breaks are optimal */
+public class NaturalBreaksClassifierTest extends TestCase {
+    /**
+     * Compare the breaks with those of the classic Jenks algorithm, which is exact for fewer than 2000 values. Ties
+     * may be broken differently, so compare the sums of squared deviations rather than the breaks themselves.
+     */
+    @Test
+    public void testOptimal () {
+        Random random = new Random(42);
+
+        for (int test = 0; test < 500; test++) {
+            int n = 1 + random.nextInt(500);
+            int k = 1 + random.nextInt(Math.min(n, 8));
+
+            double[] values = new double[n];
+
+            for (int i = 0; i < n; i++) {
+                // include data with many repeated values, as well as bimodal data
+                if (test % 3 == 0)
+                    values[i] = random.nextInt(10);
+                else
+                    values[i] = random.nextGaussian() * 1000 + (random.nextBoolean() ? 5000 : 0);
+            }
+
+            Arrays.sort(values);
+
+            double[] breaks = NaturalBreaksClassifier.buildJenksBreaks(values, k);
+            double[] classic = NaturalBreaksClassifier.buildSampledJenksBreaks(values, k);
+
+            assertEquals(k + 1, breaks.length);
+            assertEquals(values[0], breaks[0], 1e-6);
+            assertEquals(values[n - 1], breaks[k], 1e-6);
+
+            for (int i = 1; i < breaks.length; i++) {
+                assertTrue(breaks[i] >= breaks[i - 1]);
+            }
+
+            double sumOfSquares = getSumOfSquares(values, breaks);
+            assertEquals(getSumOfSquares(values, classic), sumOfSquares, 1e-6 * Math.max(1, sumOfSquares));
+        }
+    }
+
+    /** Make sure that there are no breaks when there are fewer values than classes */
+    @Test
+    public void testTooFewValues () {
+        assertEquals(0, NaturalBreaksClassifier.buildJenksBreaks(new double[0], 6).length);
+        assertEquals(0, NaturalBreaksClassifier.buildJenksBreaks(new double[] { 1, 2, 3 }, 6).length);
+    }
+
+    /** the sum of squared deviations of the values from the means of the classes given by the breaks */
+    private static double getSumOfSquares (double[] values, double[] breaks) {
+        double ret = 0;
+
+        // each break but the first is the top of a class
+        for (int c = 1; c < breaks.length; c++) {
+            double sum = 0, sumSquares = 0;
+            int count = 0;
+
+            for (double value : values) {
+                if ((c == 1 || value > breaks[c - 1]) && value <= breaks[c]) {
+                    sum += value;
+                    sumSquares += value * value;
+                    count++;
+                }
+            }
+
+            if (count > 0)
+                ret += sumSquares - sum * sum / count;
+        }
+
+        return ret;
+    }
+}
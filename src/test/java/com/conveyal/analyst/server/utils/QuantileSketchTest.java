@@ -0,0 +1,133 @@
+package com.conveyal.analyst.server.utils;
+
+import junit.framework.TestCase;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Random;
+
+/** Test that quantile sketches are accurate, and that merged sketches are as accurate as a single sketch */
+public class QuantileSketchTest extends TestCase {
+    /** rank error allowed, as a fraction of the number of values */
+    private static final double TOLERANCE = 0.02;
+
+    @Test
+    public void testQuantiles () {
+        double[] values = getValues(1000000);
+
+        QuantileSketch sketch = new QuantileSketch();
+        for (double value : values) {
+            sketch.add(value);
+        }
+
+        assertEquals(values.length, sketch.size());
+        checkQuantiles(sketch, values);
+    }
+
+    /** Make sure that sketches of parts of the data merge into an accurate sketch of the whole */
+    @Test
+    public void testMerge () {
+        double[] values = getValues(1000000);
+
+        QuantileSketch sketch = new QuantileSketch();
+
+        // uneven partitions, as the shards of an ingest would be
+        for (int start = 0, size = 1; start < values.length; start += size, size *= 3) {
+            QuantileSketch part = new QuantileSketch();
+
+            for (int i = start; i < Math.min(start + size, values.length); i++) {
+                part.add(values[i]);
+            }
+
+            sketch.merge(part);
+        }
+
+        assertEquals(values.length, sketch.size());
+        checkQuantiles(sketch, values);
+
+        // and in parallel
+        QuantileSketch parallel = QuantileSketch.of(values);
+        assertEquals(values.length, parallel.size());
+        checkQuantiles(parallel, values);
+    }
+
+    /** Make sure that repeated values and tiny data sets are handled */
+    @Test
+    public void testEdgeCases () {
+        QuantileSketch empty = new QuantileSketch();
+        assertEquals(0, empty.getQuantiles(new double[] { 0, 0.5, 1 }).length);
+
+        QuantileSketch constant = new QuantileSketch();
+        for (int i = 0; i < 100000; i++) {
+            constant.add(42);
+        }
+
+        assertEquals(42d, constant.getQuantile(0), 0);
+        assertEquals(42d, constant.getQuantile(0.5), 0);
+        assertEquals(42d, constant.getQuantile(1), 0);
+
+        QuantileSketch small = new QuantileSketch();
+        small.add(3);
+        small.add(1);
+        small.add(2);
+
+        assertEquals(1d, small.getQuantile(0), 0);
+        assertEquals(2d, small.getQuantile(0.5), 0);
+        assertEquals(3d, small.getQuantile(1), 0);
+    }
+
+    /** skewed values with many zeros, like accessibility */
+    private static double[] getValues (int n) {
+        Random random = new Random(42);
+        double[] values = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            values[i] = random.nextInt(5) == 0 ? 0 : Math.floor(Math.exp(random.nextGaussian() * 2 + 8));
+        }
+
+        return values;
+    }
+
+    /** check that the sketch's quantiles are within the tolerance of the true ranks */
+    private static void checkQuantiles (QuantileSketch sketch, double[] values) {
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+
+        assertEquals(sorted[0], sketch.getMin(), 0);
+        assertEquals(sorted[sorted.length - 1], sketch.getMax(), 0);
+
+        double[] fractions = new double[99];
+        for (int i = 0; i < fractions.length; i++) {
+            fractions[i] = (i + 1) / 100d;
+        }
+
+        double[] quantiles = sketch.getQuantiles(fractions);
+
+        for (int i = 0; i < fractions.length; i++) {
+            // the range of ranks of the value returned, which may be repeated
+            int lowest = lowerBound(sorted, quantiles[i]);
+            int highest = lowerBound(sorted, Math.nextUp(quantiles[i]));
+
+            double rank = fractions[i] * sorted.length;
+            double tolerance = TOLERANCE * sorted.length;
+
+            assertTrue("Quantile " + fractions[i] + " out of tolerance",
+                    rank >= lowest - tolerance && rank <= highest + tolerance);
+        }
+    }
+
+    /** the index of the first value not less than the given value */
+    private static int lowerBound (double[] sorted, double value) {
+        int lo = 0, hi = sorted.length;
+
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (sorted[mid] < value)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+
+        return lo;
+    }
+}
@@ -0,0 +1,34 @@
+package com.conveyal.analyst.server.utils;
+
+import junit.framework.TestCase;
+import models.Shapefile;
+import org.junit.Test;
+
+/** Test that the query results cache holds as many results as its budget allows */
+public class QueryResultsCacheTest extends TestCase {
+    /** results nearly as large as the budget of the cache should be kept */
+    @Test
+    public void testRetainedNearBudget () {
+        Shapefile shp = new Shapefile();
+        shp.id = "shp";
+
+        String[] ids = new String[100000];
+        double[] values = new double[ids.length];
+
+        for (int i = 0; i < ids.length; i++) {
+            ids[i] = "f" + i;
+            values[i] = i;
+        }
+
+        QueryResults qr = new QueryResults(shp, ids, values);
+        QueryResultsCache cache = new QueryResultsCache(qr.getWeight() * 11 / 10);
+
+        assertSame(qr, cache.get("q_60_AVERAGE_a", () -> qr));
+        assertSame(qr, cache.get("q_60_AVERAGE_a", () -> {
+            throw new AssertionError("results were evicted");
+        }));
+
+        assertEquals(0, cache.stats().evictionCount());
+        assertEquals(qr.getWeight(), cache.getWeight());
+    }
+}
@@ -1,8 +1,13 @@
 package models;
 
 import com.conveyal.analyst.server.AnalystMain;
+import com.conveyal.analyst.server.utils.DataStore;
+import com.conveyal.analyst.server.utils.GeoUtils;
+import com.conveyal.analyst.server.utils.GeometryPyramid;
 import com.google.common.io.ByteStreams;
 import com.google.common.io.Files;
+import com.vividsolutions.jts.geom.Envelope;
+import com.vividsolutions.jts.geom.Geometry;
 import junit.framework.TestCase;
 import models.Shapefile;
 import org.junit.Test;
@@ -12,11 +17,29 @@ import org.opentripplanner.analyst.PointSet;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 
 /**
  * Test features of a shapefile.
  */
 public class ShapefileTest extends TestCase {
+    /** Import the test shapefile into a fresh data directory */
+    private Shapefile createShapefile () throws Exception {
+        AnalystMain.config.setProperty("application.data", Files.createTempDir().getAbsolutePath());
+        File shpLoc = File.createTempFile("shp", ".zip");
+        InputStream is = getClass().getResourceAsStream("shapefile.zip");
+        FileOutputStream fos = new FileOutputStream(shpLoc);
+        ByteStreams.copy(is, fos);
+        is.close();
+        fos.close();
+
+        return Shapefile.create(shpLoc, "PROJECT", "shapefile");
+    }
+
     /**
      * Make sure that pointset order is preserved when regenerating a pointset from a shapefile.
      *
@@ -29,15 +52,7 @@ public class ShapefileTest extends TestCase {
      */
     @Test
     public void testPointsetOrder () throws Exception {
-        AnalystMain.config.setProperty("application.data", Files.createTempDir().getAbsolutePath());
-        File shpLoc = File.createTempFile("shp", ".zip");
-        InputStream is = getClass().getResourceAsStream("shapefile.zip");
-        FileOutputStream fos = new FileOutputStream(shpLoc);
-        ByteStreams.copy(is, fos);
-        is.close();
-        fos.close();
-
-        Shapefile sf = Shapefile.create(shpLoc, "PROJECT", "shapefile");
+        Shapefile sf = createShapefile();
         // get the pointset that was built by the create function
         PointSet ps1 = sf.getPointSet();
 
@@ -61,4 +76,103 @@ public class ShapefileTest extends TestCase {
             assertEquals(pf1.getLon(), pf2.getLon(), 1e-6);
         }
     }
+
+    /** Make sure that the areas of features are stored when a shapefile is imported, and backfilled for old ones */
+    @Test
+    public void testAreas () throws Exception {
+        Shapefile sf = createShapefile();
+        DataStore<Shapefile.ShapeFeature> store = sf.getShapeFeatureStore();
+
+        for (Shapefile.ShapeFeature feature : store.getAll()) {
+            assertNotNull(feature.area);
+            assertEquals(GeoUtils.getArea(feature.geom), feature.area, 1e-6);
+
+            // forget the area, as though the feature was stored before areas were
+            feature.area = null;
+            store.saveWithoutCommit(feature.id, feature);
+        }
+
+        store.commit();
+
+        // as though the shapefile had been loaded afresh
+        sf.areasStored = false;
+        sf.storeAreas();
+
+        for (Shapefile.ShapeFeature feature : store.getAll()) {
+            assertNotNull(feature.area);
+            assertEquals(GeoUtils.getArea(feature.geom), feature.area, 1e-6);
+        }
+    }
+
+    /**
+     * Make sure that the generalized geometries of each level of the pyramid are no more detailed than the originals,
+     * that every feature appears or is culled at each level, and that high zooms get the original features.
+     */
+    @Test
+    public void testPyramid () throws Exception {
+        Shapefile sf = createShapefile();
+        Envelope env = new Envelope(-180, 180, -85, 85);
+
+        Map<String, Shapefile.ShapeFeature> originals = new HashMap<>();
+        for (Shapefile.ShapeFeature feature : sf.query(env)) {
+            originals.put(feature.id, feature);
+        }
+
+        // the pyramid was stored when the shapefile was created, and is computed again the same if it is deleted
+        File file = new File(Shapefile.getShapeDataPath(), "pyramid_" + sf.id + ".dat");
+        assertTrue(file.exists());
+
+        GeometryPyramid computed = GeometryPyramid.get(sf);
+        GeometryPyramid.delete(sf.id);
+        assertFalse(file.exists());
+
+        GeometryPyramid recomputed = GeometryPyramid.get(sf);
+        assertNotSame(computed, recomputed);
+        assertTrue(file.exists());
+
+        for (int level = 0; level < GeometryPyramid.ZOOMS.length; level++) {
+            Map<String, Geometry> geometries = new HashMap<>();
+            for (Shapefile.ShapeFeature feature : computed.query(env, level)) {
+                geometries.put(feature.id, feature.geom);
+            }
+
+            List<Shapefile.ShapeFeature> features = recomputed.query(env, level);
+            assertEquals(geometries.size(), features.size());
+
+            for (Shapefile.ShapeFeature feature : features) {
+                assertTrue(geometries.containsKey(feature.id));
+                assertTrue(feature.geom.equalsExact(geometries.get(feature.id)));
+            }
+        }
+
+        // at the lowest zoom, something is simplified or culled
+        List<Shapefile.ShapeFeature> lowest = sf.query(env, GeometryPyramid.ZOOMS[0]);
+        boolean generalized = lowest.size() < originals.size();
+        for (Shapefile.ShapeFeature feature : lowest) {
+            if (feature.geom.getNumPoints() < originals.get(feature.id).geom.getNumPoints())
+                generalized = true;
+        }
+        assertTrue(generalized);
+
+        for (int zoom : GeometryPyramid.ZOOMS) {
+            List<Shapefile.ShapeFeature> features = sf.query(env, zoom);
+            assertFalse(features.isEmpty());
+            assertEquals(computed.query(env, GeometryPyramid.getLevel(zoom)).size(), features.size());
+
+            Set<String> ids = new HashSet<>();
+
+            for (Shapefile.ShapeFeature feature : features) {
+                Shapefile.ShapeFeature original = originals.get(feature.id);
+                assertNotNull(original);
+                assertTrue(ids.add(feature.id));
+                assertTrue(feature.geom.getNumPoints() <= Math.max(original.geom.getNumPoints(), 5));
+                assertEquals(original.attributes, feature.attributes);
+            }
+        }
+
+        // full resolution beyond the pyramid
+        int zoom = GeometryPyramid.ZOOMS[GeometryPyramid.ZOOMS.length - 1] + 1;
+        assertEquals(-1, GeometryPyramid.getLevel(zoom));
+        assertEquals(originals.size(), sf.query(env, zoom).size());
+    }
 }